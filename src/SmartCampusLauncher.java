@@ -4,8 +4,19 @@ import jade.core.ProfileImpl;
 import jade.wrapper.AgentContainer;
 import jade.wrapper.AgentController;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class SmartCampusLauncher {
+    // Usage: SmartCampusLauncher [shards=N]
     public static void main(String[] args) {
+        int shards = 1;
+        for (String arg : args) {
+            if (arg.startsWith("shards=")) {
+                shards = Math.max(1, Integer.parseInt(arg.substring("shards=".length())));
+            }
+        }
+
         try {
             // Initialize JADE runtime
             Runtime rt = Runtime.instance();
@@ -23,11 +34,28 @@ public class SmartCampusLauncher {
                     null
             );
 
-            AgentController bookingAgent = mainContainer.createNewAgent(
-                    "BookingAgent",
-                    "agents.FacilityBookingAgent",
-                    null
-            );
+            // With several shards, "BookingAgent" is the router and the shards sit behind it
+            List<AgentController> bookingAgents = new ArrayList<>();
+            if (shards == 1) {
+                bookingAgents.add(mainContainer.createNewAgent(
+                        "BookingAgent",
+                        "agents.FacilityBookingAgent",
+                        null
+                ));
+            } else {
+                for (int i = 0; i < shards; i++) {
+                    bookingAgents.add(mainContainer.createNewAgent(
+                            "BookingAgent-" + i,
+                            "agents.FacilityBookingAgent",
+                            new Object[]{"shard=" + i, "shards=" + shards}
+                    ));
+                }
+                bookingAgents.add(mainContainer.createNewAgent(
+                        "BookingAgent",
+                        "agents.BookingRouterAgent",
+                        new Object[]{"shards=" + shards}
+                ));
+            }
 
             AgentController notificationAgent = mainContainer.createNewAgent(
                     "NotificationAgent",
@@ -49,7 +77,9 @@ public class SmartCampusLauncher {
 
             // Start all agents
             userAgent.start();
-            bookingAgent.start();
+            for (AgentController bookingAgent : bookingAgents) {
+                bookingAgent.start();
+            }
             notificationAgent.start();
             navigationAgent.start();
             guiAgent.start();
@@ -0,0 +1,34 @@
+package agents;
+
+// Which kinds of connection a route may use. Restricting a profile only ever
+// removes edges, so the graph's lower bounds stay valid for every profile.
+enum AccessProfile {
+    STANDARD("standard"),
+    // Wheelchairs, pushchairs, heavy equipment: elevators instead of stairs
+    STEP_FREE("step-free");
+
+    final String label;
+
+    AccessProfile(String label) {
+        this.label = label;
+    }
+
+    boolean allows(byte edgeKind) {
+        return this != STEP_FREE || edgeKind != CampusGraph.STAIR_FLIGHT;
+    }
+
+    // The profile named in a request; anything unrecognised is STANDARD
+    static AccessProfile fromLabel(String label) {
+        if (label != null) {
+            for (AccessProfile profile : values()) {
+                if (profile.label.equalsIgnoreCase(label.trim())) {
+                    return profile;
+                }
+            }
+            if ("wheelchair".equalsIgnoreCase(label.trim())) {
+                return STEP_FREE;
+            }
+        }
+        return STANDARD;
+    }
+}
@@ -0,0 +1,164 @@
+package agents;
+
+import jade.core.AID;
+import jade.lang.acl.ACLMessage;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+// Interest index for availability subscriptions. Each subscription is filed under
+// every date it covers, then either under its explicit rooms or, for "any room",
+// under its minimum capacity. A booking change on (room, date) therefore only
+// looks at one date bucket, one room list and a capacity range.
+final class AvailabilitySubscriptions {
+    static final class Subscription {
+        final String id;
+        final ACLMessage subscribeMessage;
+        final Set<String> rooms; // null means any room
+        final LocalDate startDate;
+        final LocalDate endDate;
+        final int minCapacity;
+
+        Subscription(String id, ACLMessage subscribeMessage, Set<String> rooms,
+                     LocalDate startDate, LocalDate endDate, int minCapacity) {
+            this.id = id;
+            this.subscribeMessage = subscribeMessage;
+            this.rooms = rooms;
+            this.startDate = startDate;
+            this.endDate = endDate;
+            this.minCapacity = minCapacity;
+        }
+
+        AID subscriber() {
+            return replyTarget(subscribeMessage);
+        }
+    }
+
+    // Where replies to this message go: the reply-to set by a forwarding router, else the sender
+    static AID replyTarget(ACLMessage msg) {
+        Iterator<?> replyTo = msg.getAllReplyTo();
+        return replyTo.hasNext() ? (AID) replyTo.next() : msg.getSender();
+    }
+
+    private static final class DateInterest {
+        final Map<String, List<Subscription>> byRoom = new HashMap<>();
+        final TreeMap<Integer, List<Subscription>> anyRoomByCapacity = new TreeMap<>();
+
+        boolean isEmpty() {
+            return byRoom.isEmpty() && anyRoomByCapacity.isEmpty();
+        }
+    }
+
+    private final Map<String, DateInterest> byDate = new HashMap<>();
+    private final Map<String, Subscription> byId = new HashMap<>();
+
+    synchronized void add(Subscription subscription) {
+        remove(subscription.id);
+        byId.put(subscription.id, subscription);
+        for (LocalDate d = subscription.startDate; !d.isAfter(subscription.endDate); d = d.plusDays(1)) {
+            DateInterest interest = byDate.computeIfAbsent(d.toString(), k -> new DateInterest());
+            if (subscription.rooms == null) {
+                interest.anyRoomByCapacity.computeIfAbsent(subscription.minCapacity, k -> new ArrayList<>()).add(subscription);
+            } else {
+                for (String room : subscription.rooms) {
+                    interest.byRoom.computeIfAbsent(room, k -> new ArrayList<>()).add(subscription);
+                }
+            }
+        }
+    }
+
+    synchronized boolean remove(String id) {
+        Subscription subscription = byId.remove(id);
+        if (subscription == null) {
+            return false;
+        }
+        for (LocalDate d = subscription.startDate; !d.isAfter(subscription.endDate); d = d.plusDays(1)) {
+            String date = d.toString();
+            DateInterest interest = byDate.get(date);
+            if (interest == null) {
+                continue;
+            }
+            if (subscription.rooms == null) {
+                removeFrom(interest.anyRoomByCapacity, subscription.minCapacity, subscription);
+            } else {
+                for (String room : subscription.rooms) {
+                    removeFrom(interest.byRoom, room, subscription);
+                }
+            }
+            if (interest.isEmpty()) {
+                byDate.remove(date);
+            }
+        }
+        return true;
+    }
+
+    private static <K> void removeFrom(Map<K, List<Subscription>> map, K key, Subscription subscription) {
+        List<Subscription> list = map.get(key);
+        if (list != null) {
+            list.remove(subscription);
+            if (list.isEmpty()) {
+                map.remove(key);
+            }
+        }
+    }
+
+    // Subscriptions interested in a change to this room on this date
+    synchronized List<Subscription> match(String roomNumber, int capacity, String date) {
+        DateInterest interest = byDate.get(date);
+        if (interest == null) {
+            return Collections.emptyList();
+        }
+        List<Subscription> matches = new ArrayList<>();
+        List<Subscription> explicit = interest.byRoom.get(roomNumber);
+        if (explicit != null) {
+            for (Subscription subscription : explicit) {
+                if (capacity >= subscription.minCapacity) {
+                    matches.add(subscription);
+                }
+            }
+        }
+        for (List<Subscription> anyRoom : interest.anyRoomByCapacity.headMap(capacity, true).values()) {
+            matches.addAll(anyRoom);
+        }
+        return matches;
+    }
+
+    // Handles an AMS delivery FAILURE: it keeps the conversation id of the undelivered
+    // delta and names the unreachable agent in its content
+    synchronized int removeUnreachable(String conversationId, String failureContent) {
+        List<String> ids = new ArrayList<>();
+        for (Subscription subscription : byId.values()) {
+            if (conversationId != null && conversationId.equals(subscription.subscribeMessage.getConversationId())
+                    && failureContent != null && failureContent.contains(subscription.subscriber().getName())) {
+                ids.add(subscription.id);
+            }
+        }
+        for (String id : ids) {
+            remove(id);
+        }
+        return ids.size();
+    }
+
+    // Drops subscriptions whose whole date range is in the past
+    synchronized int expireBefore(LocalDate today) {
+        int expired = 0;
+        for (Subscription subscription : new ArrayList<>(byId.values())) {
+            if (subscription.endDate.isBefore(today)) {
+                remove(subscription.id);
+                expired++;
+            }
+        }
+        return expired;
+    }
+
+    synchronized int size() {
+        return byId.size();
+    }
+}
@@ -0,0 +1,270 @@
+package agents;
+
+import jade.lang.acl.ACLMessage;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Tagged binary form of JSON content, carried with setByteSequenceContent.
+// Integers are zigzag varints, strings are length-prefixed UTF-8, and the
+// field names and values that appear in almost every campus message are sent
+// as one-byte references into a fixed dictionary.
+final class BinaryContentCodec implements MessageCodecs.Codec {
+    private static final byte VERSION = 1;
+
+    private static final byte NULL = 0;
+    private static final byte FALSE = 1;
+    private static final byte TRUE = 2;
+    private static final byte INT = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte STRING = 5;
+    private static final byte STRING_REF = 6;
+    private static final byte OBJECT = 7;
+    private static final byte ARRAY = 8;
+
+    // Append only: both ends must agree on every index already in use
+    private static final String[] DICTIONARY = {
+            "roomNumber", "date", "timeSlot", "studentId", "capacity", "location", "floor", "type",
+            "userId", "message", "status", "rooms", "name", "email", "startDate", "endDate",
+            "timeSlots", "chunk", "chunks", "cells", "entries", "done", "building", "directions",
+            "estimatedTime", "booked", "conflicts", "reason", "index", "Booking", "Registration",
+            "BULK_AVAILABILITY", "RECURRING", "BULK_IMPORT", "rejected", "registered",
+    };
+    private static final Map<String, Integer> DICTIONARY_INDEX = new HashMap<>();
+
+    static {
+        for (int i = 0; i < DICTIONARY.length; i++) {
+            DICTIONARY_INDEX.put(DICTIONARY[i], i);
+        }
+    }
+
+    @Override
+    public String language() {
+        return "smartcampus-binary";
+    }
+
+    @Override
+    public void write(ACLMessage msg, Object content) {
+        msg.setByteSequenceContent(encode(content));
+    }
+
+    @Override
+    public Object read(ACLMessage msg) {
+        return decode(msg.getByteSequenceContent());
+    }
+
+    static byte[] encode(Object content) {
+        Writer out = new Writer();
+        out.put(VERSION);
+        out.value(content);
+        return out.toByteArray();
+    }
+
+    static Object decode(byte[] bytes) {
+        Reader in = new Reader(bytes);
+        if (in.get() != VERSION) {
+            throw new IllegalArgumentException("Unsupported binary content version");
+        }
+        return in.value();
+    }
+
+    private static final class Writer {
+        private byte[] buf = new byte[128];
+        private int pos;
+
+        void put(int b) {
+            if (pos == buf.length) {
+                buf = Arrays.copyOf(buf, pos * 2);
+            }
+            buf[pos++] = (byte) b;
+        }
+
+        void varint(long v) {
+            while ((v & ~0x7FL) != 0) {
+                put((int) (v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            put((int) v);
+        }
+
+        void string(String s) {
+            Integer ref = DICTIONARY_INDEX.get(s);
+            if (ref != null) {
+                put(STRING_REF);
+                varint(ref);
+                return;
+            }
+            put(STRING);
+            int length = s.length();
+            boolean ascii = true;
+            for (int i = 0; i < length && ascii; i++) {
+                ascii = s.charAt(i) < 0x80;
+            }
+            if (ascii) {
+                varint(length);
+                ensure(length);
+                for (int i = 0; i < length; i++) {
+                    buf[pos++] = (byte) s.charAt(i);
+                }
+            } else {
+                byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+                varint(utf8.length);
+                ensure(utf8.length);
+                System.arraycopy(utf8, 0, buf, pos, utf8.length);
+                pos += utf8.length;
+            }
+        }
+
+        void value(Object v) {
+            if (v == null || v == JSONObject.NULL) {
+                put(NULL);
+            } else if (v instanceof Boolean) {
+                put((Boolean) v ? TRUE : FALSE);
+            } else if (v instanceof Integer || v instanceof Long || v instanceof Short || v instanceof Byte
+                    || (v instanceof BigInteger && ((BigInteger) v).bitLength() < 64)) {
+                long n = ((Number) v).longValue();
+                put(INT);
+                varint((n << 1) ^ (n >> 63));
+            } else if (v instanceof Number) {
+                put(DOUBLE);
+                long bits = Double.doubleToLongBits(v instanceof BigDecimal
+                        ? ((BigDecimal) v).doubleValue() : ((Number) v).doubleValue());
+                for (int i = 56; i >= 0; i -= 8) {
+                    put((int) (bits >>> i));
+                }
+            } else if (v instanceof JSONObject) {
+                JSONObject object = (JSONObject) v;
+                put(OBJECT);
+                varint(object.length());
+                for (String key : object.keySet()) {
+                    string(key);
+                    value(object.opt(key));
+                }
+            } else if (v instanceof JSONArray) {
+                JSONArray array = (JSONArray) v;
+                put(ARRAY);
+                varint(array.length());
+                for (int i = 0; i < array.length(); i++) {
+                    value(array.opt(i));
+                }
+            } else {
+                string(v.toString());
+            }
+        }
+
+        private void ensure(int extra) {
+            if (pos + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + extra));
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, pos);
+        }
+    }
+
+    private static final class Reader {
+        private final byte[] buf;
+        private int pos;
+
+        Reader(byte[] buf) {
+            this.buf = buf;
+        }
+
+        byte get() {
+            if (pos >= buf.length) {
+                throw new IllegalArgumentException("Truncated binary content");
+            }
+            return buf[pos++];
+        }
+
+        long varint() {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = get();
+                v |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return v;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint in binary content");
+        }
+
+        int length() {
+            long length = varint();
+            if (length < 0 || length > buf.length - pos) {
+                throw new IllegalArgumentException("Invalid length in binary content");
+            }
+            return (int) length;
+        }
+
+        String string(byte tag) {
+            if (tag == STRING_REF) {
+                long ref = varint();
+                if (ref < 0 || ref >= DICTIONARY.length) {
+                    throw new IllegalArgumentException("Unknown dictionary entry in binary content");
+                }
+                return DICTIONARY[(int) ref];
+            }
+            if (tag != STRING) {
+                throw new IllegalArgumentException("Expected a string in binary content");
+            }
+            int length = length();
+            String s = new String(buf, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return s;
+        }
+
+        Object value() {
+            byte tag = get();
+            switch (tag) {
+                case NULL:
+                    return JSONObject.NULL;
+                case FALSE:
+                    return Boolean.FALSE;
+                case TRUE:
+                    return Boolean.TRUE;
+                case INT: {
+                    long z = varint();
+                    long n = (z >>> 1) ^ -(z & 1);
+                    return n == (int) n ? (Object) (int) n : (Object) n;
+                }
+                case DOUBLE: {
+                    long bits = 0;
+                    for (int i = 0; i < 8; i++) {
+                        bits = (bits << 8) | (get() & 0xFF);
+                    }
+                    return Double.longBitsToDouble(bits);
+                }
+                case STRING:
+                case STRING_REF:
+                    return string(tag);
+                case OBJECT: {
+                    int size = length();
+                    JSONObject object = new JSONObject();
+                    for (int i = 0; i < size; i++) {
+                        String key = string(get());
+                        object.put(key, value());
+                    }
+                    return object;
+                }
+                case ARRAY: {
+                    int size = length();
+                    JSONArray array = new JSONArray();
+                    for (int i = 0; i < size; i++) {
+                        array.put(value());
+                    }
+                    return array;
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown tag " + tag + " in binary content");
+            }
+        }
+    }
+}
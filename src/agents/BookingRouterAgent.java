@@ -0,0 +1,437 @@
+package agents;
+
+import jade.core.Agent;
+import jade.core.MessageQueue;
+import jade.core.AID;
+import jade.core.behaviours.Behaviour;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.core.behaviours.TickerBehaviour;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+import jade.domain.DFService;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
+import jade.domain.FIPAException;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+// Front agent for a sharded FacilityBookingAgent deployment. PROPOSE and CANCEL
+// go to the shard owning the room; the shard answers the client directly.
+// Availability REQUESTs are sent to every shard and the room lists merged;
+// bulk grid queries have their chunks relayed as they stream in.
+public class BookingRouterAgent extends Agent {
+    private static final long GATHER_TIMEOUT_MS = 2000;
+    private static final long DISCOVERY_PERIOD_MS = 2000;
+
+    private int shardCount;
+    private AID[] shards;
+    private long nextConversation;
+    // Conversation ids of the gathers still running; touched only on the agent thread
+    private final Set<String> gathering = new HashSet<>();
+    private final StaleReplyBehavior staleReplies = new StaleReplyBehavior();
+
+    // New requests are refused rather than queued when the mailbox backs up
+    @Override
+    protected MessageQueue createMessageQueue() {
+        return MailboxGuard.install(this, super.createMessageQueue());
+    }
+
+    @Override
+    protected void setup() {
+        Object[] args = getArguments();
+        shardCount = 1;
+        if (args != null) {
+            for (Object arg : args) {
+                String text = String.valueOf(arg);
+                if (text.startsWith("shards=")) {
+                    shardCount = Math.max(1, Integer.parseInt(text.substring("shards=".length()).trim()));
+                }
+            }
+        }
+        shards = new AID[shardCount];
+
+        try {
+            DFAgentDescription dfd = new DFAgentDescription();
+            dfd.setName(getAID());
+
+            ServiceDescription sd = new ServiceDescription();
+            sd.setType("facility-booking-router");
+            sd.setName("smart-campus-room-booking-router");
+            dfd.addServices(sd);
+
+            DFService.register(this, dfd);
+        } catch (FIPAException e) {
+            e.printStackTrace();
+        }
+
+        discoverShards();
+        addBehaviour(new ShardDiscoveryBehavior());
+        addBehaviour(new ForwardBehavior());
+        addBehaviour(new AvailabilityRequestBehavior());
+        addBehaviour(new SubscriptionFanOutBehavior());
+        addBehaviour(staleReplies);
+    }
+
+    // Looks up every facility-booking agent in the DF and slots it by its shard property
+    private void discoverShards() {
+        try {
+            DFAgentDescription template = new DFAgentDescription();
+            ServiceDescription bookingSD = new ServiceDescription();
+            bookingSD.setType("facility-booking");
+            template.addServices(bookingSD);
+
+            for (DFAgentDescription result : DFService.search(this, template)) {
+                Iterator<?> services = result.getAllServices();
+                while (services.hasNext()) {
+                    ServiceDescription sd = (ServiceDescription) services.next();
+                    int shard = ServiceRegistry.intProperty(sd, "shard", -1);
+                    if (shard >= 0 && shard < shardCount && ServiceRegistry.intProperty(sd, "shards", 1) == shardCount
+                            && !result.getName().equals(shards[shard])) {
+                        shards[shard] = result.getName();
+                        System.out.println("Found booking shard " + shard + ": " + result.getName().getName());
+                    }
+                }
+            }
+        } catch (FIPAException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private boolean allShardsKnown() {
+        for (AID shard : shards) {
+            if (shard == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Keeps searching the DF until every shard has registered
+    private class ShardDiscoveryBehavior extends TickerBehaviour {
+        ShardDiscoveryBehavior() {
+            super(BookingRouterAgent.this, DISCOVERY_PERIOD_MS);
+        }
+
+        @Override
+        protected void onTick() {
+            if (allShardsKnown()) {
+                stop();
+            } else {
+                discoverShards();
+            }
+        }
+    }
+
+    // Hands a message to another agent so that its reply goes straight back to the original sender
+    private void forward(ACLMessage msg, AID target) {
+        ACLMessage forwarded = (ACLMessage) msg.clone();
+        forwarded.clearAllReceiver();
+        forwarded.addReceiver(target);
+        forwarded.clearAllReplyTo();
+        forwarded.addReplyTo(msg.getSender());
+        send(forwarded);
+    }
+
+    private void replyUnavailable(ACLMessage msg, String reason) {
+        ACLMessage reply = msg.createReply();
+        reply.setPerformative(ACLMessage.FAILURE);
+        reply.setContent(reason);
+        send(reply);
+    }
+
+    private class ForwardBehavior extends CyclicBehaviour {
+        @Override
+        public void action() {
+            MessageTemplate mt = MessageTemplate.and(
+                    MessageTemplate.or(
+                            MessageTemplate.MatchPerformative(ACLMessage.PROPOSE),
+                            MessageTemplate.MatchPerformative(ACLMessage.CANCEL)),
+                    MessageTemplate.not(MessageTemplate.MatchProtocol(FacilityBookingAgent.SUBSCRIPTION_PROTOCOL)));
+            ACLMessage msg = myAgent.receive(mt);
+
+            if (msg != null) {
+                try {
+                    JSONObject request = MessageCodecs.readObject(msg);
+                    String roomNumber = request.getString("roomNumber");
+                    AID shard = shards[FacilityBookingAgent.shardFor(roomNumber, shardCount)];
+                    if (shard == null) {
+                        replyUnavailable(msg, "Booking service for room " + roomNumber + " is not available yet.");
+                    } else {
+                        forward(msg, shard);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            } else {
+                block();
+            }
+        }
+    }
+
+    // Every shard keeps its own subscriptions, so SUBSCRIBE and its CANCEL go to all of them;
+    // the client receives one AGREE per shard and deltas straight from the shards
+    private class SubscriptionFanOutBehavior extends CyclicBehaviour {
+        @Override
+        public void action() {
+            MessageTemplate mt = MessageTemplate.or(
+                    MessageTemplate.MatchPerformative(ACLMessage.SUBSCRIBE),
+                    MessageTemplate.and(
+                            MessageTemplate.MatchPerformative(ACLMessage.CANCEL),
+                            MessageTemplate.MatchProtocol(FacilityBookingAgent.SUBSCRIPTION_PROTOCOL)));
+            ACLMessage msg = myAgent.receive(mt);
+
+            if (msg != null) {
+                if (!allShardsKnown()) {
+                    replyUnavailable(msg, "Booking service is not available yet.");
+                    return;
+                }
+                for (AID shard : shards) {
+                    forward(msg, shard);
+                }
+            } else {
+                block();
+            }
+        }
+    }
+
+    private class AvailabilityRequestBehavior extends CyclicBehaviour {
+        @Override
+        public void action() {
+            MessageTemplate mt = MessageTemplate.MatchPerformative(ACLMessage.REQUEST);
+            ACLMessage msg = myAgent.receive(mt);
+
+            if (msg != null) {
+                if (!allShardsKnown()) {
+                    replyUnavailable(msg, "Booking service is not available yet.");
+                    return;
+                }
+
+                String conversationId = gatherPrefix() + (nextConversation++);
+                ACLMessage query = new ACLMessage(ACLMessage.REQUEST);
+                for (AID shard : shards) {
+                    query.addReceiver(shard);
+                }
+                query.setConversationId(conversationId);
+                MessageCodecs.copyContent(msg, query);
+                send(query);
+
+                gathering.add(conversationId);
+                if (isBulkQuery(msg)) {
+                    addBehaviour(new BulkRelayBehavior(msg, conversationId));
+                } else {
+                    addBehaviour(new GatherBehavior(msg, conversationId));
+                }
+            } else {
+                block();
+            }
+        }
+    }
+
+    private String gatherPrefix() {
+        return getLocalName() + "-gather-";
+    }
+
+    // Shard answers that arrive after their gather timed out or finished early match no
+    // other template; without this they would sit in the mailbox and count towards
+    // MailboxGuard's high-water mark until the router refused valid requests
+    private class StaleReplyBehavior extends CyclicBehaviour {
+        private final MessageTemplate template = new MessageTemplate((MessageTemplate.MatchExpression) msg -> {
+            String conversationId = msg.getConversationId();
+            return conversationId != null && conversationId.startsWith(gatherPrefix())
+                    && !gathering.contains(conversationId);
+        });
+
+        @Override
+        public void action() {
+            ACLMessage stale = myAgent.receive(template);
+            if (stale == null) {
+                block();
+            }
+        }
+    }
+
+    private boolean isBulkQuery(ACLMessage msg) {
+        try {
+            return "BULK_AVAILABILITY".equals(MessageCodecs.readObject(msg).optString("type"));
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    // Passes each shard's chunks through to the client as they arrive and sends a
+    // single terminator once every shard has finished
+    private class BulkRelayBehavior extends Behaviour {
+        private final ACLMessage request;
+        private final String conversationId;
+        private final MessageTemplate template;
+        private final JSONArray rooms = new JSONArray();
+        private long deadline;
+        private int shardsDone;
+        private int chunksRelayed;
+        private long entries;
+        private boolean finished;
+
+        BulkRelayBehavior(ACLMessage request, String conversationId) {
+            super(BookingRouterAgent.this);
+            this.request = request;
+            this.conversationId = conversationId;
+            this.template = MessageTemplate.MatchConversationId(conversationId);
+            this.deadline = System.currentTimeMillis() + GATHER_TIMEOUT_MS;
+        }
+
+        @Override
+        public void action() {
+            ACLMessage answer = myAgent.receive(template);
+            if (answer == null) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    replyUnavailable(request, "Booking service did not answer in time.");
+                    finished = true;
+                } else {
+                    block(remaining);
+                }
+                return;
+            }
+
+            // The timeout only covers silence between messages, not the whole stream
+            deadline = System.currentTimeMillis() + GATHER_TIMEOUT_MS;
+            if (answer.getPerformative() != ACLMessage.INFORM) {
+                ACLMessage reply = request.createReply();
+                reply.setPerformative(answer.getPerformative());
+                MessageCodecs.copyContent(answer, reply);
+                send(reply);
+                finished = true;
+                return;
+            }
+
+            JSONObject content = MessageCodecs.readObject(answer);
+            ACLMessage reply = request.createReply();
+            reply.setPerformative(ACLMessage.INFORM);
+            if (!content.optBoolean("done")) {
+                content.put("chunk", chunksRelayed++);
+                MessageCodecs.writeReply(request, reply, content);
+                send(reply);
+                return;
+            }
+
+            entries += content.optLong("entries");
+            JSONArray shardRooms = content.optJSONArray("rooms");
+            for (int i = 0; shardRooms != null && i < shardRooms.length(); i++) {
+                rooms.put(shardRooms.get(i));
+            }
+            if (++shardsDone == shardCount) {
+                JSONObject terminator = new JSONObject();
+                terminator.put("done", true);
+                terminator.put("chunks", chunksRelayed);
+                terminator.put("entries", entries);
+                terminator.put("rooms", rooms);
+                MessageCodecs.writeReply(request, reply, terminator);
+                send(reply);
+                finished = true;
+            }
+        }
+
+        @Override
+        public boolean done() {
+            return finished;
+        }
+
+        @Override
+        public int onEnd() {
+            gathering.remove(conversationId);
+            // Answers already queued for this gather are now stale
+            staleReplies.restart();
+            return 0;
+        }
+    }
+
+    // Collects one answer per shard and replies to the client with the merged room list
+    private class GatherBehavior extends Behaviour {
+        private final ACLMessage request;
+        private final String conversationId;
+        private final MessageTemplate template;
+        private final long deadline;
+        private final List<JSONObject> rooms = new ArrayList<>();
+        private int answered;
+        private boolean finished;
+
+        GatherBehavior(ACLMessage request, String conversationId) {
+            super(BookingRouterAgent.this);
+            this.request = request;
+            this.conversationId = conversationId;
+            this.template = MessageTemplate.MatchConversationId(conversationId);
+            this.deadline = System.currentTimeMillis() + GATHER_TIMEOUT_MS;
+        }
+
+        @Override
+        public void action() {
+            ACLMessage answer = myAgent.receive(template);
+            if (answer != null) {
+                if (answer.getPerformative() != ACLMessage.INFORM) {
+                    // Every shard validates the same way, so one rejection answers the whole query
+                    ACLMessage reply = request.createReply();
+                    reply.setPerformative(answer.getPerformative());
+                    MessageCodecs.copyContent(answer, reply);
+                    send(reply);
+                    finished = true;
+                    return;
+                }
+                JSONArray shardRooms = MessageCodecs.readArray(answer);
+                for (int i = 0; i < shardRooms.length(); i++) {
+                    rooms.add(shardRooms.getJSONObject(i));
+                }
+                if (++answered == shardCount) {
+                    replyWithRooms();
+                }
+                return;
+            }
+
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                replyUnavailable(request, "Booking service did not answer in time.");
+                finished = true;
+            } else {
+                block(remaining);
+            }
+        }
+
+        private void replyWithRooms() {
+            rooms.sort((a, b) -> a.getString("roomNumber").compareTo(b.getString("roomNumber")));
+            ACLMessage reply = request.createReply();
+            reply.setPerformative(ACLMessage.INFORM);
+            MessageCodecs.writeReply(request, reply, new JSONArray(rooms));
+            send(reply);
+            finished = true;
+        }
+
+        @Override
+        public boolean done() {
+            return finished;
+        }
+
+        @Override
+        public int onEnd() {
+            gathering.remove(conversationId);
+            // Answers already queued for this gather are now stale
+            staleReplies.restart();
+            return 0;
+        }
+    }
+
+    @Override
+    protected void takeDown() {
+        MailboxGuard.uninstall(this);
+        try {
+            DFService.deregister(this);
+        } catch (FIPAException e) {
+            e.printStackTrace();
+        }
+        System.out.println("BookingRouterAgent " + getAID().getName() + " terminating.");
+    }
+}
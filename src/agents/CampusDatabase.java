@@ -0,0 +1,190 @@
+package agents;
+
+import java.sql.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Connection pool shared by every agent in this JVM that uses smartcampus.db.
+// SQLite allows a single writer, so there is exactly one writer connection and
+// a few read-only connections; WAL mode lets the readers run alongside it.
+// Each pooled connection caches its prepared statements by SQL text.
+final class CampusDatabase {
+    private static final String URL = "jdbc:sqlite:smartcampus.db";
+    private static final int READERS = 4;
+    private static final int STATEMENT_CACHE_SIZE = 64;
+
+    private static CampusDatabase shared;
+    private static int users;
+
+    private final BlockingQueue<PooledConnection> readers = new ArrayBlockingQueue<>(READERS);
+    private final BlockingQueue<PooledConnection> writers = new ArrayBlockingQueue<>(1);
+    private final PooledConnection[] all = new PooledConnection[READERS + 1];
+
+    private final AtomicLong statementHits = new AtomicLong();
+    private final AtomicLong statementMisses = new AtomicLong();
+    private final AtomicLong readerBorrows = new AtomicLong();
+    private final AtomicLong readerWaitNanos = new AtomicLong();
+    private final AtomicLong writerBorrows = new AtomicLong();
+    private final AtomicLong writerWaitNanos = new AtomicLong();
+
+    // Every agent that calls acquire() must call release() in takeDown()
+    static synchronized CampusDatabase acquire() throws SQLException {
+        if (shared == null) {
+            shared = new CampusDatabase();
+            System.out.println("Connected to SQLite database.");
+        }
+        users++;
+        return shared;
+    }
+
+    static synchronized void release() {
+        if (shared != null && --users == 0) {
+            shared.closeAll();
+            shared = null;
+            System.out.println("Database connection closed.");
+        }
+    }
+
+    private CampusDatabase() throws SQLException {
+        try {
+            PooledConnection writer = new PooledConnection(this, DriverManager.getConnection(URL), writers);
+            try (Statement stmt = writer.connection().createStatement()) {
+                // WAL lets readers proceed during a write; FULL keeps each commit durable
+                stmt.execute("PRAGMA journal_mode=WAL");
+                stmt.execute("PRAGMA synchronous=FULL");
+            }
+            all[0] = writer;
+            writers.add(writer);
+
+            for (int i = 1; i <= READERS; i++) {
+                PooledConnection reader = new PooledConnection(this, DriverManager.getConnection(URL), readers);
+                try (Statement stmt = reader.connection().createStatement()) {
+                    stmt.execute("PRAGMA query_only=1");
+                }
+                all[i] = reader;
+                readers.add(reader);
+            }
+        } catch (SQLException e) {
+            closeAll();
+            throw e;
+        }
+    }
+
+    // Borrow a read-only connection; close() hands it back
+    PooledConnection reader() throws SQLException {
+        readerBorrows.incrementAndGet();
+        return take(readers, readerWaitNanos);
+    }
+
+    // Borrow the single writer connection; close() hands it back
+    PooledConnection writer() throws SQLException {
+        writerBorrows.incrementAndGet();
+        return take(writers, writerWaitNanos);
+    }
+
+    private PooledConnection take(BlockingQueue<PooledConnection> pool, AtomicLong waitNanos) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            PooledConnection pooled = pool.take();
+            waitNanos.addAndGet(System.nanoTime() - start);
+            return pooled;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+    }
+
+    String statistics() {
+        long hits = statementHits.get();
+        long misses = statementMisses.get();
+        long lookups = hits + misses;
+        return String.format("statements hit=%d miss=%d (%.1f%% hits), readers borrows=%d avgWait=%.3fms, " +
+                        "writer borrows=%d avgWait=%.3fms",
+                hits, misses, lookups == 0 ? 0.0 : 100.0 * hits / lookups,
+                readerBorrows.get(), averageMillis(readerWaitNanos.get(), readerBorrows.get()),
+                writerBorrows.get(), averageMillis(writerWaitNanos.get(), writerBorrows.get()));
+    }
+
+    private static double averageMillis(long nanos, long count) {
+        return count == 0 ? 0.0 : nanos / 1_000_000.0 / count;
+    }
+
+    private void closeAll() {
+        for (PooledConnection pooled : all) {
+            if (pooled != null) {
+                pooled.closeConnection();
+            }
+        }
+    }
+
+    static final class PooledConnection implements AutoCloseable {
+        private final CampusDatabase owner;
+        private final Connection connection;
+        private final BlockingQueue<PooledConnection> home;
+
+        // Least recently used statements are closed once the cache is full
+        private final Map<String, PreparedStatement> statements =
+                new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                        if (size() > STATEMENT_CACHE_SIZE) {
+                            closeQuietly(eldest.getValue());
+                            return true;
+                        }
+                        return false;
+                    }
+                };
+
+        private PooledConnection(CampusDatabase owner, Connection connection, BlockingQueue<PooledConnection> home) {
+            this.owner = owner;
+            this.connection = connection;
+            this.home = home;
+        }
+
+        Connection connection() {
+            return connection;
+        }
+
+        // Cached per connection: callers must not close the returned statement
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement stmt = statements.get(sql);
+            if (stmt != null) {
+                owner.statementHits.incrementAndGet();
+                stmt.clearParameters();
+                return stmt;
+            }
+            owner.statementMisses.incrementAndGet();
+            stmt = connection.prepareStatement(sql);
+            statements.put(sql, stmt);
+            return stmt;
+        }
+
+        @Override
+        public void close() {
+            home.offer(this);
+        }
+
+        private void closeConnection() {
+            for (PreparedStatement stmt : statements.values()) {
+                closeQuietly(stmt);
+            }
+            statements.clear();
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private static void closeQuietly(PreparedStatement stmt) {
+            try {
+                stmt.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
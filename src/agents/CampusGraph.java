@@ -0,0 +1,751 @@
+package agents;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Walkable campus as a graph: rooms, corridor points, stair and elevator
+// landings, building entrances and outdoor paths. Adjacency is stored in
+// compressed sparse row form: the edges leaving node n are
+// firstEdge(n) .. firstEdge(n + 1) - 1, and every edge has a target, a length
+// in metres, a traversal time in seconds and a kind. Coordinates are metres on
+// a campus-wide plane (x east, y north); floors are numbered per building,
+// and outdoor nodes belong to no building (building -1) at ground level.
+// Immutable once built, so any number of threads can route over it.
+//
+// All of it lives in one little-endian image, which is also the compiled map
+// file format (see CampusMapCompiler): a header, then one 8-byte aligned
+// section per array, including everything derived from the map (landmark
+// distances, dead ends, a hash index of names) and a table of distinct
+// strings. The accessors read the sections in place, so load() only maps the
+// file and checks the header; pages are read on first use and shared through
+// the page cache by every process that maps the same file.
+final class CampusGraph {
+    // Node kinds
+    static final byte ROOM = 0;
+    static final byte CORRIDOR = 1;
+    static final byte STAIRS = 2;
+    static final byte ELEVATOR = 3;
+    static final byte ENTRANCE = 4;
+    static final byte OUTDOOR = 5;
+
+    // Edge kinds
+    static final byte WALK = 0;
+    static final byte OUTSIDE = 1;
+    // One flight between stair landings on adjacent floors
+    static final byte STAIR_FLIGHT = 2;
+    // Elevator ride between adjacent floors
+    static final byte ELEVATOR_RIDE = 3;
+    // Between a corridor and an elevator landing; includes half the expected wait
+    static final byte ELEVATOR_DOOR = 4;
+
+    static final float WALK_METRES_PER_SECOND = 1.4f;
+    static final float STAIR_SECONDS_PER_FLOOR = 15f;
+    static final float ELEVATOR_SECONDS_PER_FLOOR = 5f;
+    static final float ELEVATOR_WAIT_SECONDS = 20f;
+    static final float FLOOR_HEIGHT_METRES = 3.5f;
+    static final int GROUND_FLOOR = 1;
+    private static final int LANDMARKS = 8;
+
+    // Image header: magic, format version, then counts and section offsets
+    private static final int MAGIC = 0x50414D43; // "CMAP"
+    private static final int VERSION = 1;
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_LENGTH = 8;
+    private static final int H_NODES = 12;
+    private static final int H_EDGES = 16;
+    private static final int H_BUILDINGS = 20;
+    private static final int H_STRINGS = 24;
+    private static final int H_LANDMARKS = 28;
+    private static final int H_LINK_FLOOR = 32;
+    private static final int H_NAME_SLOTS = 36;
+    private static final int H_SECTIONS = 40;
+    // Sections, in file order
+    private static final int NODE_KINDS = 0;
+    private static final int BUILDINGS = 1;
+    private static final int FLOORS = 2;
+    private static final int XS = 3;
+    private static final int YS = 4;
+    private static final int NAMES = 5;
+    private static final int FIRST_EDGES = 6;
+    private static final int TARGETS = 7;
+    private static final int METRES = 8;
+    private static final int SECONDS = 9;
+    private static final int EDGE_KINDS = 10;
+    private static final int REVERSE_EDGES = 11;
+    private static final int BUILDING_NAMES = 12;
+    private static final int DEAD_ENDS = 13;
+    private static final int LANDMARK_SECONDS = 14;
+    private static final int NAME_INDEX = 15;
+    private static final int STRING_OFFSETS = 16;
+    private static final int STRING_BYTES = 17;
+    private static final int SECTION_COUNT = 18;
+    private static final int HEADER_SIZE = H_SECTIONS + SECTION_COUNT * 4;
+
+    private final ByteBuffer image;
+    private final int nodeCount;
+    private final int edgeCount;
+    private final ByteBuffer nodeKinds;
+    private final IntBuffer buildings;
+    private final IntBuffer floors;
+    private final FloatBuffer xs;
+    private final FloatBuffer ys;
+    // String ids, -1 for anonymous nodes
+    private final IntBuffer names;
+    private final IntBuffer buildingNames;
+    private final IntBuffer firstEdges;
+    private final IntBuffer targets;
+    private final FloatBuffer metres;
+    private final FloatBuffer seconds;
+    private final ByteBuffer edgeKinds;
+    // The same connection in the opposite direction
+    private final IntBuffer reverseEdges;
+    // If buildings are only ever connected at this floor, the heuristic can
+    // count the floors down to it and back up; otherwise it is Integer.MIN_VALUE
+    private final int linkFloor;
+    // Buildings with a single connection to the rest of the campus (1, else 0);
+    // a route never needs to pass through one of these
+    private final ByteBuffer deadEnds;
+    // Seconds from a few far-apart landmark nodes to every node, node-major:
+    // landmarkSeconds[node * landmarkCount + k]. By the triangle inequality,
+    // |d(k, goal) - d(k, n)| never exceeds the time from n to the goal.
+    private final FloatBuffer landmarkSeconds;
+    private final int landmarkCount;
+    // Open-addressing table of (hash of lower-case name, node) pairs, -1 node for empty slots
+    private final IntBuffer nameIndex;
+    private final int nameSlots;
+    // UTF-8 strings back to back; string i is bytes offsets[i] .. offsets[i + 1] - 1
+    private final IntBuffer stringOffsets;
+    private final ByteBuffer stringBytes;
+    // Strings decoded so far. Racing threads at worst decode the same string
+    // twice, and a String is safe to publish without synchronisation.
+    private final String[] decoded;
+
+    private CampusGraph(ByteBuffer image) {
+        this.image = image.order(ByteOrder.LITTLE_ENDIAN);
+        nodeCount = image.getInt(H_NODES);
+        edgeCount = image.getInt(H_EDGES);
+        int buildingCount = image.getInt(H_BUILDINGS);
+        int stringCount = image.getInt(H_STRINGS);
+        landmarkCount = image.getInt(H_LANDMARKS);
+        linkFloor = image.getInt(H_LINK_FLOOR);
+        nameSlots = image.getInt(H_NAME_SLOTS);
+
+        nodeKinds = section(NODE_KINDS, nodeCount);
+        buildings = section(BUILDINGS, nodeCount * 4).asIntBuffer();
+        floors = section(FLOORS, nodeCount * 4).asIntBuffer();
+        xs = section(XS, nodeCount * 4).asFloatBuffer();
+        ys = section(YS, nodeCount * 4).asFloatBuffer();
+        names = section(NAMES, nodeCount * 4).asIntBuffer();
+        firstEdges = section(FIRST_EDGES, (nodeCount + 1) * 4).asIntBuffer();
+        targets = section(TARGETS, edgeCount * 4).asIntBuffer();
+        metres = section(METRES, edgeCount * 4).asFloatBuffer();
+        seconds = section(SECONDS, edgeCount * 4).asFloatBuffer();
+        edgeKinds = section(EDGE_KINDS, edgeCount);
+        reverseEdges = section(REVERSE_EDGES, edgeCount * 4).asIntBuffer();
+        buildingNames = section(BUILDING_NAMES, buildingCount * 4).asIntBuffer();
+        deadEnds = section(DEAD_ENDS, buildingCount);
+        landmarkSeconds = section(LANDMARK_SECONDS, nodeCount * landmarkCount * 4).asFloatBuffer();
+        nameIndex = section(NAME_INDEX, nameSlots * 8).asIntBuffer();
+        stringOffsets = section(STRING_OFFSETS, (stringCount + 1) * 4).asIntBuffer();
+        stringBytes = section(STRING_BYTES, stringOffsets.get(stringCount));
+        decoded = new String[stringCount];
+    }
+
+    private ByteBuffer section(int section, int length) {
+        int offset = image.getInt(H_SECTIONS + section * 4);
+        ByteBuffer view = image.duplicate();
+        view.limit(offset + length).position(offset);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // Maps a compiled map file read-only
+    static CampusGraph load(Path file) throws IOException {
+        ByteBuffer image;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is not a campus map");
+            }
+            image = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        if (image.getInt(H_MAGIC) != MAGIC) {
+            throw new IOException(file + " is not a campus map");
+        }
+        if (image.getInt(H_VERSION) != VERSION) {
+            throw new IOException(file + " is campus map version " + image.getInt(H_VERSION) + ", expected " + VERSION);
+        }
+        if (image.getInt(H_LENGTH) != image.capacity()) {
+            throw new IOException(file + " is truncated");
+        }
+        try {
+            return new CampusGraph(image);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new IOException(file + " is corrupt: " + e);
+        }
+    }
+
+    // Writes the image as a map file, replacing any existing one atomically
+    void write(Path file) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer data = image.duplicate();
+            data.clear();
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Size of the image in bytes
+    int byteSize() {
+        return image.capacity();
+    }
+
+    int nodeCount() {
+        return nodeCount;
+    }
+
+    int edgeCount() {
+        return edgeCount;
+    }
+
+    byte kind(int node) {
+        return nodeKinds.get(node);
+    }
+
+    int building(int node) {
+        return buildings.get(node);
+    }
+
+    String buildingName(int node) {
+        int building = buildings.get(node);
+        return building < 0 ? null : string(buildingNames.get(building));
+    }
+
+    int floor(int node) {
+        return floors.get(node);
+    }
+
+    float x(int node) {
+        return xs.get(node);
+    }
+
+    float y(int node) {
+        return ys.get(node);
+    }
+
+    // Room number or place name, or null for anonymous nodes
+    String name(int node) {
+        int id = names.get(node);
+        return id < 0 ? null : string(id);
+    }
+
+    int firstEdge(int node) {
+        return firstEdges.get(node);
+    }
+
+    int target(int edge) {
+        return targets.get(edge);
+    }
+
+    float metres(int edge) {
+        return metres.get(edge);
+    }
+
+    float seconds(int edge) {
+        return seconds.get(edge);
+    }
+
+    byte edgeKind(int edge) {
+        return edgeKinds.get(edge);
+    }
+
+    int reverse(int edge) {
+        return reverseEdges.get(edge);
+    }
+
+    // The node an edge leaves from
+    int source(int edge) {
+        return targets.get(reverseEdges.get(edge));
+    }
+
+    boolean isDeadEnd(int building) {
+        return building >= 0 && deadEnds.get(building) != 0;
+    }
+
+    // The node with this room number or place name, or -1
+    int find(String name) {
+        String key = name.trim().toLowerCase(Locale.ROOT);
+        int hash = key.hashCode();
+        for (int slot = slot(hash, nameSlots); ; slot = (slot + 1) & (nameSlots - 1)) {
+            int node = nameIndex.get(slot * 2 + 1);
+            if (node < 0) {
+                return -1;
+            }
+            if (nameIndex.get(slot * 2) == hash && key.equals(name(node).toLowerCase(Locale.ROOT))) {
+                return node;
+            }
+        }
+    }
+
+    private String string(int id) {
+        String value = decoded[id];
+        if (value == null) {
+            int start = stringOffsets.get(id);
+            byte[] bytes = new byte[stringOffsets.get(id + 1) - start];
+            ByteBuffer view = stringBytes.duplicate();
+            view.position(start);
+            view.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+            decoded[id] = value;
+        }
+        return value;
+    }
+
+    private static int slot(int hash, int slots) {
+        return (hash ^ (hash >>> 16)) & (slots - 1);
+    }
+
+    // A lower bound on the seconds from one node to another: the larger of the
+    // landmark bound and the straight-line walk plus the fastest possible floor
+    // changes. Between buildings that only connect on one floor, that means
+    // going down to it and back up. Stays a lower bound if edges only get slower.
+    float lowerBoundSeconds(int from, int to) {
+        float dx = xs.get(from) - xs.get(to);
+        float dy = ys.get(from) - ys.get(to);
+        float bound = (float) Math.sqrt(dx * dx + dy * dy) / WALK_METRES_PER_SECOND;
+        boolean fromElevator = nodeKinds.get(from) == ELEVATOR;
+        boolean toElevator = nodeKinds.get(to) == ELEVATOR;
+        if (buildings.get(from) != buildings.get(to) && linkFloor != Integer.MIN_VALUE) {
+            bound += climbSeconds(Math.abs(floors.get(from) - linkFloor), fromElevator, false)
+                    + climbSeconds(Math.abs(floors.get(to) - linkFloor), false, toElevator);
+        } else {
+            bound += climbSeconds(Math.abs(floors.get(from) - floors.get(to)), fromElevator, toElevator);
+        }
+        int a = from * landmarkCount;
+        int b = to * landmarkCount;
+        for (int k = 0; k < landmarkCount; k++) {
+            float difference = Math.abs(landmarkSeconds.get(b + k) - landmarkSeconds.get(a + k));
+            // Infinite on both sides gives NaN, which fails the comparison
+            if (difference > bound && difference != Float.POSITIVE_INFINITY) {
+                bound = difference;
+            }
+        }
+        return bound;
+    }
+
+    // Picks landmarks farthest-first: each one is the node farthest from those
+    // already chosen, which tends to put them around the edge of the campus.
+    // Returns the distances node-major, as stored in the image.
+    private float[] selectLandmarks(int count) {
+        int n = nodeCount;
+        float[][] distances = new float[count][];
+        RouteFinder finder = new RouteFinder(this);
+        float[] nearest = finder.secondsFrom(0);
+        for (int k = 0; k < count; k++) {
+            int landmark = 0;
+            for (int node = 1; node < n; node++) {
+                if (nearest[node] != Float.POSITIVE_INFINITY
+                        && (nearest[landmark] == Float.POSITIVE_INFINITY || nearest[node] > nearest[landmark])) {
+                    landmark = node;
+                }
+            }
+            distances[k] = finder.secondsFrom(landmark);
+            for (int node = 0; node < n; node++) {
+                nearest[node] = k == 0 ? distances[k][node] : Math.min(nearest[node], distances[k][node]);
+            }
+        }
+        float[] packed = new float[n * count];
+        for (int node = 0; node < n; node++) {
+            for (int k = 0; k < count; k++) {
+                packed[node * count + k] = distances[k][node];
+            }
+        }
+        return packed;
+    }
+
+    // The quickest way to change this many floors: stairs, or the elevator,
+    // whose wait is charged half on the way in and half on the way out, so an
+    // end that is already at an elevator landing skips its half
+    private static float climbSeconds(int floorChanges, boolean startsInElevator, boolean endsInElevator) {
+        if (floorChanges == 0) {
+            return 0;
+        }
+        float wait = (startsInElevator ? 0 : ELEVATOR_WAIT_SECONDS / 2) + (endsInElevator ? 0 : ELEVATOR_WAIT_SECONDS / 2);
+        return Math.min(floorChanges * STAIR_SECONDS_PER_FLOOR, wait + floorChanges * ELEVATOR_SECONDS_PER_FLOOR);
+    }
+
+    // Collects nodes and undirected connections, then packs them into arrays
+    static final class Builder {
+        private final List<String> buildingNames = new ArrayList<>();
+        private final Map<String, Integer> buildingIndex = new HashMap<>();
+        private byte[] kinds = new byte[64];
+        private int[] buildings = new int[64];
+        private int[] floors = new int[64];
+        private float[] xs = new float[64];
+        private float[] ys = new float[64];
+        private final List<String> names = new ArrayList<>();
+        private int nodes;
+        private int[] from = new int[64];
+        private int[] to = new int[64];
+        private byte[] edgeKinds = new byte[64];
+        private int edges;
+        // Corridor nodes of each building floor, for attaching rooms
+        private final Map<String, List<Integer>> corridors = new HashMap<>();
+
+        int addNode(String name, byte kind, String building, int floor, float x, float y) {
+            if (nodes == kinds.length) {
+                int size = nodes * 2;
+                kinds = Arrays.copyOf(kinds, size);
+                buildings = Arrays.copyOf(buildings, size);
+                floors = Arrays.copyOf(floors, size);
+                xs = Arrays.copyOf(xs, size);
+                ys = Arrays.copyOf(ys, size);
+            }
+            kinds[nodes] = kind;
+            buildings[nodes] = building == null ? -1 : buildingIndex.computeIfAbsent(building, b -> {
+                buildingNames.add(b);
+                return buildingNames.size() - 1;
+            });
+            floors[nodes] = building == null ? GROUND_FLOOR : floor;
+            xs[nodes] = x;
+            ys[nodes] = y;
+            names.add(name);
+            if (kind == CORRIDOR) {
+                corridors.computeIfAbsent(building + "/" + floor, k -> new ArrayList<>()).add(nodes);
+            }
+            return nodes++;
+        }
+
+        void connect(int a, int b, byte kind) {
+            if (edges == from.length) {
+                int size = edges * 2;
+                from = Arrays.copyOf(from, size);
+                to = Arrays.copyOf(to, size);
+                edgeKinds = Arrays.copyOf(edgeKinds, size);
+            }
+            from[edges] = a;
+            to[edges] = b;
+            edgeKinds[edges] = kind;
+            edges++;
+        }
+
+        // A building as one straight corridor per floor from its entrance,
+        // with stairs near the entrance and an elevator at the far end. Returns
+        // the entrance node, which still needs a connection to the outside.
+        // Corridor points and landings are named like "Building A F2 Corridor 3",
+        // "Building A F2 Stairs" and "Building A F2 Elevator".
+        int addBuilding(String building, float x, float y, float length, int floorCount, float spacing) {
+            int entrance = addNode(building + " Entrance", ENTRANCE, building, GROUND_FLOOR, x, y);
+            int stairsBelow = -1;
+            int elevatorBelow = -1;
+            int points = Math.max(2, Math.round(length / spacing) + 1);
+            for (int floor = GROUND_FLOOR; floor < GROUND_FLOOR + floorCount; floor++) {
+                int previous = -1;
+                int stairsCorridor = -1;
+                int elevatorCorridor = -1;
+                for (int i = 0; i < points; i++) {
+                    int corridor = addNode(building + " F" + floor + " Corridor " + i, CORRIDOR, building, floor,
+                            x + i * length / (points - 1), y);
+                    if (previous >= 0) {
+                        connect(previous, corridor, WALK);
+                    } else if (floor == GROUND_FLOOR) {
+                        connect(entrance, corridor, WALK);
+                    }
+                    if (i == 1) {
+                        stairsCorridor = corridor;
+                    }
+                    elevatorCorridor = corridor;
+                    previous = corridor;
+                }
+                int stairs = addNode(building + " F" + floor + " Stairs", STAIRS, building, floor,
+                        x(stairsCorridor), y(stairsCorridor) - 4);
+                connect(stairsCorridor, stairs, WALK);
+                int elevator = addNode(building + " F" + floor + " Elevator", ELEVATOR, building, floor,
+                        x(elevatorCorridor), y(elevatorCorridor) - 4);
+                connect(elevatorCorridor, elevator, ELEVATOR_DOOR);
+                if (stairsBelow >= 0) {
+                    connect(stairsBelow, stairs, STAIR_FLIGHT);
+                    connect(elevatorBelow, elevator, ELEVATOR_RIDE);
+                }
+                stairsBelow = stairs;
+                elevatorBelow = elevator;
+            }
+            return entrance;
+        }
+
+        // A room beside the corridor point of its floor closest to along metres
+        // from the entrance, on the left (side > 0) or right (side < 0)
+        int addRoom(String number, String building, int floor, float along, float side) {
+            List<Integer> corridor = corridors.get(building + "/" + floor);
+            if (corridor == null) {
+                throw new IllegalArgumentException("No floor " + floor + " in " + building);
+            }
+            float x0 = xs[corridor.get(0)];
+            int nearest = corridor.get(0);
+            for (int node : corridor) {
+                if (Math.abs(xs[node] - x0 - along) < Math.abs(xs[nearest] - x0 - along)) {
+                    nearest = node;
+                }
+            }
+            int room = addNode(number, ROOM, building, floor, xs[nearest], ys[nearest] + side);
+            connect(nearest, room, WALK);
+            return room;
+        }
+
+        float x(int node) {
+            return xs[node];
+        }
+
+        float y(int node) {
+            return ys[node];
+        }
+
+        CampusGraph build() {
+            int[] firstEdges = new int[nodes + 1];
+            for (int e = 0; e < edges; e++) {
+                firstEdges[from[e] + 1]++;
+                firstEdges[to[e] + 1]++;
+            }
+            for (int n = 0; n < nodes; n++) {
+                firstEdges[n + 1] += firstEdges[n];
+            }
+            int[] next = Arrays.copyOf(firstEdges, nodes);
+            int[] targets = new int[edges * 2];
+            float[] metres = new float[edges * 2];
+            float[] seconds = new float[edges * 2];
+            byte[] kinds = new byte[edges * 2];
+            int[] reverse = new int[edges * 2];
+            for (int e = 0; e < edges; e++) {
+                float length = length(from[e], to[e], edgeKinds[e]);
+                float time = time(length, edgeKinds[e]);
+                int forward = next[from[e]]++;
+                int backward = next[to[e]]++;
+                targets[forward] = to[e];
+                targets[backward] = from[e];
+                reverse[forward] = backward;
+                reverse[backward] = forward;
+                metres[forward] = metres[backward] = length;
+                seconds[forward] = seconds[backward] = time;
+                kinds[forward] = kinds[backward] = edgeKinds[e];
+            }
+
+            // Each distinct string is stored once
+            Map<String, Integer> stringIds = new HashMap<>();
+            List<String> strings = new ArrayList<>();
+            int[] nameIds = new int[nodes];
+            int named = 0;
+            for (int n = 0; n < nodes; n++) {
+                nameIds[n] = names.get(n) == null ? -1 : intern(names.get(n), stringIds, strings);
+                named += names.get(n) == null ? 0 : 1;
+            }
+            int[] buildingNameIds = new int[buildingNames.size()];
+            for (int b = 0; b < buildingNameIds.length; b++) {
+                buildingNameIds[b] = intern(buildingNames.get(b), stringIds, strings);
+            }
+            int[] stringOffsets = new int[strings.size() + 1];
+            List<byte[]> encoded = new ArrayList<>();
+            for (int i = 0; i < strings.size(); i++) {
+                encoded.add(strings.get(i).getBytes(StandardCharsets.UTF_8));
+                stringOffsets[i + 1] = stringOffsets[i] + encoded.get(i).length;
+            }
+            byte[] stringBytes = new byte[stringOffsets[strings.size()]];
+            for (int i = 0; i < strings.size(); i++) {
+                System.arraycopy(encoded.get(i), 0, stringBytes, stringOffsets[i], encoded.get(i).length);
+            }
+
+            // At most half full; a later node with the same name replaces an earlier one
+            int nameSlots = Integer.highestOneBit(Math.max(1, named) * 2 - 1) * 2;
+            int[] nameIndex = new int[nameSlots * 2];
+            for (int slot = 0; slot < nameSlots; slot++) {
+                nameIndex[slot * 2 + 1] = -1;
+            }
+            for (int n = 0; n < nodes; n++) {
+                if (names.get(n) == null) {
+                    continue;
+                }
+                String key = names.get(n).toLowerCase(Locale.ROOT);
+                int hash = key.hashCode();
+                int slot = slot(hash, nameSlots);
+                while (nameIndex[slot * 2 + 1] >= 0
+                        && !key.equals(names.get(nameIndex[slot * 2 + 1]).toLowerCase(Locale.ROOT))) {
+                    slot = (slot + 1) & (nameSlots - 1);
+                }
+                nameIndex[slot * 2] = hash;
+                nameIndex[slot * 2 + 1] = n;
+            }
+
+            int[] nodeBuildings = Arrays.copyOf(buildings, nodes);
+            int[] nodeFloors = Arrays.copyOf(floors, nodes);
+            int linkFloor = Integer.MIN_VALUE;
+            boolean single = true;
+            byte[] deadEnds = new byte[buildingNames.size()];
+            int[] connections = new int[buildingNames.size()];
+            for (int n = 0; n < nodes; n++) {
+                for (int e = firstEdges[n]; e < firstEdges[n + 1]; e++) {
+                    int m = targets[e];
+                    if (nodeBuildings[n] == nodeBuildings[m]) {
+                        continue;
+                    }
+                    int floor = nodeBuildings[n] >= 0 ? nodeFloors[n] : nodeFloors[m];
+                    if (linkFloor == Integer.MIN_VALUE) {
+                        linkFloor = floor;
+                    } else if (linkFloor != floor) {
+                        single = false;
+                    }
+                    if (nodeBuildings[n] >= 0) {
+                        connections[nodeBuildings[n]]++;
+                    }
+                }
+            }
+            for (int b = 0; b < deadEnds.length; b++) {
+                deadEnds[b] = (byte) (connections[b] <= 1 ? 1 : 0);
+            }
+
+            Object[] sections = new Object[SECTION_COUNT];
+            sections[NODE_KINDS] = Arrays.copyOf(this.kinds, nodes);
+            sections[BUILDINGS] = nodeBuildings;
+            sections[FLOORS] = nodeFloors;
+            sections[XS] = Arrays.copyOf(xs, nodes);
+            sections[YS] = Arrays.copyOf(ys, nodes);
+            sections[NAMES] = nameIds;
+            sections[FIRST_EDGES] = firstEdges;
+            sections[TARGETS] = targets;
+            sections[METRES] = metres;
+            sections[SECONDS] = seconds;
+            sections[EDGE_KINDS] = kinds;
+            sections[REVERSE_EDGES] = reverse;
+            sections[BUILDING_NAMES] = buildingNameIds;
+            sections[DEAD_ENDS] = deadEnds;
+            sections[LANDMARK_SECONDS] = new float[0];
+            sections[NAME_INDEX] = nameIndex;
+            sections[STRING_OFFSETS] = stringOffsets;
+            sections[STRING_BYTES] = stringBytes;
+            int[] header = new int[H_SECTIONS / 4];
+            header[H_MAGIC / 4] = MAGIC;
+            header[H_VERSION / 4] = VERSION;
+            header[H_NODES / 4] = nodes;
+            header[H_EDGES / 4] = edges * 2;
+            header[H_BUILDINGS / 4] = buildingNames.size();
+            header[H_STRINGS / 4] = strings.size();
+            header[H_LINK_FLOOR / 4] = single ? linkFloor : Integer.MIN_VALUE;
+            header[H_NAME_SLOTS / 4] = nameSlots;
+
+            // The landmarks are found by routing over the graph without them
+            int landmarkCount = Math.min(LANDMARKS, nodes);
+            if (landmarkCount > 0) {
+                sections[LANDMARK_SECONDS] = new CampusGraph(encode(header, sections)).selectLandmarks(landmarkCount);
+                header[H_LANDMARKS / 4] = landmarkCount;
+            }
+            return new CampusGraph(encode(header, sections));
+        }
+
+        private static int intern(String value, Map<String, Integer> ids, List<String> strings) {
+            return ids.computeIfAbsent(value, v -> {
+                strings.add(v);
+                return strings.size() - 1;
+            });
+        }
+
+        // The header, then each section 8-byte aligned; sections are byte[], int[] or float[]
+        private static ByteBuffer encode(int[] header, Object[] sections) {
+            int[] offsets = new int[sections.length];
+            long size = HEADER_SIZE;
+            for (int i = 0; i < sections.length; i++) {
+                size = (size + 7) & ~7L;
+                offsets[i] = (int) size;
+                size += sections[i] instanceof byte[] ? ((byte[]) sections[i]).length
+                        : sections[i] instanceof int[] ? ((int[]) sections[i]).length * 4L
+                        : ((float[]) sections[i]).length * 4L;
+            }
+            if (size > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Campus map too large: " + size + " bytes");
+            }
+            ByteBuffer image = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < header.length; i++) {
+                image.putInt(i * 4, header[i]);
+            }
+            image.putInt(H_LENGTH, (int) size);
+            for (int i = 0; i < sections.length; i++) {
+                image.putInt(H_SECTIONS + i * 4, offsets[i]);
+                image.position(offsets[i]);
+                if (sections[i] instanceof byte[]) {
+                    image.put((byte[]) sections[i]);
+                } else if (sections[i] instanceof int[]) {
+                    image.asIntBuffer().put((int[]) sections[i]);
+                } else {
+                    image.asFloatBuffer().put((float[]) sections[i]);
+                }
+            }
+            image.clear();
+            return image;
+        }
+
+        private float length(int a, int b, byte kind) {
+            float dx = xs[a] - xs[b];
+            float dy = ys[a] - ys[b];
+            float flat = (float) Math.sqrt(dx * dx + dy * dy);
+            if (kind == STAIR_FLIGHT) {
+                // Two half flights with a landing, roughly
+                return flat + 2.5f * FLOOR_HEIGHT_METRES;
+            }
+            return kind == ELEVATOR_RIDE ? 0 : flat;
+        }
+
+        private static float time(float length, byte kind) {
+            switch (kind) {
+                case STAIR_FLIGHT:
+                    return STAIR_SECONDS_PER_FLOOR;
+                case ELEVATOR_RIDE:
+                    return ELEVATOR_SECONDS_PER_FLOOR;
+                case ELEVATOR_DOOR:
+                    return length / WALK_METRES_PER_SECOND + ELEVATOR_WAIT_SECONDS / 2;
+                default:
+                    return length / WALK_METRES_PER_SECOND;
+            }
+        }
+    }
+
+    // The campus used until a real map is supplied: two three-storey buildings
+    // joined by a path from the main entrance
+    static CampusGraph defaultCampus() {
+        Builder builder = new Builder();
+        int main = builder.addNode("Main Entrance", OUTDOOR, null, GROUND_FLOOR, 0, 0);
+        int junction = builder.addNode("Quad", OUTDOOR, null, GROUND_FLOOR, 40, 20);
+        builder.connect(main, junction, OUTSIDE);
+
+        int a = builder.addBuilding("Building A", 60, 0, 60, 3, 10);
+        builder.connect(junction, a, OUTSIDE);
+        builder.addRoom("101", "Building A", 1, 20, 6);
+        builder.addRoom("103", "Building A", 1, 40, -6);
+        builder.addRoom("201", "Building A", 2, 20, 6);
+        builder.addRoom("203", "Building A", 2, 50, -6);
+        builder.addRoom("301", "Building A", 3, 30, 6);
+
+        int b = builder.addBuilding("Building B", 140, 40, 60, 3, 10);
+        builder.connect(junction, b, OUTSIDE);
+        builder.addRoom("104", "Building B", 1, 20, -6);
+        builder.addRoom("102", "Building B", 2, 10, 6);
+        builder.addRoom("202", "Building B", 2, 40, -6);
+        builder.addRoom("302", "Building B", 3, 50, 6);
+        return builder.build();
+    }
+}
@@ -0,0 +1,192 @@
+package agents;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compiles a campus map source into the binary map that
+// NavigationAssistantAgent maps at startup:
+//
+//   java -cp lib/json.jar:out agents.CampusMapCompiler campus.json campus.map
+//
+// The source is either plain JSON in the campus's own metres
+//
+//   {"places":    [{"name": "Quad", "x": 40, "y": 20}],
+//    "buildings": [{"name": "Building A", "x": 60, "y": 0, "length": 60, "floors": 3, "spacing": 10,
+//                   "rooms": [{"number": "101", "floor": 1, "along": 20, "side": 6}]}],
+//    "paths":     [{"from": "Quad", "to": "Building A Entrance"}]}
+//
+// or a GeoJSON FeatureCollection in longitude and latitude, whose features
+// carry a "type" property: "place" and "building" Points (with the same
+// properties as above), "room" Points (number, building, floor; along and side
+// default to the offset from the building's entrance) and "path" LineStrings,
+// whose vertices join the named node within a couple of metres or become
+// outdoor path nodes. Every building gets an entrance named "<name> Entrance".
+final class CampusMapCompiler {
+    // Path vertices this close to a named node are that node
+    private static final double SNAP_METRES = 2;
+    private static final double METRES_PER_DEGREE_LATITUDE = 110574;
+    private static final double METRES_PER_DEGREE_LONGITUDE = 111320;
+
+    private final CampusGraph.Builder builder = new CampusGraph.Builder();
+    private final Map<String, Integer> nodes = new HashMap<>();
+    private final Map<String, double[]> entrances = new HashMap<>();
+    private final List<double[]> pathNodes = new ArrayList<>();
+
+    private CampusMapCompiler() {
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("Usage: CampusMapCompiler <source.json|source.geojson> <output.map>");
+            System.exit(2);
+        }
+        try {
+            long started = System.nanoTime();
+            CampusGraph graph = compile(new JSONObject(new String(Files.readAllBytes(Paths.get(args[0])), StandardCharsets.UTF_8)));
+            Path output = Paths.get(args[1]);
+            graph.write(output);
+            System.out.println("Compiled " + args[0] + " to " + output + ": " + graph.nodeCount() + " nodes, "
+                    + graph.edgeCount() + " edges, " + graph.byteSize() + " bytes in "
+                    + (System.nanoTime() - started) / 1000000 + " ms");
+        } catch (IOException | JSONException | IllegalArgumentException e) {
+            System.err.println("Cannot compile " + args[0] + ": " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    static CampusGraph compile(JSONObject source) {
+        CampusMapCompiler compiler = new CampusMapCompiler();
+        if ("FeatureCollection".equals(source.optString("type"))) {
+            compiler.readGeoJson(source.getJSONArray("features"));
+        } else {
+            compiler.readJson(source);
+        }
+        return compiler.builder.build();
+    }
+
+    private void readJson(JSONObject source) {
+        JSONArray places = source.optJSONArray("places");
+        for (int i = 0; places != null && i < places.length(); i++) {
+            JSONObject place = places.getJSONObject(i);
+            addPlace(place.getString("name"), place.getDouble("x"), place.getDouble("y"));
+        }
+        JSONArray buildings = source.optJSONArray("buildings");
+        for (int i = 0; buildings != null && i < buildings.length(); i++) {
+            JSONObject building = buildings.getJSONObject(i);
+            addBuilding(building, building.getDouble("x"), building.getDouble("y"));
+            JSONArray rooms = building.optJSONArray("rooms");
+            for (int j = 0; rooms != null && j < rooms.length(); j++) {
+                JSONObject room = rooms.getJSONObject(j);
+                builder.addRoom(room.getString("number"), building.getString("name"), room.getInt("floor"),
+                        (float) room.getDouble("along"), (float) room.optDouble("side", 6));
+            }
+        }
+        JSONArray paths = source.optJSONArray("paths");
+        for (int i = 0; paths != null && i < paths.length(); i++) {
+            JSONObject path = paths.getJSONObject(i);
+            builder.connect(node(path.getString("from")), node(path.getString("to")), CampusGraph.OUTSIDE);
+        }
+    }
+
+    private void readGeoJson(JSONArray features) {
+        double[] origin = null;
+        // Places and buildings first, so rooms and paths can refer to them
+        for (int pass = 0; pass < 3; pass++) {
+            for (int i = 0; i < features.length(); i++) {
+                JSONObject feature = features.getJSONObject(i);
+                JSONObject properties = feature.optJSONObject("properties");
+                JSONObject geometry = feature.optJSONObject("geometry");
+                if (properties == null || geometry == null) {
+                    continue;
+                }
+                String type = properties.optString("type");
+                JSONArray coordinates = geometry.getJSONArray("coordinates");
+                if (origin == null && "Point".equals(geometry.optString("type"))) {
+                    origin = new double[] { coordinates.getDouble(0), coordinates.getDouble(1) };
+                }
+                if (pass == 0 && "place".equals(type)) {
+                    double[] at = project(coordinates, origin);
+                    addPlace(properties.getString("name"), at[0], at[1]);
+                } else if (pass == 0 && "building".equals(type)) {
+                    double[] at = project(coordinates, origin);
+                    addBuilding(properties, at[0], at[1]);
+                } else if (pass == 1 && "room".equals(type)) {
+                    String building = properties.getString("building");
+                    double[] entrance = entrances.get(building);
+                    if (entrance == null) {
+                        throw new IllegalArgumentException("Room " + properties.optString("number") + " is in unknown building " + building);
+                    }
+                    double[] at = project(coordinates, origin);
+                    builder.addRoom(properties.getString("number"), building, properties.getInt("floor"),
+                            (float) properties.optDouble("along", at[0] - entrance[0]),
+                            (float) properties.optDouble("side", at[1] - entrance[1]));
+                } else if (pass == 2 && "path".equals(type) && origin != null) {
+                    int previous = -1;
+                    for (int j = 0; j < coordinates.length(); j++) {
+                        int vertex = pathNode(project(coordinates.getJSONArray(j), origin));
+                        if (previous >= 0 && previous != vertex) {
+                            builder.connect(previous, vertex, CampusGraph.OUTSIDE);
+                        }
+                        previous = vertex;
+                    }
+                }
+            }
+        }
+    }
+
+    // Metres east and north of the origin, by an equirectangular projection,
+    // which is accurate to well under a metre across a campus
+    private static double[] project(JSONArray lonLat, double[] origin) {
+        double longitude = lonLat.getDouble(0);
+        double latitude = lonLat.getDouble(1);
+        double x = (longitude - origin[0]) * METRES_PER_DEGREE_LONGITUDE * Math.cos(Math.toRadians(origin[1]));
+        double y = (latitude - origin[1]) * METRES_PER_DEGREE_LATITUDE;
+        return new double[] { x, y };
+    }
+
+    private void addPlace(String name, double x, double y) {
+        int node = builder.addNode(name, CampusGraph.OUTDOOR, null, CampusGraph.GROUND_FLOOR, (float) x, (float) y);
+        nodes.put(name.toLowerCase(), node);
+        pathNodes.add(new double[] { x, y, node });
+    }
+
+    private void addBuilding(JSONObject building, double x, double y) {
+        String name = building.getString("name");
+        int entrance = builder.addBuilding(name, (float) x, (float) y, (float) building.getDouble("length"),
+                building.getInt("floors"), (float) building.optDouble("spacing", 10));
+        nodes.put((name + " Entrance").toLowerCase(), entrance);
+        entrances.put(name, new double[] { x, y });
+        pathNodes.add(new double[] { x, y, entrance });
+    }
+
+    private int node(String name) {
+        Integer node = nodes.get(name.toLowerCase());
+        if (node == null) {
+            throw new IllegalArgumentException("Path refers to unknown place " + name);
+        }
+        return node;
+    }
+
+    // The place, entrance or earlier path vertex at this point, or a new path vertex
+    private int pathNode(double[] at) {
+        for (double[] known : pathNodes) {
+            if (Math.hypot(known[0] - at[0], known[1] - at[1]) <= SNAP_METRES) {
+                return (int) known[2];
+            }
+        }
+        int node = builder.addNode(null, CampusGraph.OUTDOOR, null, CampusGraph.GROUND_FLOOR, (float) at[0], (float) at[1]);
+        pathNodes.add(new double[] { at[0], at[1], node });
+        return node;
+    }
+}
@@ -0,0 +1,123 @@
+package agents;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+// Live conditions on the edges of a CampusGraph: each edge's traversal time is
+// its base time times a slowdown of at least 1 (crowding, a slow elevator
+// queue), or infinite while it is closed. Slowdowns never go below 1, so the
+// graph's lower bounds hold under any conditions. Immutable: an Update copies
+// the factors and yields the next version, so a search or a background repair
+// keeps seeing the conditions it started with. Both directions of a connection
+// always change together.
+final class EdgeConditions {
+    final long version;
+    // Slowdown per edge, +infinity when closed; null while every edge is normal
+    private final float[] factors;
+    private final int closedCount;
+
+    private EdgeConditions(long version, float[] factors, int closedCount) {
+        this.version = version;
+        this.factors = factors;
+        this.closedCount = closedCount;
+    }
+
+    // Everything open at normal speed
+    static EdgeConditions open(CampusGraph graph) {
+        return new EdgeConditions(1, null, 0);
+    }
+
+    boolean isClosed(int edge) {
+        return factors != null && factors[edge] == Float.POSITIVE_INFINITY;
+    }
+
+    float slowdown(int edge) {
+        return factors == null ? 1 : factors[edge];
+    }
+
+    // Number of closed edges, counting each direction
+    int closedCount() {
+        return closedCount;
+    }
+
+    // Seconds to traverse the edge under these conditions (null for normal ones)
+    // with the profile, or +infinity if it is closed or the profile may not use it
+    static float seconds(CampusGraph graph, int edge, AccessProfile profile, EdgeConditions conditions) {
+        if (!profile.allows(graph.edgeKind(edge))) {
+            return Float.POSITIVE_INFINITY;
+        }
+        if (conditions == null || conditions.factors == null) {
+            return graph.seconds(edge);
+        }
+        float factor = conditions.factors[edge];
+        // Checked separately since a zero-length edge (an entrance onto its corridor) times infinity is NaN
+        return factor == Float.POSITIVE_INFINITY ? factor : graph.seconds(edge) * factor;
+    }
+
+    Update update(CampusGraph graph) {
+        return new Update(graph, this);
+    }
+
+    // A batch of changes, applied together as the next version
+    static final class Update {
+        private final CampusGraph graph;
+        private final EdgeConditions base;
+        private float[] factors;
+        private final BitSet touched = new BitSet();
+
+        private Update(CampusGraph graph, EdgeConditions base) {
+            this.graph = graph;
+            this.base = base;
+        }
+
+        // Closes the edge and its reverse
+        Update close(int edge) {
+            return set(edge, Float.POSITIVE_INFINITY);
+        }
+
+        // Opens the edge and its reverse at the given slowdown, clamped to at least 1
+        Update open(int edge, float slowdown) {
+            return set(edge, Math.max(1, slowdown));
+        }
+
+        private Update set(int edge, float factor) {
+            for (int e : new int[] { edge, graph.reverse(edge) }) {
+                float current = factors != null ? factors[e] : base.slowdown(e);
+                if (current == factor) {
+                    continue;
+                }
+                if (factors == null) {
+                    factors = new float[graph.edgeCount()];
+                    if (base.factors != null) {
+                        System.arraycopy(base.factors, 0, factors, 0, factors.length);
+                    } else {
+                        Arrays.fill(factors, 1);
+                    }
+                }
+                touched.set(e);
+                factors[e] = factor;
+            }
+            return this;
+        }
+
+        // The next version, or the base if nothing changed
+        EdgeConditions apply() {
+            if (changedEdges().length == 0) {
+                return base;
+            }
+            int closed = 0;
+            for (float factor : factors) {
+                if (factor == Float.POSITIVE_INFINITY) {
+                    closed++;
+                }
+            }
+            return new EdgeConditions(base.version + 1, factors, closed);
+        }
+
+        // Edges whose conditions now differ from the base, both directions listed
+        int[] changedEdges() {
+            // An edge changed and then changed back is no change
+            return touched.stream().filter(e -> factors[e] != base.slowdown(e)).toArray();
+        }
+    }
+}
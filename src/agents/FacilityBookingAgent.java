@@ -1,8 +1,11 @@
 package agents;
 
 import jade.core.Agent;
+import jade.core.MessageQueue;
 import jade.core.AID;
+import jade.core.behaviours.Behaviour;
 import jade.core.behaviours.CyclicBehaviour;
+import jade.core.behaviours.TickerBehaviour;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
 import jade.domain.DFService;
@@ -13,25 +16,73 @@ import org.json.JSONArray;
 
 import java.sql.*;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
 
 public class FacilityBookingAgent extends Agent {
-    private Connection connection;
-    private AID userManagementAgent;
-    private AID notificationAgent;
+    // How often the in-memory availability index is checked against SQLite
+    private static final long INDEX_CHECK_PERIOD_MS = 10 * 60 * 1000;
+    private static final int MAX_BOOKING_MINUTES = 120;
+    private static final long PIPELINE_STATS_PERIOD_MS = 60 * 1000;
+    // Protocol used by SUBSCRIBE and the matching CANCEL for availability subscriptions
+    static final String SUBSCRIPTION_PROTOCOL = "availability-subscription";
+    // Abort messages raised by the booking triggers
+    private static final String ROOM_CONFLICT = "room_conflict";
+    private static final String STUDENT_HAS_BOOKING = "student_has_booking";
+    private static final int MAX_SUBSCRIPTION_DAYS = 92;
+    private static final int MAX_RECURRING_OCCURRENCES = 200;
+    private static final long SUBSCRIPTION_EXPIRY_PERIOD_MS = 60 * 60 * 1000;
+
+    private CampusDatabase database;
+    // This agent handles rooms with shardFor(room, shardCount) == shardId
+    private int shardId;
+    private int shardCount = 1;
+    private volatile RoomAvailabilityIndex availabilityIndex;
+    private GroupCommitPipeline writePipeline;
+    private final AvailabilitySubscriptions subscriptions = new AvailabilitySubscriptions();
+    // Only set in parallel execution mode; otherwise everything runs on the agent thread
+    private RoomStripedExecutor workers;
+    private ScheduledExecutorService commitScheduler;
+    // Notification providers, followed through a DF subscription
+    private ServiceRegistry serviceRegistry;
+
+    // New requests are refused rather than queued when the mailbox backs up
+    @Override
+    protected MessageQueue createMessageQueue() {
+        return MailboxGuard.install(this, super.createMessageQueue());
+    }
 
     @Override
     protected void setup() {
         try {
-            // Connect to SQLite database
-            connection = DriverManager.getConnection("jdbc:sqlite:smartcampus.db");
-            System.out.println("Connected to SQLite database.");
+            shardCount = Math.max(1, intArgument("shards", 1));
+            shardId = intArgument("shard", 0);
+
+            // Connect to the shared SQLite connection pool
+            database = CampusDatabase.acquire();
 
             // Initialize database schema and populate initial data
             initializeDatabase();
 
+            // Build the availability index from the shared room catalog and the bookings
+            try (CampusDatabase.PooledConnection db = database.reader()) {
+                RoomCatalog.Snapshot catalog = RoomCatalog.shared().loadOnce(db.connection());
+                availabilityIndex = RoomAvailabilityIndex.load(db.connection(), catalog.rooms(), FacilityBookingAgent.this::ownsRoom);
+            }
+
+            // Booking and cancel writes are committed in batches: every batchWindowMs or maxBatchSize writes
+            long batchWindowMs = Math.max(1, intArgument("batchWindowMs", 5));
+            writePipeline = new GroupCommitPipeline(database, intArgument("maxBatchSize", 64));
+
             // Register the agent's service with the Directory Facilitator (DF)
             DFAgentDescription dfd = new DFAgentDescription();
             dfd.setName(getAID());
@@ -39,56 +90,100 @@ public class FacilityBookingAgent extends Agent {
             ServiceDescription sd = new ServiceDescription();
             sd.setType("facility-booking");
             sd.setName("smart-campus-room-booking");
+            sd.addProperties(new Property("shard", String.valueOf(shardId)));
+            sd.addProperties(new Property("shards", String.valueOf(shardCount)));
             dfd.addServices(sd);
 
             DFService.register(this, dfd);
 
-            // Find the UserManagementAgent
-            try {
-                DFAgentDescription template = new DFAgentDescription();
-                ServiceDescription userSD = new ServiceDescription();
-                userSD.setType("user-management");
-                template.addServices(userSD);
-
-                DFAgentDescription[] result = DFService.search(this, template);
-                if (result.length > 0) {
-                    userManagementAgent = result[0].getName();
-                    System.out.println("Found UserManagementAgent: " + userManagementAgent.getName());
-                } else {
-                    System.out.println("UserManagementAgent not found");
-                }
-            } catch (FIPAException e) {
-                e.printStackTrace();
-            }
-
-            // Find the NotificationAgent
-            try {
-                DFAgentDescription template = new DFAgentDescription();
-                ServiceDescription notifSD = new ServiceDescription();
-                notifSD.setType("notification");
-                template.addServices(notifSD);
-
-                DFAgentDescription[] result = DFService.search(this, template);
-                if (result.length > 0) {
-                    notificationAgent = result[0].getName();
-                    System.out.println("Found NotificationAgent: " + notificationAgent.getName());
-                } else {
-                    System.out.println("NotificationAgent not found");
-                }
-            } catch (FIPAException e) {
-                e.printStackTrace();
-            }
+            serviceRegistry = new ServiceRegistry(this);
+            serviceRegistry.track("notification", ServiceRegistry.Strategy.LEAST_LOADED);
+            addBehaviour(serviceRegistry.behaviour());
 
             // Add behaviors for room availability, booking requests, and cancellations
             addBehaviour(new RoomAvailabilityBehavior());
             addBehaviour(new BookingRequestBehavior());
             addBehaviour(new CancelBookingBehavior());
+            addBehaviour(new IndexConsistencyBehavior());
+            addBehaviour(new SubscriptionBehavior());
+            addBehaviour(new DeliveryFailureBehavior());
+            addBehaviour(new SubscriptionExpiryBehavior());
+
+            // executionMode=parallel moves request handling and commits off the agent thread
+            if ("parallel".equalsIgnoreCase(stringArgument("executionMode", "sequential"))) {
+                int threads = intArgument("workerThreads", Runtime.getRuntime().availableProcessors());
+                workers = new RoomStripedExecutor(getLocalName(), threads);
+                commitScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, getLocalName() + "-group-commit");
+                    t.setDaemon(true);
+                    return t;
+                });
+                commitScheduler.scheduleWithFixedDelay(writePipeline::flush,
+                        batchWindowMs, batchWindowMs, TimeUnit.MILLISECONDS);
+                System.out.println("FacilityBookingAgent running in parallel mode with " + workers.size() + " workers");
+            }
+            // In parallel mode the behaviour only reports statistics
+            addBehaviour(new GroupCommitBehavior(commitScheduler == null ? batchWindowMs : PIPELINE_STATS_PERIOD_MS));
 
         } catch (SQLException | FIPAException e) {
             e.printStackTrace();
         }
     }
 
+    // Reads "name=value" from the agent's start-up arguments
+    private String stringArgument(String name, String defaultValue) {
+        Object[] args = getArguments();
+        if (args != null) {
+            for (Object arg : args) {
+                String text = String.valueOf(arg);
+                if (text.startsWith(name + "=")) {
+                    return text.substring(name.length() + 1).trim();
+                }
+            }
+        }
+        return defaultValue;
+    }
+
+    private int intArgument(String name, int defaultValue) {
+        String value = stringArgument(name, null);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                System.err.println("Ignoring invalid argument: " + name + "=" + value);
+            }
+        }
+        return defaultValue;
+    }
+
+    static int shardFor(String roomNumber, int shardCount) {
+        return Math.floorMod(roomNumber.hashCode(), shardCount);
+    }
+
+    private boolean ownsRoom(String roomNumber) {
+        return shardFor(roomNumber, shardCount) == shardId;
+    }
+
+    // Only reachable when a message bypasses the router and lands on the wrong shard
+    private boolean refuseForeignRoom(ACLMessage reply, String roomNumber) {
+        if (ownsRoom(roomNumber)) {
+            return false;
+        }
+        reply.setPerformative(ACLMessage.REFUSE);
+        reply.setContent("Room " + roomNumber + " is handled by booking shard " + shardFor(roomNumber, shardCount) + ".");
+        send(reply);
+        return true;
+    }
+
+    // Runs the task on the worker owning this room, or inline on the agent thread in sequential mode
+    private void dispatch(String roomNumber, Runnable task) {
+        if (workers == null) {
+            task.run();
+        } else {
+            workers.execute(roomNumber, task);
+        }
+    }
+
     private boolean isFutureDate(String date) {
         try {
             LocalDate bookingDate = LocalDate.parse(date, DateTimeFormatter.ISO_LOCAL_DATE);
@@ -100,7 +195,10 @@ public class FacilityBookingAgent extends Agent {
     }
 
     private void initializeDatabase() throws SQLException {
-        try (Statement stmt = connection.createStatement()) {
+        try (CampusDatabase.PooledConnection db = database.writer();
+             Statement stmt = db.connection().createStatement()) {
+            Connection connection = db.connection();
+
             // Create rooms table
             String createRoomsTable = "CREATE TABLE IF NOT EXISTS rooms (" +
                     "room_number TEXT PRIMARY KEY, " +
@@ -115,35 +213,121 @@ public class FacilityBookingAgent extends Agent {
                     "room_number TEXT, " +
                     "date TEXT, " +
                     "time_slot TEXT, " +
+                    "start_min INTEGER, " +
+                    "end_min INTEGER, " +
                     "student_id TEXT, " +
                     "FOREIGN KEY(room_number) REFERENCES rooms(room_number))";
             stmt.executeUpdate(createBookingsTable);
 
+            // Older databases only have the time_slot string
+            migrateBookingTimeRanges(connection, stmt);
+
+            // Conflict checks scan (room, date) by start time
+            stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_bookings_room_date_start ON bookings(room_number, date, start_min)");
+            createBookingConstraints(stmt);
+
             // Prepopulate rooms if not already populated
             String checkRooms = "SELECT COUNT(*) FROM rooms";
             try (ResultSet rs = stmt.executeQuery(checkRooms)) {
                 if (rs.next() && rs.getInt(1) == 0) {
                     System.out.println("Populating rooms with predefined data...");
-                    populateRooms();
+                    populateRooms(connection);
+                }
+            }
+        }
+    }
+
+    // The booking rules live in the schema so that every writer is held to them and a
+    // booking is a single INSERT: a unique (student_id, date) index for one booking per
+    // day, and a trigger acting as an exclusion constraint on overlapping room slots.
+    private void createBookingConstraints(Statement stmt) throws SQLException {
+        stmt.executeUpdate("CREATE TRIGGER IF NOT EXISTS bookings_no_overlap BEFORE INSERT ON bookings " +
+                "WHEN EXISTS (SELECT 1 FROM bookings WHERE room_number = NEW.room_number AND date = NEW.date " +
+                "AND start_min < NEW.end_min AND end_min > NEW.start_min) " +
+                "BEGIN SELECT RAISE(ABORT, '" + ROOM_CONFLICT + "'); END");
+        try {
+            stmt.executeUpdate("CREATE UNIQUE INDEX IF NOT EXISTS ux_bookings_student_date ON bookings(student_id, date)");
+            stmt.executeUpdate("DROP INDEX IF EXISTS idx_bookings_student_date");
+        } catch (SQLException e) {
+            // Older data may already hold two bookings for one student and day
+            System.err.println("Cannot create unique booking index, falling back to a trigger: " + e.getMessage());
+            stmt.executeUpdate("CREATE INDEX IF NOT EXISTS idx_bookings_student_date ON bookings(student_id, date)");
+            stmt.executeUpdate("CREATE TRIGGER IF NOT EXISTS bookings_one_per_day BEFORE INSERT ON bookings " +
+                    "WHEN EXISTS (SELECT 1 FROM bookings WHERE student_id = NEW.student_id AND date = NEW.date) " +
+                    "BEGIN SELECT RAISE(ABORT, '" + STUDENT_HAS_BOOKING + "'); END");
+        }
+    }
+
+    // Maps the constraint that aborted a booking INSERT to the reason given to the student
+    static String bookingRejection(SQLException e) {
+        String message = String.valueOf(e.getMessage());
+        if (message.contains(ROOM_CONFLICT)) {
+            return "Room is already booked for the given date and time slot.";
+        }
+        if (message.contains(STUDENT_HAS_BOOKING) || message.contains("bookings.student_id")) {
+            return "You already have an active booking. Cancel it before making a new one.";
+        }
+        return null;
+    }
+
+    private void migrateBookingTimeRanges(Connection connection, Statement stmt) throws SQLException {
+        boolean hasStartMin = false;
+        try (ResultSet rs = stmt.executeQuery("PRAGMA table_info(bookings)")) {
+            while (rs.next()) {
+                if ("start_min".equalsIgnoreCase(rs.getString("name"))) {
+                    hasStartMin = true;
+                }
+            }
+        }
+        if (!hasStartMin) {
+            System.out.println("Adding start_min/end_min columns to bookings...");
+            stmt.executeUpdate("ALTER TABLE bookings ADD COLUMN start_min INTEGER");
+            stmt.executeUpdate("ALTER TABLE bookings ADD COLUMN end_min INTEGER");
+        }
+
+        // Backfill rows written before the columns existed
+        String selectLegacy = "SELECT id, time_slot FROM bookings WHERE start_min IS NULL OR end_min IS NULL";
+        String updateRange = "UPDATE bookings SET start_min = ?, end_min = ? WHERE id = ?";
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (ResultSet rs = stmt.executeQuery(selectLegacy);
+             PreparedStatement update = connection.prepareStatement(updateRange)) {
+            int migrated = 0;
+            while (rs.next()) {
+                try {
+                    TimeSlot slot = TimeSlot.parse(rs.getString("time_slot"));
+                    update.setInt(1, slot.startMin);
+                    update.setInt(2, slot.endMin);
+                    update.setLong(3, rs.getLong("id"));
+                    update.addBatch();
+                    migrated++;
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Cannot migrate booking " + rs.getLong("id") + ": " + e.getMessage());
                 }
             }
+            update.executeBatch();
+            connection.commit();
+            if (migrated > 0) {
+                System.out.println("Migrated " + migrated + " bookings to start/end minutes.");
+            }
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
         }
     }
 
-    private void populateRooms() throws SQLException {
+    private void populateRooms(Connection connection) throws SQLException {
         String insertRoomSQL = "INSERT INTO rooms (room_number, capacity, location, floor) VALUES (?, ?, ?, ?)";
         try (PreparedStatement pstmt = connection.prepareStatement(insertRoomSQL)) {
-            pstmt.setString(1, "101");
-            pstmt.setInt(2, 4);
-            pstmt.setString(3, "Building A");
-            pstmt.setInt(4, 1);
-            pstmt.executeUpdate();
-
-            pstmt.setString(1, "102");
-            pstmt.setInt(2, 10);
-            pstmt.setString(3, "Building B");
-            pstmt.setInt(4, 2);
-            pstmt.executeUpdate();
+            for (RoomCatalog.Room room : RoomCatalog.SEED_ROOMS) {
+                pstmt.setString(1, room.number);
+                pstmt.setInt(2, room.capacity);
+                pstmt.setString(3, room.building);
+                pstmt.setInt(4, room.floor);
+                pstmt.executeUpdate();
+            }
         }
     }
 
@@ -155,37 +339,13 @@ public class FacilityBookingAgent extends Agent {
 
             if (msg != null) {
                 try {
-                    JSONObject request = new JSONObject(msg.getContent());
-                    String date = request.getString("date");
-                    String timeSlot = request.getString("timeSlot");
-                    int capacity = request.optInt("capacity", 0);
-
-                    JSONArray availableRooms = new JSONArray();
-
-                    String query = "SELECT * FROM rooms r WHERE r.capacity >= ? " +
-                            "AND NOT EXISTS (SELECT 1 FROM bookings b WHERE b.room_number = r.room_number " +
-                            "AND b.date = ? AND b.time_slot = ?)";
-                    try (PreparedStatement pstmt = connection.prepareStatement(query)) {
-                        pstmt.setInt(1, capacity);
-                        pstmt.setString(2, date);
-                        pstmt.setString(3, timeSlot);
-                        try (ResultSet rs = pstmt.executeQuery()) {
-                            while (rs.next()) {
-                                JSONObject room = new JSONObject();
-                                room.put("roomNumber", rs.getString("room_number"));
-                                room.put("capacity", rs.getInt("capacity"));
-                                room.put("location", rs.getString("location"));
-                                room.put("floor", rs.getInt("floor"));
-                                availableRooms.put(room);
-                            }
-                        }
+                    JSONObject request = MessageCodecs.readObject(msg);
+                    if ("BULK_AVAILABILITY".equals(request.optString("type"))) {
+                        addBehaviour(new BulkAvailabilityBehavior(msg, request));
+                    } else {
+                        // Not tied to a room: any worker may answer it
+                        dispatch(null, () -> handle(msg, request));
                     }
-
-                    ACLMessage reply = msg.createReply();
-                    reply.setPerformative(ACLMessage.INFORM);
-                    reply.setContent(availableRooms.toString());
-                    send(reply);
-
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
@@ -193,6 +353,202 @@ public class FacilityBookingAgent extends Agent {
                 block();
             }
         }
+
+        private void handle(ACLMessage msg, JSONObject request) {
+            try {
+                String date = request.getString("date");
+                String timeSlot = request.getString("timeSlot");
+                int capacity = request.optInt("capacity", 0);
+
+                ACLMessage reply = msg.createReply();
+                TimeSlot slot;
+                try {
+                    slot = TimeSlot.parse(timeSlot);
+                } catch (IllegalArgumentException e) {
+                    reply.setPerformative(ACLMessage.FAILURE);
+                    reply.setContent("Invalid time slot format. Use HH:MM-HH:MM.");
+                    send(reply);
+                    return;
+                }
+
+                // Answered entirely from the in-memory index
+                JSONArray availableRooms = new JSONArray();
+                for (RoomCatalog.Room r : availabilityIndex.findAvailable(date, slot, capacity)) {
+                    JSONObject room = new JSONObject();
+                    room.put("roomNumber", r.number);
+                    room.put("capacity", r.capacity);
+                    room.put("location", r.building);
+                    room.put("floor", r.floor);
+                    availableRooms.put(room);
+                }
+
+                reply.setPerformative(ACLMessage.INFORM);
+                MessageCodecs.writeReply(msg, reply, availableRooms);
+                send(reply);
+
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Answers a date range x slot list grid in one pass over the index, one date per
+    // action(), streaming INFORM chunks of at most chunkSize free rooms and then a
+    // terminator {"done": true} that carries the matching rooms' details.
+    private class BulkAvailabilityBehavior extends Behaviour {
+        private static final int MAX_DAYS = 92;
+        private static final int DEFAULT_CHUNK_SIZE = 200;
+
+        private final ACLMessage request;
+        private final JSONObject query;
+        private List<RoomCatalog.Room> rooms;
+        private TimeSlot[] slots;
+        private String[] slotNames;
+        private LocalDate date;
+        private LocalDate endDate;
+        private int chunkSize;
+
+        private JSONArray chunk = new JSONArray();
+        private int chunkEntries;
+        private int chunksSent;
+        private long totalEntries;
+        private boolean finished;
+
+        BulkAvailabilityBehavior(ACLMessage request, JSONObject query) {
+            super(FacilityBookingAgent.this);
+            this.request = request;
+            this.query = query;
+        }
+
+        @Override
+        public void onStart() {
+            try {
+                date = LocalDate.parse(query.getString("startDate"), DateTimeFormatter.ISO_LOCAL_DATE);
+                endDate = LocalDate.parse(query.getString("endDate"), DateTimeFormatter.ISO_LOCAL_DATE);
+                if (endDate.isBefore(date) || date.plusDays(MAX_DAYS).isBefore(endDate)) {
+                    fail("Invalid date range. At most " + MAX_DAYS + " days can be queried at once.");
+                    return;
+                }
+
+                JSONArray requestedSlots = query.getJSONArray("timeSlots");
+                slots = new TimeSlot[requestedSlots.length()];
+                slotNames = new String[slots.length];
+                for (int i = 0; i < slots.length; i++) {
+                    slots[i] = TimeSlot.parse(requestedSlots.getString(i));
+                    slotNames[i] = slots[i].toString();
+                }
+                chunkSize = Math.max(1, query.optInt("chunkSize", DEFAULT_CHUNK_SIZE));
+
+                // Room filters are applied once, not per date
+                int capacity = query.optInt("capacity", 0);
+                String location = query.optString("location", null);
+                Integer floor = query.has("floor") ? query.getInt("floor") : null;
+                rooms = availabilityIndex.rooms().select(location, floor, capacity);
+            } catch (DateTimeParseException e) {
+                fail("Invalid date format. Use YYYY-MM-DD.");
+            } catch (IllegalArgumentException e) {
+                fail("Invalid time slot format. Use HH:MM-HH:MM.");
+            } catch (Exception e) {
+                fail("Invalid bulk availability query: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void action() {
+            if (finished) {
+                return;
+            }
+
+            String day = date.toString();
+            boolean[] free = new boolean[slots.length];
+            List<List<String>> freeRooms = new ArrayList<>(slots.length);
+            for (int i = 0; i < slots.length; i++) {
+                freeRooms.add(new ArrayList<>());
+            }
+            for (RoomCatalog.Room room : rooms) {
+                availabilityIndex.checkSlots(room.number, day, slots, free);
+                for (int i = 0; i < slots.length; i++) {
+                    if (free[i]) {
+                        freeRooms.get(i).add(room.number);
+                    }
+                }
+            }
+
+            for (int i = 0; i < slots.length; i++) {
+                List<String> available = freeRooms.get(i);
+                int from = 0;
+                // A large cell is split across chunks so no message exceeds chunkSize rooms
+                do {
+                    int to = Math.min(available.size(), from + (chunkSize - chunkEntries));
+                    JSONObject cell = new JSONObject();
+                    cell.put("date", day);
+                    cell.put("timeSlot", slotNames[i]);
+                    cell.put("rooms", new JSONArray(available.subList(from, to)));
+                    chunk.put(cell);
+                    chunkEntries += Math.max(1, to - from); // empty cells still take space
+                    totalEntries += to - from;
+                    from = to;
+                    if (chunkEntries >= chunkSize) {
+                        sendChunk();
+                    }
+                } while (from < available.size());
+            }
+
+            date = date.plusDays(1);
+            if (date.isAfter(endDate)) {
+                if (chunk.length() > 0) {
+                    sendChunk();
+                }
+                sendTerminator();
+            }
+        }
+
+        private void sendChunk() {
+            JSONObject content = new JSONObject();
+            content.put("chunk", chunksSent++);
+            content.put("cells", chunk);
+            ACLMessage reply = request.createReply();
+            reply.setPerformative(ACLMessage.INFORM);
+            MessageCodecs.writeReply(request, reply, content);
+            send(reply);
+            chunk = new JSONArray();
+            chunkEntries = 0;
+        }
+
+        private void sendTerminator() {
+            JSONArray roomDetails = new JSONArray();
+            for (RoomCatalog.Room r : rooms) {
+                JSONObject room = new JSONObject();
+                room.put("roomNumber", r.number);
+                room.put("capacity", r.capacity);
+                room.put("location", r.building);
+                room.put("floor", r.floor);
+                roomDetails.put(room);
+            }
+            JSONObject content = new JSONObject();
+            content.put("done", true);
+            content.put("chunks", chunksSent);
+            content.put("entries", totalEntries);
+            content.put("rooms", roomDetails);
+            ACLMessage reply = request.createReply();
+            reply.setPerformative(ACLMessage.INFORM);
+            MessageCodecs.writeReply(request, reply, content);
+            send(reply);
+            finished = true;
+        }
+
+        private void fail(String reason) {
+            ACLMessage reply = request.createReply();
+            reply.setPerformative(ACLMessage.FAILURE);
+            reply.setContent(reason);
+            send(reply);
+            finished = true;
+        }
+
+        @Override
+        public boolean done() {
+            return finished;
+        }
     }
 
     private class BookingRequestBehavior extends CyclicBehaviour {
@@ -203,72 +559,311 @@ public class FacilityBookingAgent extends Agent {
 
             if (msg != null) {
                 try {
-                    JSONObject request = new JSONObject(msg.getContent());
+                    JSONObject request = MessageCodecs.readObject(msg);
                     String roomNumber = request.getString("roomNumber");
-                    String date = request.getString("date");
-                    String timeSlot = request.getString("timeSlot"); // Format: "HH:MM-HH:MM"
-                    String studentId = request.getString("studentId");
+                    // Requests for the same room stay in arrival order on one worker
+                    if ("RECURRING".equals(request.optString("type"))) {
+                        dispatch(roomNumber, () -> handleRecurring(msg, request, roomNumber));
+                    } else {
+                        dispatch(roomNumber, () -> handle(msg, request, roomNumber));
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            } else {
+                block();
+            }
+        }
 
-                    ACLMessage reply = msg.createReply();
+        private void handle(ACLMessage msg, JSONObject request, String roomNumber) {
+            try {
+                String date = request.getString("date");
+                String timeSlot = request.getString("timeSlot"); // Format: "HH:MM-HH:MM"
+                String studentId = request.getString("studentId");
 
-                    // Validate booking date
-                    if (!isFutureDate(date)) {
-                        reply.setPerformative(ACLMessage.REJECT_PROPOSAL);
-                        reply.setContent("Invalid date. Booking date must be in the future.");
-                        send(reply);
-                        return;
-                    }
+                ACLMessage reply = msg.createReply();
+                if (refuseForeignRoom(reply, roomNumber)) {
+                    return;
+                }
 
-                    // Validate booking duration
-                    if (!isValidTimeSlot(timeSlot)) {
-                        reply.setPerformative(ACLMessage.REJECT_PROPOSAL);
-                        reply.setContent("Invalid time slot. Maximum booking duration is 2 hours.");
-                        send(reply);
-                        return;
-                    }
+                // Validate booking date
+                if (!isFutureDate(date)) {
+                    reply.setPerformative(ACLMessage.REJECT_PROPOSAL);
+                    reply.setContent("Invalid date. Booking date must be in the future.");
+                    send(reply);
+                    return;
+                }
 
-                    // Check if the student already has an active booking
-                    if (hasActiveBooking(studentId, date)) {
-                        reply.setPerformative(ACLMessage.REJECT_PROPOSAL);
-                        reply.setContent("You already have an active booking. Cancel it before making a new one.");
-                        send(reply);
-                        return;
-                    }
+                // Validate booking duration
+                TimeSlot slot = parseBookableSlot(timeSlot);
+                if (slot == null) {
+                    reply.setPerformative(ACLMessage.REJECT_PROPOSAL);
+                    reply.setContent("Invalid time slot. Maximum booking duration is 2 hours.");
+                    send(reply);
+                    return;
+                }
 
-                    // Check room availability
-                    String checkQuery = "SELECT COUNT(*) FROM bookings WHERE room_number = ? AND date = ? AND time_slot = ?";
-                    try (PreparedStatement pstmt = connection.prepareStatement(checkQuery)) {
-                        pstmt.setString(1, roomNumber);
-                        pstmt.setString(2, date);
-                        pstmt.setString(3, timeSlot);
-                        try (ResultSet rs = pstmt.executeQuery()) {
-                            rs.next();
-                            if (rs.getInt(1) > 0) {
-                                reply.setPerformative(ACLMessage.REJECT_PROPOSAL);
-                                reply.setContent("Room is already booked for the given date and time slot.");
-                                send(reply);
-                                return;
-                            }
-                        }
+                // The database checks and the insert run in the next group commit
+                writePipeline.submit(new BookingWrite(reply, roomNumber, date, slot, studentId));
+
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        // {"type": "RECURRING", "roomNumber", "timeSlot", "studentId", "startDate",
+        //  "frequency": "WEEKLY"|"DAILY", "interval", "daysOfWeek", "until"|"count",
+        //  "mode": "ALL_OR_NOTHING"|"BEST_EFFORT"}
+        private void handleRecurring(ACLMessage msg, JSONObject request, String roomNumber) {
+            try {
+                ACLMessage reply = msg.createReply();
+                if (refuseForeignRoom(reply, roomNumber)) {
+                    return;
+                }
+
+                TimeSlot slot = parseBookableSlot(request.getString("timeSlot"));
+                if (slot == null) {
+                    reply.setPerformative(ACLMessage.REJECT_PROPOSAL);
+                    reply.setContent("Invalid time slot. Maximum booking duration is 2 hours.");
+                    send(reply);
+                    return;
+                }
+
+                RecurrenceRule rule;
+                List<LocalDate> dates;
+                try {
+                    rule = RecurrenceRule.fromJson(request);
+                    dates = rule.expand(MAX_RECURRING_OCCURRENCES);
+                } catch (IllegalArgumentException e) {
+                    reply.setPerformative(ACLMessage.REJECT_PROPOSAL);
+                    reply.setContent(e.getMessage());
+                    send(reply);
+                    return;
+                }
+                if (!isFutureDate(rule.startDate.toString())) {
+                    reply.setPerformative(ACLMessage.REJECT_PROPOSAL);
+                    reply.setContent("Invalid date. Booking date must be in the future.");
+                    send(reply);
+                    return;
+                }
+                boolean allOrNothing = !"BEST_EFFORT".equalsIgnoreCase(request.optString("mode", "ALL_OR_NOTHING"));
+
+                // One pass over the index weeds out known conflicts before touching the database
+                RecurringBookingWrite write = new RecurringBookingWrite(msg, reply, roomNumber, slot,
+                        request.getString("studentId"), rule, allOrNothing);
+                for (LocalDate date : dates) {
+                    String day = date.toString();
+                    if (availabilityIndex.isFree(roomNumber, day, slot)) {
+                        write.candidates.add(day);
+                    } else {
+                        write.conflict(day, "Room is already booked.");
                     }
+                }
+                if (write.candidates.isEmpty() || (allOrNothing && !write.conflicts.isEmpty())) {
+                    write.completed(null);
+                    return;
+                }
+                writePipeline.submit(write);
 
-                    // Proceed with booking
-                    String insertBooking = "INSERT INTO bookings (room_number, date, time_slot, student_id) VALUES (?, ?, ?, ?)";
-                    try (PreparedStatement insertStmt = connection.prepareStatement(insertBooking)) {
-                        insertStmt.setString(1, roomNumber);
-                        insertStmt.setString(2, date);
-                        insertStmt.setString(3, timeSlot);
-                        insertStmt.setString(4, studentId);
-                        insertStmt.executeUpdate();
-
-                        reply.setPerformative(ACLMessage.ACCEPT_PROPOSAL);
-                        reply.setContent("Room booked successfully.");
-                        send(reply);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        // Returns null unless the slot parses and lasts at most 2 hours
+        private TimeSlot parseBookableSlot(String timeSlot) {
+            try {
+                TimeSlot slot = TimeSlot.parse(timeSlot);
+                return slot.duration() <= MAX_BOOKING_MINUTES ? slot : null;
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                return null;
+            }
+        }
+    }
+
+    // A booking that is checked and inserted inside a group-commit batch
+    private class BookingWrite implements GroupCommitPipeline.Write {
+        private final ACLMessage reply;
+        private final String roomNumber;
+        private final String date;
+        private final TimeSlot slot;
+        private final String studentId;
+        private String rejection;
+
+        BookingWrite(ACLMessage reply, String roomNumber, String date, TimeSlot slot, String studentId) {
+            this.reply = reply;
+            this.roomNumber = roomNumber;
+            this.date = date;
+            this.slot = slot;
+            this.studentId = studentId;
+        }
+
+        @Override
+        public void apply(CampusDatabase.PooledConnection db) throws SQLException {
+            // One statement: the schema constraints reject overlaps and second bookings on the same day
+            String insertBooking = "INSERT INTO bookings (room_number, date, time_slot, start_min, end_min, student_id) " +
+                    "VALUES (?, ?, ?, ?, ?, ?)";
+            PreparedStatement insertStmt = db.prepare(insertBooking);
+            insertStmt.setString(1, roomNumber);
+            insertStmt.setString(2, date);
+            insertStmt.setString(3, slot.toString());
+            insertStmt.setInt(4, slot.startMin);
+            insertStmt.setInt(5, slot.endMin);
+            insertStmt.setString(6, studentId);
+            try {
+                insertStmt.executeUpdate();
+            } catch (SQLException e) {
+                // A constraint abort only undoes this statement; the rest of the batch carries on
+                rejection = bookingRejection(e);
+                if (rejection == null) {
+                    throw e;
+                }
+            }
+        }
+
+        @Override
+        public void completed(SQLException failure) {
+            if (failure != null) {
+                reply.setPerformative(ACLMessage.FAILURE);
+                reply.setContent("Booking could not be saved. Please try again.");
+                send(reply);
+                return;
+            }
+            if (rejection != null) {
+                reply.setPerformative(ACLMessage.REJECT_PROPOSAL);
+                reply.setContent(rejection);
+                send(reply);
+                return;
+            }
+
+            availabilityIndex.markBooked(roomNumber, date, slot);
+            publishChange(roomNumber, date, slot, "booked");
+            reply.setPerformative(ACLMessage.ACCEPT_PROPOSAL);
+            reply.setContent("Room booked successfully.");
+            send(reply);
+
+            // Send notification
+            sendNotification(studentId, "Booking", "Room booked successfully for " + date + " at " + slot);
+        }
+    }
+
+
+    // All occurrences of a recurring booking, inserted under one savepoint of a
+    // group-commit batch. ALL_OR_NOTHING rolls back to the savepoint on the first
+    // conflict; BEST_EFFORT keeps whatever occurrences went in.
+    private class RecurringBookingWrite implements GroupCommitPipeline.Write {
+        private final ACLMessage request;
+        private final ACLMessage reply;
+        private final String roomNumber;
+        private final TimeSlot slot;
+        private final String studentId;
+        private final RecurrenceRule rule;
+        private final boolean allOrNothing;
+        final List<String> candidates = new ArrayList<>();
+        final JSONArray conflicts = new JSONArray();
+        private final List<String> booked = new ArrayList<>();
 
-                        // Send notification
-                        sendNotification(studentId, "Booking", "Room booked successfully for " + date + " at " + timeSlot);
+        RecurringBookingWrite(ACLMessage request, ACLMessage reply, String roomNumber, TimeSlot slot,
+                              String studentId, RecurrenceRule rule, boolean allOrNothing) {
+            this.request = request;
+            this.reply = reply;
+            this.roomNumber = roomNumber;
+            this.slot = slot;
+            this.studentId = studentId;
+            this.rule = rule;
+            this.allOrNothing = allOrNothing;
+        }
+
+        void conflict(String date, String reason) {
+            JSONObject conflict = new JSONObject();
+            conflict.put("date", date);
+            conflict.put("reason", reason);
+            conflicts.put(conflict);
+        }
+
+        @Override
+        public void apply(CampusDatabase.PooledConnection db) throws SQLException {
+            String insertBooking = "INSERT INTO bookings (room_number, date, time_slot, start_min, end_min, student_id) " +
+                    "VALUES (?, ?, ?, ?, ?, ?)";
+            PreparedStatement insertStmt = db.prepare(insertBooking);
+            insertStmt.setString(1, roomNumber);
+            insertStmt.setString(3, slot.toString());
+            insertStmt.setInt(4, slot.startMin);
+            insertStmt.setInt(5, slot.endMin);
+            insertStmt.setString(6, studentId);
+
+            Connection connection = db.connection();
+            Savepoint savepoint = connection.setSavepoint();
+            for (String date : candidates) {
+                insertStmt.setString(2, date);
+                try {
+                    insertStmt.executeUpdate();
+                    booked.add(date);
+                } catch (SQLException e) {
+                    String rejection = bookingRejection(e);
+                    if (rejection == null) {
+                        throw e;
+                    }
+                    conflict(date, rejection);
+                    if (allOrNothing) {
+                        connection.rollback(savepoint);
+                        booked.clear();
+                        break;
                     }
+                }
+            }
+            connection.releaseSavepoint(savepoint);
+        }
+
+        @Override
+        public void completed(SQLException failure) {
+            if (failure != null) {
+                reply.setPerformative(ACLMessage.FAILURE);
+                reply.setContent("Recurring booking could not be saved. Please try again.");
+                send(reply);
+                return;
+            }
+
+            for (String date : booked) {
+                availabilityIndex.markBooked(roomNumber, date, slot);
+                publishChange(roomNumber, date, slot, "booked");
+            }
+            JSONObject result = new JSONObject();
+            result.put("roomNumber", roomNumber);
+            result.put("timeSlot", slot.toString());
+            result.put("booked", new JSONArray(booked));
+            result.put("conflicts", conflicts);
+            reply.setPerformative(booked.isEmpty() ? ACLMessage.REJECT_PROPOSAL : ACLMessage.ACCEPT_PROPOSAL);
+            MessageCodecs.writeReply(request, reply, result);
+            send(reply);
+
+            // One summary instead of a notification per occurrence
+            if (!booked.isEmpty()) {
+                String summary = "Room " + roomNumber + " booked " + booked.size() + " times at " + slot
+                        + " (" + rule + ")";
+                if (conflicts.length() > 0) {
+                    summary += "; " + conflicts.length() + " dates skipped because of conflicts";
+                }
+                sendNotification(studentId, "Booking", summary + ".");
+            }
+        }
+    }
+
+    private class CancelBookingBehavior extends CyclicBehaviour {
+        @Override
+        public void action() {
+            // Subscription cancels share the performative and are left to SubscriptionBehavior
+            MessageTemplate mt = MessageTemplate.and(
+                    MessageTemplate.MatchPerformative(ACLMessage.CANCEL),
+                    MessageTemplate.not(MessageTemplate.MatchProtocol(SUBSCRIPTION_PROTOCOL)));
+            ACLMessage msg = myAgent.receive(mt);
 
+            if (msg != null) {
+                try {
+                    JSONObject request = MessageCodecs.readObject(msg);
+                    String roomNumber = request.getString("roomNumber");
+                    dispatch(roomNumber, () -> handle(msg, request, roomNumber));
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
@@ -277,75 +872,122 @@ public class FacilityBookingAgent extends Agent {
             }
         }
 
-        private boolean isValidTimeSlot(String timeSlot) {
+        private void handle(ACLMessage msg, JSONObject request, String roomNumber) {
             try {
-                String[] parts = timeSlot.split("-");
-                String[] startParts = parts[0].split(":");
-                String[] endParts = parts[1].split(":");
-
-                int startHour = Integer.parseInt(startParts[0]);
-                int startMinute = Integer.parseInt(startParts[1]);
-                int endHour = Integer.parseInt(endParts[0]);
-                int endMinute = Integer.parseInt(endParts[1]);
-
-                // Calculate duration in minutes
-                int duration = (endHour * 60 + endMinute) - (startHour * 60 + startMinute);
-                return duration > 0 && duration <= 120; // Maximum 2 hours
+                String date = request.getString("date");
+                String timeSlot = request.getString("timeSlot");
+
+                ACLMessage reply = msg.createReply();
+                if (refuseForeignRoom(reply, roomNumber)) {
+                    return;
+                }
+                TimeSlot slot;
+                try {
+                    slot = TimeSlot.parse(timeSlot);
+                } catch (IllegalArgumentException e) {
+                    reply.setPerformative(ACLMessage.FAILURE);
+                    reply.setContent("Booking not found");
+                    send(reply);
+                    return;
+                }
+
+                writePipeline.submit(new CancelWrite(reply, roomNumber, date, slot));
+
             } catch (Exception e) {
-                System.err.println("Invalid time slot format: " + timeSlot);
-                return false;
+                e.printStackTrace();
             }
         }
+    }
 
-        private boolean hasActiveBooking(String studentId, String date) {
-            String query = "SELECT COUNT(*) FROM bookings WHERE student_id = ? AND date = ?";
-            try (PreparedStatement pstmt = connection.prepareStatement(query)) {
-                pstmt.setString(1, studentId);
-                pstmt.setString(2, date);
-                try (ResultSet rs = pstmt.executeQuery()) {
-                    rs.next();
-                    return rs.getInt(1) > 0;
-                }
-            } catch (SQLException e) {
-                e.printStackTrace();
-                return false;
+    // A cancellation that is deleted inside a group-commit batch
+    private class CancelWrite implements GroupCommitPipeline.Write {
+        private final ACLMessage reply;
+        private final String roomNumber;
+        private final String date;
+        private final TimeSlot slot;
+        private int rowsAffected;
+
+        CancelWrite(ACLMessage reply, String roomNumber, String date, TimeSlot slot) {
+            this.reply = reply;
+            this.roomNumber = roomNumber;
+            this.date = date;
+            this.slot = slot;
+        }
+
+        @Override
+        public void apply(CampusDatabase.PooledConnection db) throws SQLException {
+            String deleteQuery = "DELETE FROM bookings WHERE room_number = ? AND date = ? AND start_min = ? AND end_min = ?";
+            PreparedStatement pstmt = db.prepare(deleteQuery);
+            pstmt.setString(1, roomNumber);
+            pstmt.setString(2, date);
+            pstmt.setInt(3, slot.startMin);
+            pstmt.setInt(4, slot.endMin);
+            rowsAffected = pstmt.executeUpdate();
+        }
+
+        @Override
+        public void completed(SQLException failure) {
+            if (failure != null) {
+                reply.setPerformative(ACLMessage.FAILURE);
+                reply.setContent("Cancellation could not be saved. Please try again.");
+            } else if (rowsAffected > 0) {
+                availabilityIndex.release(roomNumber, date, slot);
+                publishChange(roomNumber, date, slot, "released");
+                reply.setPerformative(ACLMessage.INFORM);
+                reply.setContent("Booking cancelled successfully");
+            } else {
+                reply.setPerformative(ACLMessage.FAILURE);
+                reply.setContent("Booking not found");
             }
+            send(reply);
         }
     }
 
+    // Commits whatever writes arrived during the last batch window
+    private class GroupCommitBehavior extends TickerBehaviour {
+        private final long statsEveryTicks;
+        private long ticks;
 
-    private class CancelBookingBehavior extends CyclicBehaviour {
+        GroupCommitBehavior(long windowMs) {
+            super(FacilityBookingAgent.this, windowMs);
+            statsEveryTicks = Math.max(1, PIPELINE_STATS_PERIOD_MS / windowMs);
+        }
+
+        @Override
+        protected void onTick() {
+            if (commitScheduler == null) {
+                writePipeline.flush();
+            }
+            if (++ticks % statsEveryTicks == 0) {
+                System.out.println("Booking write pipeline: " + writePipeline.statistics());
+                System.out.println("Database pool: " + database.statistics());
+            }
+        }
+    }
+
+    // SUBSCRIBE registers interest in (rooms, date range, capacity); CANCEL with the
+    // same conversation id ends it. Subscribers then get one INFORM per booking change.
+    private class SubscriptionBehavior extends CyclicBehaviour {
         @Override
         public void action() {
-            MessageTemplate mt = MessageTemplate.MatchPerformative(ACLMessage.CANCEL);
+            MessageTemplate mt = MessageTemplate.or(
+                    MessageTemplate.MatchPerformative(ACLMessage.SUBSCRIBE),
+                    MessageTemplate.and(
+                            MessageTemplate.MatchPerformative(ACLMessage.CANCEL),
+                            MessageTemplate.MatchProtocol(SUBSCRIPTION_PROTOCOL)));
             ACLMessage msg = myAgent.receive(mt);
 
             if (msg != null) {
                 try {
-                    JSONObject request = new JSONObject(msg.getContent());
-                    String roomNumber = request.getString("roomNumber");
-                    String date = request.getString("date");
-                    String timeSlot = request.getString("timeSlot");
-
-                    ACLMessage reply = msg.createReply();
-
-                    String deleteQuery = "DELETE FROM bookings WHERE room_number = ? AND date = ? AND time_slot = ?";
-                    try (PreparedStatement pstmt = connection.prepareStatement(deleteQuery)) {
-                        pstmt.setString(1, roomNumber);
-                        pstmt.setString(2, date);
-                        pstmt.setString(3, timeSlot);
-                        int rowsAffected = pstmt.executeUpdate();
-                        if (rowsAffected > 0) {
-                            reply.setPerformative(ACLMessage.INFORM);
-                            reply.setContent("Booking cancelled successfully");
-                        } else {
-                            reply.setPerformative(ACLMessage.FAILURE);
-                            reply.setContent("Booking not found");
-                        }
+                    if (msg.getPerformative() == ACLMessage.CANCEL) {
+                        subscriptions.remove(subscriptionId(msg));
+                        ACLMessage reply = msg.createReply();
+                        reply.setPerformative(ACLMessage.INFORM);
+                        reply.setContent("Subscription cancelled");
+                        send(reply);
+                    } else {
+                        subscribe(msg);
                     }
-
-                    send(reply);
-
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
@@ -353,9 +995,132 @@ public class FacilityBookingAgent extends Agent {
                 block();
             }
         }
+
+        private void subscribe(ACLMessage msg) {
+            ACLMessage reply = msg.createReply();
+            if (msg.getConversationId() == null) {
+                reply.setPerformative(ACLMessage.REFUSE);
+                reply.setContent("A conversation id is required to subscribe.");
+                send(reply);
+                return;
+            }
+
+            AvailabilitySubscriptions.Subscription subscription;
+            try {
+                JSONObject request = MessageCodecs.readObject(msg);
+                LocalDate startDate = LocalDate.parse(request.getString("startDate"), DateTimeFormatter.ISO_LOCAL_DATE);
+                LocalDate endDate = LocalDate.parse(request.getString("endDate"), DateTimeFormatter.ISO_LOCAL_DATE);
+                if (endDate.isBefore(startDate) || startDate.plusDays(MAX_SUBSCRIPTION_DAYS).isBefore(endDate)) {
+                    throw new IllegalArgumentException("At most " + MAX_SUBSCRIPTION_DAYS + " days can be watched at once.");
+                }
+                Set<String> rooms = null;
+                JSONArray requestedRooms = request.optJSONArray("rooms");
+                if (requestedRooms != null && requestedRooms.length() > 0) {
+                    rooms = new HashSet<>();
+                    for (int i = 0; i < requestedRooms.length(); i++) {
+                        rooms.add(requestedRooms.getString(i));
+                    }
+                }
+                subscription = new AvailabilitySubscriptions.Subscription(subscriptionId(msg), msg, rooms,
+                        startDate, endDate, request.optInt("capacity", 0));
+            } catch (Exception e) {
+                reply.setPerformative(ACLMessage.REFUSE);
+                reply.setContent("Invalid subscription: " + e.getMessage());
+                send(reply);
+                return;
+            }
+
+            subscriptions.add(subscription);
+            reply.setPerformative(ACLMessage.AGREE);
+            reply.setContent("Subscribed to availability changes");
+            send(reply);
+        }
+    }
+
+    private static String subscriptionId(ACLMessage msg) {
+        return AvailabilitySubscriptions.replyTarget(msg).getName() + "/" + msg.getConversationId();
+    }
+
+    // Sends an availability delta to every subscription interested in this room and date
+    private void publishChange(String roomNumber, String date, TimeSlot slot, String status) {
+        RoomCatalog.Room room = availabilityIndex.room(roomNumber);
+        int capacity = room == null ? 0 : room.capacity;
+        for (AvailabilitySubscriptions.Subscription subscription : subscriptions.match(roomNumber, capacity, date)) {
+            JSONObject delta = new JSONObject();
+            delta.put("roomNumber", roomNumber);
+            delta.put("date", date);
+            delta.put("timeSlot", slot.toString());
+            delta.put("status", status);
+
+            ACLMessage inform = subscription.subscribeMessage.createReply();
+            inform.setPerformative(ACLMessage.INFORM);
+            MessageCodecs.writeReply(subscription.subscribeMessage, inform, delta);
+            send(inform);
+        }
+    }
+
+    // The AMS answers with FAILURE when a delta cannot be delivered, e.g. the subscriber died
+    private class DeliveryFailureBehavior extends CyclicBehaviour {
+        @Override
+        public void action() {
+            MessageTemplate mt = MessageTemplate.and(
+                    MessageTemplate.MatchPerformative(ACLMessage.FAILURE),
+                    MessageTemplate.MatchSender(getAMS()));
+            ACLMessage msg = myAgent.receive(mt);
+
+            if (msg != null) {
+                int removed = subscriptions.removeUnreachable(msg.getConversationId(), msg.getContent());
+                if (removed > 0) {
+                    System.out.println("Dropped " + removed + " subscriptions after delivery failure");
+                }
+            } else {
+                block();
+            }
+        }
+    }
+
+    private class SubscriptionExpiryBehavior extends TickerBehaviour {
+        SubscriptionExpiryBehavior() {
+            super(FacilityBookingAgent.this, SUBSCRIPTION_EXPIRY_PERIOD_MS);
+        }
+
+        @Override
+        protected void onTick() {
+            int expired = subscriptions.expireBefore(LocalDate.now());
+            if (expired > 0) {
+                System.out.println("Expired " + expired + " availability subscriptions");
+            }
+        }
     }
+
+    // Periodically compares the availability index with SQLite and rebuilds it on drift
+    private class IndexConsistencyBehavior extends TickerBehaviour {
+        IndexConsistencyBehavior() {
+            super(FacilityBookingAgent.this, INDEX_CHECK_PERIOD_MS);
+        }
+
+        @Override
+        protected void onTick() {
+            // No batch may commit between reading the database and swapping the index
+            writePipeline.runExclusive(() -> {
+                try (CampusDatabase.PooledConnection db = database.reader()) {
+                    List<String> problems = availabilityIndex.findInconsistencies(db.connection());
+                    if (!problems.isEmpty()) {
+                        System.err.println("Availability index out of sync with database: " + problems);
+                        // The rooms may have changed too; every agent sharing the catalog sees the new version
+                        RoomCatalog.Snapshot catalog = RoomCatalog.shared().publish(RoomCatalog.read(db.connection()));
+                        availabilityIndex = RoomAvailabilityIndex.load(db.connection(), catalog.rooms(), FacilityBookingAgent.this::ownsRoom);
+                    }
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+    }
+
     // Method to send notification
     private void sendNotification(String userId, String type, String message) {
+        AID notificationAgent = serviceRegistry.pick("notification");
         if (notificationAgent != null) {
             ACLMessage notifMsg = new ACLMessage(ACLMessage.REQUEST);
             notifMsg.addReceiver(notificationAgent);
@@ -363,7 +1128,8 @@ public class FacilityBookingAgent extends Agent {
             notification.put("userId", userId);
             notification.put("type", type);
             notification.put("message", message);
-            notifMsg.setContent(notification.toString());
+            notifMsg.addUserDefinedParameter(NotificationAgent.NO_ACK, "true");
+            MessageCodecs.write(notifMsg, notification);
             send(notifMsg);
         } else {
             System.out.println("NotificationAgent not available");
@@ -372,13 +1138,27 @@ public class FacilityBookingAgent extends Agent {
 
     @Override
     protected void takeDown() {
+        MailboxGuard.uninstall(this);
+        if (serviceRegistry != null) {
+            serviceRegistry.close();
+        }
         try {
             DFService.deregister(this);
-            if (connection != null) {
-                connection.close();
-                System.out.println("Database connection closed.");
+            if (workers != null) {
+                workers.shutdown(5000);
             }
-        } catch (SQLException | FIPAException e) {
+            if (commitScheduler != null) {
+                commitScheduler.shutdown();
+            }
+            if (writePipeline != null) {
+                writePipeline.flush();
+                System.out.println("Booking write pipeline: " + writePipeline.statistics());
+            }
+            if (database != null) {
+                System.out.println("Database pool: " + database.statistics());
+                CampusDatabase.release();
+            }
+        } catch (FIPAException e) {
             e.printStackTrace();
         }
         System.out.println("FacilityBookingAgent " + getAID().getName() + " terminating.");
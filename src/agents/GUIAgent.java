@@ -1,28 +1,65 @@
 package agents;
 
 import jade.core.Agent;
+import jade.core.MessageQueue;
 import jade.core.AID;
 import jade.core.behaviours.OneShotBehaviour;
 import jade.core.behaviours.CyclicBehaviour;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
+import jade.domain.DFService;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
+import jade.domain.FIPAException;
 
 import javax.swing.*;
 import java.awt.*;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 import org.json.JSONObject;
 import org.json.JSONArray;
 
 public class GUIAgent extends Agent {
+    private static final long REQUEST_TIMEOUT_MS = 10 * 1000;
+
     private JFrame frame;
     private Map<String, AID> agentAIDs = new HashMap<>();
     private JTextArea notificationsArea;
+    private RequestCorrelator correlator;
+    // Outbox entries below this offset have been shown already
+    private String outboxEpoch;
+    private long outboxShownUpTo;
+
+    // New requests are refused rather than queued when the mailbox backs up
+    @Override
+    protected MessageQueue createMessageQueue() {
+        return MailboxGuard.install(this, super.createMessageQueue());
+    }
 
     @Override
     protected void setup() {
+        correlator = new RequestCorrelator(this);
         SwingUtilities.invokeLater(this::createAndShowGUI);
 
+        // The NotificationAgent finds its displays in the DF
+        try {
+            DFAgentDescription dfd = new DFAgentDescription();
+            dfd.setName(getAID());
+
+            ServiceDescription sd = new ServiceDescription();
+            sd.setType("notification-display");
+            sd.setName("smart-campus-gui");
+            dfd.addServices(sd);
+
+            DFService.register(this, dfd);
+        } catch (FIPAException e) {
+            e.printStackTrace();
+        }
+
         // Retrieve AIDs of other agents
         addBehaviour(new OneShotBehaviour() {
             @Override
@@ -34,8 +71,22 @@ public class GUIAgent extends Agent {
             }
         });
 
-        // Add behaviour to listen for notifications
-        addBehaviour(new NotificationListenerBehaviour());
+        // Replies and notifications all arrive through one dispatcher
+        addBehaviour(new MessageDispatcherBehaviour());
+    }
+
+    // Sends a request and runs onReply on the Swing thread once its reply arrives
+    private void request(ACLMessage msg, String action, Consumer<ACLMessage> onReply) {
+        correlator.request(msg, REQUEST_TIMEOUT_MS).whenComplete((reply, error) -> SwingUtilities.invokeLater(() -> {
+            if (error == null) {
+                onReply.accept(reply);
+                return;
+            }
+            String reason = error instanceof TimeoutException || error.getCause() instanceof TimeoutException
+                    ? "no response" : String.valueOf(error.getMessage());
+            notificationsArea.append(action + ": " + reason + "\n");
+            JOptionPane.showMessageDialog(frame, action + " failed: " + reason, "Error", JOptionPane.ERROR_MESSAGE);
+        }));
     }
 
     private void registerAgent(String agentName) {
@@ -101,26 +152,15 @@ public class GUIAgent extends Agent {
 
             ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
             msg.addReceiver(agentAIDs.get("UserAgent")); // Use AID for UserAgent
-            msg.setContent(request.toString());
-            send(msg);
-
-            // Add behaviour to listen for response
-            addBehaviour(new OneShotBehaviour() {
-                @Override
-                public void action() {
-                    ACLMessage reply = blockingReceive();
-                    if (reply != null) {
-                        SwingUtilities.invokeLater(() -> {
-                            String notificationMessage = "User Registration: " + reply.getContent();
-                            notificationsArea.append(notificationMessage + "\n");
-
-                            if (reply.getPerformative() == ACLMessage.INFORM) {
-                                JOptionPane.showMessageDialog(frame, "Registration successful!", "Success", JOptionPane.INFORMATION_MESSAGE);
-                            } else {
-                                JOptionPane.showMessageDialog(frame, "Registration failed: " + reply.getContent(), "Error", JOptionPane.ERROR_MESSAGE);
-                            }
-                        });
-                    }
+            MessageCodecs.write(msg, request);
+            request(msg, "User Registration", reply -> {
+                String notificationMessage = "User Registration: " + MessageCodecs.text(reply);
+                notificationsArea.append(notificationMessage + "\n");
+
+                if (reply.getPerformative() == ACLMessage.INFORM) {
+                    JOptionPane.showMessageDialog(frame, "Registration successful!", "Success", JOptionPane.INFORMATION_MESSAGE);
+                } else {
+                    JOptionPane.showMessageDialog(frame, "Registration failed: " + MessageCodecs.text(reply), "Error", JOptionPane.ERROR_MESSAGE);
                 }
             });
         });
@@ -170,28 +210,18 @@ public class GUIAgent extends Agent {
 
             ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
             msg.addReceiver(agentAIDs.get("BookingAgent")); // Use AID for BookingAgent
-            msg.setContent(request.toString());
-            send(msg);
-
-            addBehaviour(new OneShotBehaviour() {
-                @Override
-                public void action() {
-                    ACLMessage reply = blockingReceive();
-                    if (reply != null) {
-                        SwingUtilities.invokeLater(() -> {
-                            notificationsArea.append("Facility Booking: " + reply.getContent() + "\n");
-                            if (reply.getPerformative() == ACLMessage.INFORM) {
-                                availableRoomsArea.setText(reply.getContent());
-
-                                // Populate room selection box
-                                roomSelectionBox.removeAllItems();
-                                JSONArray availableRooms = new JSONArray(reply.getContent());
-                                for (int i = 0; i < availableRooms.length(); i++) {
-                                    JSONObject room = availableRooms.getJSONObject(i);
-                                    roomSelectionBox.addItem(room.getString("roomNumber"));
-                                }
-                            }
-                        });
+            MessageCodecs.write(msg, request);
+            request(msg, "Facility Booking", reply -> {
+                notificationsArea.append("Facility Booking: " + MessageCodecs.text(reply) + "\n");
+                if (reply.getPerformative() == ACLMessage.INFORM) {
+                    availableRoomsArea.setText(MessageCodecs.text(reply));
+
+                    // Populate room selection box
+                    roomSelectionBox.removeAllItems();
+                    JSONArray availableRooms = MessageCodecs.readArray(reply);
+                    for (int i = 0; i < availableRooms.length(); i++) {
+                        JSONObject room = availableRooms.getJSONObject(i);
+                        roomSelectionBox.addItem(room.getString("roomNumber"));
                     }
                 }
             });
@@ -217,23 +247,13 @@ public class GUIAgent extends Agent {
 
             ACLMessage msg = new ACLMessage(ACLMessage.PROPOSE);
             msg.addReceiver(agentAIDs.get("BookingAgent")); // Use AID for BookingAgent
-            msg.setContent(bookingRequest.toString());
-            send(msg);
-
-            addBehaviour(new OneShotBehaviour() {
-                @Override
-                public void action() {
-                    ACLMessage reply = blockingReceive();
-                    if (reply != null) {
-                        SwingUtilities.invokeLater(() -> {
-                            notificationsArea.append("Room Booking: " + reply.getContent() + "\n");
-                            if (reply.getPerformative() == ACLMessage.ACCEPT_PROPOSAL) {
-                                JOptionPane.showMessageDialog(frame, "Room booked successfully!", "Success", JOptionPane.INFORMATION_MESSAGE);
-                            } else {
-                                JOptionPane.showMessageDialog(frame, "Booking failed: " + reply.getContent(), "Error", JOptionPane.ERROR_MESSAGE);
-                            }
-                        });
-                    }
+            MessageCodecs.write(msg, bookingRequest);
+            request(msg, "Room Booking", reply -> {
+                notificationsArea.append("Room Booking: " + MessageCodecs.text(reply) + "\n");
+                if (reply.getPerformative() == ACLMessage.ACCEPT_PROPOSAL) {
+                    JOptionPane.showMessageDialog(frame, "Room booked successfully!", "Success", JOptionPane.INFORMATION_MESSAGE);
+                } else {
+                    JOptionPane.showMessageDialog(frame, "Booking failed: " + MessageCodecs.text(reply), "Error", JOptionPane.ERROR_MESSAGE);
                 }
             });
         });
@@ -273,33 +293,22 @@ public class GUIAgent extends Agent {
 
             ACLMessage msg = new ACLMessage(ACLMessage.REQUEST);
             msg.addReceiver(agentAIDs.get("NavigationAgent")); // Use AID for NavigationAgent
-            msg.setContent(request.toString());
-            send(msg);
-
-            addBehaviour(new OneShotBehaviour() {
-                @Override
-                public void action() {
-                    ACLMessage reply = blockingReceive();
-                    if (reply != null) {
-                        SwingUtilities.invokeLater(() -> {
-                            String content = reply.getContent();
-                            try {
-                                JSONObject response = new JSONObject(content);
-                                if (response.has("error")) {
-                                    directionsArea.setText("Error: " + response.getString("error"));
-                                    JOptionPane.showMessageDialog(frame, "Error: " + response.getString("error"), "Navigation Error", JOptionPane.ERROR_MESSAGE);
-                                } else {
-                                    directionsArea.setText("Building: " + response.getString("building") + "\n" +
-                                            "Floor: " + response.getInt("floor") + "\n" +
-                                            "Directions: " + response.getString("directions") + "\n" +
-                                            "Estimated Time: " + response.getString("estimatedTime"));
-                                }
-                            } catch (Exception ex) {
-                                directionsArea.setText("Invalid response from NavigationAgent.");
-                                JOptionPane.showMessageDialog(frame, "Invalid response from NavigationAgent.", "Error", JOptionPane.ERROR_MESSAGE);
-                            }
-                        });
+            MessageCodecs.write(msg, request);
+            request(msg, "Navigation", reply -> {
+                try {
+                    JSONObject response = MessageCodecs.readObject(reply);
+                    if (response.has("error")) {
+                        directionsArea.setText("Error: " + response.getString("error"));
+                        JOptionPane.showMessageDialog(frame, "Error: " + response.getString("error"), "Navigation Error", JOptionPane.ERROR_MESSAGE);
+                    } else {
+                        directionsArea.setText("Building: " + response.getString("building") + "\n" +
+                                "Floor: " + response.getInt("floor") + "\n" +
+                                "Directions: " + response.getString("directions") + "\n" +
+                                "Estimated Time: " + response.getString("estimatedTime"));
                     }
+                } catch (Exception ex) {
+                    directionsArea.setText("Invalid response from NavigationAgent.");
+                    JOptionPane.showMessageDialog(frame, "Invalid response from NavigationAgent.", "Error", JOptionPane.ERROR_MESSAGE);
                 }
             });
         });
@@ -317,22 +326,47 @@ public class GUIAgent extends Agent {
         return panel;
     }
 
-    private class NotificationListenerBehaviour extends CyclicBehaviour {
+    private class MessageDispatcherBehaviour extends CyclicBehaviour {
         @Override
         public void action() {
             ACLMessage msg = receive();
             if (msg != null) {
+                if (correlator.complete(msg)) {
+                    return;
+                }
+                // Anything that is not a reply is a notification
+                List<JSONObject> fresh = new ArrayList<>();
+                String epoch = msg.getUserDefinedParameter(NotificationAgent.OUTBOX_EPOCH);
+                if (epoch != null && !epoch.equals(outboxEpoch)) {
+                    // A new outbox numbers its entries from zero again
+                    outboxEpoch = epoch;
+                    outboxShownUpTo = 0;
+                }
+                try {
+                    JSONObject content = MessageCodecs.readObject(msg);
+                    // The NotificationAgent batches notifications that arrive close together
+                    JSONArray batch = content.optJSONArray("notifications");
+                    int count = batch == null ? 1 : batch.length();
+                    for (int i = 0; i < count; i++) {
+                        JSONObject notification = batch == null ? content : batch.getJSONObject(i);
+                        // Notifications replayed from the outbox may already be on screen
+                        if (notification.optLong("offset", Long.MAX_VALUE) >= outboxShownUpTo) {
+                            fresh.add(notification);
+                        }
+                    }
+                    confirmDelivery(msg);
+                } catch (Exception e) {
+                    SwingUtilities.invokeLater(() -> notificationsArea.append("Received an invalid notification message.\n"));
+                    return;
+                }
                 SwingUtilities.invokeLater(() -> {
-                    try {
-                        JSONObject notification = new JSONObject(msg.getContent());
-                        String userId = notification.getString("userId");
-                        String type = notification.getString("type");
-                        String message = notification.getString("message");
+                    for (JSONObject notification : fresh) {
+                        String userId = notification.optString("userId");
+                        String type = notification.optString("type");
+                        String message = notification.optString("message");
 
                         // Display the notification in the GUI
                         notificationsArea.append("Notification for User " + userId + " (" + type + "): " + message + "\n");
-                    } catch (Exception e) {
-                        notificationsArea.append("Received an invalid notification message.\n");
                     }
                 });
             } else {
@@ -340,4 +374,29 @@ public class GUIAgent extends Agent {
             }
         }
     }
+
+    // Confirms an outbox delivery so the NotificationAgent stops replaying it
+    private void confirmDelivery(ACLMessage msg) {
+        String offset = msg.getUserDefinedParameter(NotificationAgent.OUTBOX_OFFSET);
+        String epoch = msg.getUserDefinedParameter(NotificationAgent.OUTBOX_EPOCH);
+        if (offset == null) {
+            return;
+        }
+        outboxShownUpTo = Math.max(outboxShownUpTo, Long.parseLong(offset));
+        ACLMessage confirm = msg.createReply();
+        confirm.setPerformative(ACLMessage.CONFIRM);
+        confirm.addUserDefinedParameter(NotificationAgent.OUTBOX_OFFSET, offset);
+        confirm.addUserDefinedParameter(NotificationAgent.OUTBOX_EPOCH, epoch);
+        send(confirm);
+    }
+
+    @Override
+    protected void takeDown() {
+        MailboxGuard.uninstall(this);
+        try {
+            DFService.deregister(this);
+        } catch (FIPAException e) {
+            e.printStackTrace();
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,151 @@
+package agents;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Collects pending writes and commits them together in one SQLite transaction,
+// so a burst of bookings pays for one fsync instead of one per message.
+// Writers are told about their outcome only after the batch commit returns.
+// Safe to use from several threads: submissions queue up while a batch commits,
+// and batches commit one at a time in submission order.
+final class GroupCommitPipeline {
+    interface Write {
+        // Runs inside the batch transaction, in submission order
+        void apply(CampusDatabase.PooledConnection db) throws SQLException;
+
+        // Called after the batch is durable, or with the error that rolled it back
+        void completed(SQLException failure);
+    }
+
+    // Batch size histogram buckets: 1, 2, 3-4, 5-8, ... , 513+
+    private static final int BUCKETS = 11;
+
+    private final CampusDatabase database;
+    private final int maxBatchSize;
+    private final Object flushLock = new Object();
+    private List<Write> pending = new ArrayList<>();
+
+    private final long[] batchSizeCounts = new long[BUCKETS];
+    private long batches;
+    private long writes;
+    private long failedBatches;
+
+    GroupCommitPipeline(CampusDatabase database, int maxBatchSize) {
+        this.database = database;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+    }
+
+    void submit(Write write) {
+        boolean full;
+        synchronized (this) {
+            pending.add(write);
+            full = pending.size() >= maxBatchSize;
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    synchronized int pendingCount() {
+        return pending.size();
+    }
+
+    void flush() {
+        synchronized (flushLock) {
+            flushLocked();
+        }
+    }
+
+    // Commits everything queued so far, then runs the task before any later batch can commit
+    void runExclusive(Runnable task) {
+        synchronized (flushLock) {
+            flushLocked();
+            task.run();
+        }
+    }
+
+    private void flushLocked() {
+        List<Write> batch;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = pending;
+            pending = new ArrayList<>();
+        }
+
+        SQLException failure = null;
+        try (CampusDatabase.PooledConnection db = database.writer()) {
+            Connection connection = db.connection();
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                for (Write write : batch) {
+                    write.apply(db);
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                failure = e;
+                connection.rollback();
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+
+        record(batch.size(), failure != null);
+        if (failure != null) {
+            System.err.println("Group commit of " + batch.size() + " writes failed: " + failure.getMessage());
+        }
+        for (Write write : batch) {
+            try {
+                write.completed(failure);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private synchronized void record(int size, boolean failed) {
+        batches++;
+        writes += size;
+        if (failed) {
+            failedBatches++;
+        }
+        int bucket = 32 - Integer.numberOfLeadingZeros(size - 1);
+        batchSizeCounts[Math.min(bucket, BUCKETS - 1)]++;
+    }
+
+    synchronized String statistics() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("batches=").append(batches)
+                .append(" writes=").append(writes)
+                .append(" failed=").append(failedBatches)
+                .append(" avg=").append(batches == 0 ? 0 : String.format("%.1f", (double) writes / batches))
+                .append(" sizes={");
+        for (int i = 0; i < BUCKETS; i++) {
+            if (batchSizeCounts[i] == 0) {
+                continue;
+            }
+            int low = i == 0 ? 1 : (1 << (i - 1)) + 1;
+            int high = 1 << i;
+            if (i == BUCKETS - 1) {
+                sb.append(low).append("+");
+            } else if (low == high) {
+                sb.append(low);
+            } else {
+                sb.append(low).append("-").append(high);
+            }
+            sb.append(":").append(batchSizeCounts[i]).append(" ");
+        }
+        if (sb.charAt(sb.length() - 1) == ' ') {
+            sb.setLength(sb.length() - 1);
+        }
+        return sb.append("}").toString();
+    }
+}
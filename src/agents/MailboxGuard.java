@@ -0,0 +1,319 @@
+package agents;
+
+import jade.core.Agent;
+import jade.core.MessageQueue;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Admission control in front of an agent's mailbox. Agents install it from
+// createMessageQueue(), so it sees every message as it arrives, on the sender's
+// thread. Above the high-water mark new requests (REQUEST, PROPOSE, QUERY_*,
+// SUBSCRIBE, CFP) are answered with REFUSE "overloaded" instead of being queued;
+// CANCEL is only shed above twice that depth, since it frees capacity. Replies
+// and everything else are always queued so that work already started can finish.
+// Depth, arrival rates and shed counts of every guarded agent are logged once a
+// minute while anything is moving, and are available from report().
+final class MailboxGuard implements MessageQueue {
+    static final String OVERLOADED = "overloaded";
+    private static final int HIGH_WATER = Integer.getInteger("smartcampus.mailbox.highWater", 2000);
+    private static final long REPORT_PERIOD_MS = 60 * 1000;
+
+    private static final List<MailboxGuard> guards = new CopyOnWriteArrayList<>();
+    // Refusals are sent from here, never while the receiving queue is locked
+    private static final ScheduledExecutorService shedder = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "mailbox-guard");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        shedder.scheduleAtFixedRate(MailboxGuard::logReport, REPORT_PERIOD_MS, REPORT_PERIOD_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static final int PERFORMATIVES = ACLMessage.getAllPerformativeNames().length;
+
+    private final Agent agent;
+    private final MessageQueue delegate;
+    private final int highWater;
+    private final int cancelHighWater;
+
+    private final long[] arrivals = new long[PERFORMATIVES];
+    private final long[] shed = new long[PERFORMATIVES];
+    // Arrivals in the current and the last full second, per performative
+    private final int[] thisSecond = new int[PERFORMATIVES];
+    private final int[] lastSecond = new int[PERFORMATIVES];
+    private long second;
+    private int maxDepth;
+    private long reportedArrivals;
+
+    private MailboxGuard(Agent agent, MessageQueue delegate, int highWater) {
+        this.agent = agent;
+        this.delegate = delegate;
+        this.highWater = highWater;
+        this.cancelHighWater = highWater * 2;
+    }
+
+    // Call from Agent.createMessageQueue() with the queue the superclass created.
+    // The superclass returns null unless a queue class is configured, since
+    // JADE's own queue class is not public; FifoQueue then stands in for it.
+    static MessageQueue install(Agent agent, MessageQueue queue) {
+        MailboxGuard guard = new MailboxGuard(agent, queue != null ? queue : new FifoQueue(), HIGH_WATER);
+        guards.add(guard);
+        return guard;
+    }
+
+    // Call from takeDown()
+    static void uninstall(Agent agent) {
+        guards.removeIf(guard -> guard.agent == agent);
+    }
+
+    @Override
+    public void addLast(ACLMessage msg) {
+        int depth = delegate.size();
+        int performative = msg.getPerformative();
+        boolean admit;
+        synchronized (this) {
+            countArrival(performative, depth);
+            admit = depth < limitFor(msg);
+            if (!admit) {
+                shed[performative]++;
+            }
+        }
+        if (admit) {
+            delegate.addLast(msg);
+        } else {
+            refuse(msg);
+        }
+    }
+
+    private int limitFor(ACLMessage msg) {
+        switch (msg.getPerformative()) {
+            case ACLMessage.REQUEST:
+            case ACLMessage.PROPOSE:
+            case ACLMessage.QUERY_REF:
+            case ACLMessage.QUERY_IF:
+            case ACLMessage.SUBSCRIBE:
+            case ACLMessage.CFP:
+                return highWater;
+            case ACLMessage.CANCEL:
+                return cancelHighWater;
+            default:
+                return Integer.MAX_VALUE;
+        }
+    }
+
+    private void refuse(ACLMessage msg) {
+        // Fire-and-forget senders would only find the refusal clogging their own mailbox
+        if ("true".equals(msg.getUserDefinedParameter(NotificationAgent.NO_ACK))) {
+            return;
+        }
+        shedder.execute(() -> {
+            ACLMessage reply = msg.createReply();
+            reply.setPerformative(ACLMessage.REFUSE);
+            reply.setContent(OVERLOADED);
+            agent.send(reply);
+        });
+    }
+
+    private void countArrival(int performative, int depth) {
+        long now = System.currentTimeMillis() / 1000;
+        if (now != second) {
+            boolean consecutive = now == second + 1;
+            for (int i = 0; i < PERFORMATIVES; i++) {
+                lastSecond[i] = consecutive ? thisSecond[i] : 0;
+                thisSecond[i] = 0;
+            }
+            second = now;
+        }
+        if (performative >= 0 && performative < PERFORMATIVES) {
+            arrivals[performative]++;
+            thisSecond[performative]++;
+        }
+        maxDepth = Math.max(maxDepth, depth + 1);
+    }
+
+    int depth() {
+        return delegate.size();
+    }
+
+    synchronized long shedCount() {
+        long total = 0;
+        for (long count : shed) {
+            total += count;
+        }
+        return total;
+    }
+
+    synchronized String statistics() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("depth=").append(depth()).append(" max=").append(maxDepth).append(" shed=").append(shedCount());
+        boolean current = System.currentTimeMillis() / 1000 == second + 1;
+        for (int i = 0; i < PERFORMATIVES; i++) {
+            if (arrivals[i] == 0) {
+                continue;
+            }
+            sb.append(' ').append(ACLMessage.getPerformative(i)).append('=').append(arrivals[i]);
+            if (current && lastSecond[i] > 0) {
+                sb.append('@').append(lastSecond[i]).append("/s");
+            }
+            if (shed[i] > 0) {
+                sb.append(" (shed ").append(shed[i]).append(')');
+            }
+        }
+        return sb.toString();
+    }
+
+    static String report() {
+        StringBuilder sb = new StringBuilder();
+        for (MailboxGuard guard : guards) {
+            sb.append(guard.agent.getLocalName()).append(": ").append(guard.statistics()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static void logReport() {
+        for (MailboxGuard guard : guards) {
+            long total;
+            synchronized (guard) {
+                total = 0;
+                for (long count : guard.arrivals) {
+                    total += count;
+                }
+                if (total == guard.reportedArrivals) {
+                    continue;
+                }
+                guard.reportedArrivals = total;
+            }
+            System.out.println("Mailbox " + guard.agent.getLocalName() + ": " + guard.statistics());
+        }
+    }
+
+    @Override
+    public void addFirst(ACLMessage msg) {
+        // Only used to put back a message the agent already took
+        delegate.addFirst(msg);
+    }
+
+    @Override
+    public int getMaxSize() {
+        return delegate.getMaxSize();
+    }
+
+    @Override
+    public void setMaxSize(int maxSize) {
+        delegate.setMaxSize(maxSize);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return delegate.isEmpty();
+    }
+
+    @Override
+    public ACLMessage receive(MessageTemplate template) {
+        return delegate.receive(template);
+    }
+
+    @Override
+    public List<ACLMessage> receive(MessageTemplate template, int max) {
+        return delegate.receive(template, max);
+    }
+
+    @Override
+    public void copyTo(jade.util.leap.List list) {
+        delegate.copyTo(list);
+    }
+
+    @Override
+    public int size() {
+        return delegate.size();
+    }
+
+    // Same behaviour as JADE's default queue: unbounded unless a maximum size is
+    // set, in which case the oldest message makes room. The agent holds the
+    // queue's monitor around every call, so no locking is needed here.
+    private static final class FifoQueue implements MessageQueue {
+        private final LinkedList<ACLMessage> messages = new LinkedList<>();
+        private int maxSize;
+
+        @Override
+        public void addFirst(ACLMessage msg) {
+            messages.addFirst(msg);
+        }
+
+        @Override
+        public void addLast(ACLMessage msg) {
+            if (maxSize > 0 && messages.size() >= maxSize) {
+                messages.removeFirst();
+                System.err.println("Message queue size exceeded, oldest message discarded");
+            }
+            messages.addLast(msg);
+        }
+
+        @Override
+        public int getMaxSize() {
+            return maxSize;
+        }
+
+        @Override
+        public void setMaxSize(int maxSize) {
+            if (maxSize < 0) {
+                throw new IllegalArgumentException("Invalid message queue size: " + maxSize);
+            }
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return messages.isEmpty();
+        }
+
+        @Override
+        public ACLMessage receive(MessageTemplate template) {
+            Iterator<ACLMessage> it = messages.iterator();
+            while (it.hasNext()) {
+                ACLMessage msg = it.next();
+                if (template == null || template.match(msg)) {
+                    it.remove();
+                    return msg;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public List<ACLMessage> receive(MessageTemplate template, int max) {
+            List<ACLMessage> received = new ArrayList<>();
+            Iterator<ACLMessage> it = messages.iterator();
+            while (it.hasNext() && received.size() < max) {
+                ACLMessage msg = it.next();
+                if (template == null || template.match(msg)) {
+                    it.remove();
+                    received.add(msg);
+                }
+            }
+            return received.isEmpty() ? null : received;
+        }
+
+        @Override
+        public void copyTo(jade.util.leap.List list) {
+            for (ACLMessage msg : messages) {
+                list.add(msg);
+            }
+        }
+
+        @Override
+        public int size() {
+            return messages.size();
+        }
+    }
+}
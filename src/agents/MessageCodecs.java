@@ -0,0 +1,127 @@
+package agents;
+
+import jade.lang.acl.ACLMessage;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Content codecs for ACL messages. The ACL language field names the codec a
+// message's content is written in. Replies are written with writeReply() in the
+// request's codec, so a client that writes binary is answered in binary. Content
+// with no known language, or plain text content, is read as JSON text and
+// answered in JSON, which keeps older senders working. New messages use the
+// codec named by the smartcampus.codec system property ("binary" by default,
+// or "json").
+final class MessageCodecs {
+    interface Codec {
+        String language();
+
+        // content is a JSONObject or a JSONArray
+        void write(ACLMessage msg, Object content);
+
+        Object read(ACLMessage msg);
+    }
+
+    static final Codec JSON = new Codec() {
+        @Override
+        public String language() {
+            return "json";
+        }
+
+        @Override
+        public void write(ACLMessage msg, Object content) {
+            msg.setContent(content.toString());
+        }
+
+        @Override
+        public Object read(ACLMessage msg) {
+            return new JSONTokener(msg.getContent()).nextValue();
+        }
+    };
+
+    static final Codec BINARY = new BinaryContentCodec();
+
+    private static final Map<String, Codec> codecs = new ConcurrentHashMap<>();
+    private static volatile Codec preferred;
+
+    static {
+        register(JSON);
+        register(BINARY);
+        preferred = codecs.getOrDefault(System.getProperty("smartcampus.codec", BINARY.language()), BINARY);
+    }
+
+    private MessageCodecs() {
+    }
+
+    static void register(Codec codec) {
+        codecs.put(codec.language(), codec);
+    }
+
+    // Writes content in the message's language; a message without one gets the preferred codec.
+    // Use writeReply() for replies, whose language createReply() copies from a possibly legacy request.
+    static void write(ACLMessage msg, Object content) {
+        String language = msg.getLanguage();
+        Codec codec = language == null ? null : codecs.get(language);
+        if (codec == null) {
+            codec = language == null ? preferred : JSON;
+            if (language == null) {
+                msg.setLanguage(codec.language());
+            }
+        }
+        codec.write(msg, content);
+    }
+
+    // Writes a reply in the codec the request was read with: the request's own codec, or
+    // JSON when it has no language or an unknown one, since that is how read() took it
+    static void writeReply(ACLMessage request, ACLMessage reply, Object content) {
+        String language = request.getLanguage();
+        Codec codec = language == null ? null : codecs.get(language);
+        if (codec == null) {
+            codec = JSON;
+        }
+        reply.setLanguage(codec.language());
+        codec.write(reply, content);
+    }
+
+    static Object read(ACLMessage msg) {
+        Codec codec = msg.hasByteSequenceContent() ? codecs.get(msg.getLanguage()) : null;
+        return (codec == null ? JSON : codec).read(msg);
+    }
+
+    static JSONObject readObject(ACLMessage msg) {
+        Object content = read(msg);
+        if (!(content instanceof JSONObject)) {
+            throw new IllegalArgumentException("Expected a JSON object in message content");
+        }
+        return (JSONObject) content;
+    }
+
+    static JSONArray readArray(ACLMessage msg) {
+        Object content = read(msg);
+        if (!(content instanceof JSONArray)) {
+            throw new IllegalArgumentException("Expected a JSON array in message content");
+        }
+        return (JSONArray) content;
+    }
+
+    // Readable content for display and logs: encoded content is rendered as JSON text
+    static String text(ACLMessage msg) {
+        if (msg.hasByteSequenceContent() && codecs.containsKey(msg.getLanguage())) {
+            return read(msg).toString();
+        }
+        return msg.getContent();
+    }
+
+    // Copies content as-is, without decoding it, when relaying a message
+    static void copyContent(ACLMessage from, ACLMessage to) {
+        to.setLanguage(from.getLanguage());
+        if (from.hasByteSequenceContent()) {
+            to.setByteSequenceContent(from.getByteSequenceContent());
+        } else {
+            to.setContent(from.getContent());
+        }
+    }
+}
@@ -1,28 +1,69 @@
 package agents;
 
 import jade.core.Agent;
+import jade.core.MessageQueue;
 import jade.core.AID;
 import jade.core.behaviours.CyclicBehaviour;
+import jade.core.behaviours.TickerBehaviour;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
 import jade.domain.DFService;
 import jade.domain.FIPAAgentManagement.DFAgentDescription;
 import jade.domain.FIPAAgentManagement.ServiceDescription;
 import jade.domain.FIPAException;
+import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 public class NavigationAssistantAgent extends Agent {
-    // Simulated room database
-    private static final Map<String, RoomInfo> roomDatabase = new HashMap<>();
+    private static final int ROUTE_CACHE_SIZE = Integer.getInteger("smartcampus.navigation.cacheSize", 10000);
+    // Extra comma-separated locations to precompute routes from, besides entrances and outdoor places
+    private static final String EXTRA_HUBS = System.getProperty("smartcampus.navigation.hubs");
+    private static final long STATISTICS_PERIOD_MS = 60000;
+    // Compiled map file (see CampusMapCompiler); the "map=" argument overrides it
+    private static final String MAP_FILE = System.getProperty("smartcampus.navigation.map");
+    // Protocol of the INFORMs carrying live corridor occupancy and closures
+    static final String CONDITIONS_PROTOCOL = "campus-conditions";
+    // How much slower a fully crowded connection is than an empty one
+    private static final float CROWD_SLOWDOWN = 3;
+
+    // Campus map and the router over it; both only used from the agent thread
+    private CampusGraph campus;
+    private RouteFinder routeFinder;
+    // Closed and crowded corridors, elevators and doors; replaced as a whole on every change
+    private EdgeConditions conditions;
+    private long conditionUpdates;
+    private RouteCache routeCache;
+    private RouteTables routeTables;
+    // Catalog version last compared with the map
+    private long checkedCatalogVersion;
+    // Notification providers, followed through a DF subscription
+    private ServiceRegistry serviceRegistry;
+
+    // New requests are refused rather than queued when the mailbox backs up
+    @Override
+    protected MessageQueue createMessageQueue() {
+        return MailboxGuard.install(this, super.createMessageQueue());
+    }
 
     @Override
     protected void setup() {
-        // Initialize room database
-        roomDatabase.put("101", new RoomInfo("Building A", 1, "Take elevator to floor 1, turn right, room is on the left", "2 minutes"));
-        roomDatabase.put("102", new RoomInfo("Building B", 2, "Walk to Building B, take stairs to floor 2, room is straight ahead", "5 minutes"));
+        campus = loadCampus(stringArgument("map", MAP_FILE));
+        routeFinder = new RouteFinder(campus);
+        System.out.println("Campus map loaded: " + campus.nodeCount() + " nodes, " + campus.edgeCount() + " edges");
+        conditions = EdgeConditions.open(campus);
+        routeCache = new RouteCache(campus, ROUTE_CACHE_SIZE);
+        routeTables = new RouteTables(campus, RouteTables.defaultHubs(campus, EXTRA_HUBS), ForkJoinPool.commonPool());
+        long started = System.nanoTime();
+        routeTables.buildAll(conditions);
+        System.out.println("Precomputed routes from " + routeTables.hubCount() + " hubs in "
+                + (System.nanoTime() - started) / 1000000 + " ms");
 
         // Register this agent with the Directory Facilitator (DF)
         try {
@@ -39,8 +80,63 @@ public class NavigationAssistantAgent extends Agent {
             e.printStackTrace();
         }
 
+        serviceRegistry = new ServiceRegistry(this);
+        serviceRegistry.track("notification", ServiceRegistry.Strategy.LEAST_LOADED);
+        addBehaviour(serviceRegistry.behaviour());
+
         // Add behavior to handle navigation requests
         addBehaviour(new NavigationBehavior());
+        addBehaviour(new ConditionsFeedBehavior());
+        addBehaviour(new StatisticsBehavior());
+    }
+
+    // Logs the route cache hit rate when there were lookups since the last report
+    private class StatisticsBehavior extends TickerBehaviour {
+        private long reportedLookups;
+
+        StatisticsBehavior() {
+            super(NavigationAssistantAgent.this, STATISTICS_PERIOD_MS);
+        }
+
+        @Override
+        protected void onTick() {
+            if (routeCache.lookups() != reportedLookups) {
+                reportedLookups = routeCache.lookups();
+                System.out.println("Route cache: " + routeCache.statistics() + "; " + routeTables.served()
+                        + " routes from hub tables; " + conditionUpdates + " condition updates, "
+                        + routeTables.repairStatistics());
+            }
+        }
+    }
+
+    // Maps the compiled campus map, or falls back to the built-in campus
+    private CampusGraph loadCampus(String file) {
+        if (file != null) {
+            try {
+                long started = System.nanoTime();
+                CampusGraph graph = CampusGraph.load(Paths.get(file));
+                System.out.println("Mapped campus map " + file + " (" + graph.byteSize() + " bytes) in "
+                        + (System.nanoTime() - started) / 1000 + " us");
+                return graph;
+            } catch (IOException e) {
+                System.err.println("Cannot load campus map, using the built-in campus: " + e.getMessage());
+            }
+        }
+        return CampusGraph.defaultCampus();
+    }
+
+    // Reads "name=value" from the agent's start-up arguments
+    private String stringArgument(String name, String defaultValue) {
+        Object[] args = getArguments();
+        if (args != null) {
+            for (Object arg : args) {
+                String text = String.valueOf(arg);
+                if (text.startsWith(name + "=")) {
+                    return text.substring(name.length() + 1).trim();
+                }
+            }
+        }
+        return defaultValue;
     }
 
     private class NavigationBehavior extends CyclicBehaviour {
@@ -53,18 +149,23 @@ public class NavigationAssistantAgent extends Agent {
             if (msg != null) {
                 try {
                     // Parse the incoming message as a JSON object
-                    JSONObject request = new JSONObject(msg.getContent());
+                    JSONObject request = MessageCodecs.readObject(msg);
+                    if ("CLOSURE".equals(request.optString("type"))) {
+                        handleClosure(msg, request);
+                        return;
+                    }
                     String roomNumber = request.getString("roomNumber");
                     String currentLocation = request.getString("currentLocation");
                     String userId = request.optString("userId", "Unknown");
+                    AccessProfile profile = AccessProfile.fromLabel(request.optString("accessibility", null));
 
                     // Generate response based on room availability
-                    JSONObject response = generateDirections(currentLocation, roomNumber);
+                    JSONObject response = generateDirections(currentLocation, roomNumber, profile);
 
                     // Send the reply back
                     ACLMessage reply = msg.createReply();
                     reply.setPerformative(ACLMessage.INFORM);
-                    reply.setContent(response.toString());
+                    MessageCodecs.writeReply(msg, reply, response);
                     send(reply);
 
                     // Send notification
@@ -77,29 +178,146 @@ public class NavigationAssistantAgent extends Agent {
             }
         }
 
-        // Method to generate directions based on room number
-        private JSONObject generateDirections(String from, String roomNumber) {
+        // Routes from the current location (a room number or a named place such
+        // as "Main Entrance") to the room, with turn-by-turn steps and an ETA.
+        // Routes come from the cache, then the hub tables, then a search. A room
+        // the shared catalog knows but the map does not is routed to its
+        // building's entrance.
+        private JSONObject generateDirections(String from, String roomNumber, AccessProfile profile) {
             JSONObject response = new JSONObject();
+            RoomCatalog.Snapshot catalog = RoomCatalog.shared().current();
+            checkCatalog(catalog);
+            RoomCatalog.Room info = catalog.room(roomNumber.trim());
+            int goal = campus.find(roomNumber);
+            int start = campus.find(from);
 
-            if (roomDatabase.containsKey(roomNumber)) {
-                RoomInfo roomInfo = roomDatabase.get(roomNumber);
-                response.put("building", roomInfo.building);
-                response.put("floor", roomInfo.floor);
-                response.put("directions", roomInfo.directions);
-                response.put("estimatedTime", roomInfo.estimatedTime);
-                response.put("from", from);
-                response.put("to", roomNumber);
-            } else {
+            boolean onMap = goal >= 0 && campus.kind(goal) == CampusGraph.ROOM;
+            if (!onMap && info == null) {
                 response.put("error", "Room " + roomNumber + " not found in the database.");
+                return response;
+            }
+            if (!onMap) {
+                goal = campus.find(info.building + " Entrance");
+                if (goal < 0) {
+                    response.put("error", "Room " + roomNumber + " is in " + info.building + ", which is not on the campus map.");
+                    return response;
+                }
+            }
+            if (start < 0) {
+                response.put("error", "Unknown location: " + from);
+                return response;
+            }
+            RouteFinder.Route route = routeCache.get(start, goal, profile);
+            if (route == null) {
+                // The hub tables lag the conditions while they are being repaired; search meanwhile
+                RouteTables.Snapshot tables = routeTables.snapshot();
+                if (tables.conditions == conditions) {
+                    route = routeTables.route(start, goal, profile, tables);
+                }
+                if (route == null) {
+                    route = routeFinder.find(start, goal, profile, conditions);
+                }
+                if (route != null) {
+                    routeCache.put(start, goal, profile, route);
+                }
+            }
+            if (route == null) {
+                response.put("error", "No " + (profile == AccessProfile.STANDARD ? "" : profile.label + " ")
+                        + "route from " + from + " to room " + roomNumber + ".");
+                return response;
             }
 
+            List<String> steps = RouteFinder.describe(campus, route);
+            if (!onMap) {
+                steps.add("Room " + roomNumber + " is on floor " + info.floor);
+            }
+            // Where the map puts a room is where the route goes; checkCatalog() reports disagreements
+            response.put("building", onMap ? campus.buildingName(goal) : info.building);
+            response.put("floor", onMap ? campus.floor(goal) : info.floor);
+            if (info != null) {
+                response.put("capacity", info.capacity);
+            }
+            response.put("directions", String.join("\n", steps));
+            response.put("steps", steps);
+            response.put("distanceMeters", Math.round(route.metres));
+            response.put("etaSeconds", Math.round(route.seconds));
+            response.put("estimatedTime", RouteFinder.formatDuration(route.seconds));
+            response.put("from", from);
+            response.put("to", roomNumber);
+            response.put("accessibility", profile.label);
             return response;
         }
 
+        // Logs the rooms whose catalog entry disagrees with the map, once per catalog version
+        private void checkCatalog(RoomCatalog.Snapshot catalog) {
+            if (catalog.version == checkedCatalogVersion) {
+                return;
+            }
+            checkedCatalogVersion = catalog.version;
+            List<String> problems = new ArrayList<>();
+            for (RoomCatalog.Room room : catalog.rooms()) {
+                int node = campus.find(room.number);
+                if (node < 0 || campus.kind(node) != CampusGraph.ROOM) {
+                    problems.add(room.number + " is not on the map");
+                } else if (!room.building.equals(campus.buildingName(node)) || room.floor != campus.floor(node)) {
+                    problems.add(room.number + " is in " + room.building + " floor " + room.floor + " but the map has "
+                            + campus.buildingName(node) + " floor " + campus.floor(node));
+                }
+            }
+            if (!problems.isEmpty()) {
+                System.err.println("Room catalog version " + catalog.version + " differs from the campus map in "
+                        + problems.size() + " rooms: " + String.join("; ", problems.subList(0, Math.min(10, problems.size())))
+                        + (problems.size() > 10 ? "; ..." : ""));
+            }
+        }
+
+        // Closes or reopens a location (every connection into it, e.g. an
+        // elevator landing or a corridor point) or the connection between two
+        // adjacent locations: {"type": "CLOSURE", "location": ..., "closed": true}
+        // or {"type": "CLOSURE", "from": ..., "to": ..., "closed": false}
+        private void handleClosure(ACLMessage msg, JSONObject request) {
+            ACLMessage reply = msg.createReply();
+            JSONObject response = new JSONObject();
+            boolean closed = request.optBoolean("closed", true);
+            int[] edges = closureEdges(request, response);
+            if (edges == null) {
+                reply.setPerformative(ACLMessage.FAILURE);
+                MessageCodecs.writeReply(msg, reply, response);
+                send(reply);
+                return;
+            }
+
+            EdgeConditions.Update update = conditions.update(campus);
+            for (int edge : edges) {
+                if (closed) {
+                    update.close(edge);
+                } else {
+                    update.open(edge, 1);
+                }
+            }
+            int invalidated = applyConditions(update);
+            if (invalidated >= 0) {
+                System.out.println((closed ? "Closed " : "Reopened ") + describeClosure(request) + ": "
+                        + invalidated + " cached routes invalidated");
+            }
+
+            reply.setPerformative(ACLMessage.INFORM);
+            response.put("closed", closed);
+            response.put("connections", edges.length);
+            response.put("invalidatedRoutes", Math.max(0, invalidated));
+            response.put("closedConnections", conditions.closedCount() / 2);
+            MessageCodecs.writeReply(msg, reply, response);
+            send(reply);
+        }
+
         // Method to send a notification to the NotificationAgent
         private void sendNotification(String userId, JSONObject response) {
+            AID notificationAgent = serviceRegistry.pick("notification");
+            if (notificationAgent == null) {
+                System.out.println("NotificationAgent not available");
+                return;
+            }
             ACLMessage notification = new ACLMessage(ACLMessage.REQUEST);
-            AID notificationAgent = new AID("NotificationAgent", AID.ISLOCALNAME); // Assumes NotificationAgent's local name
             notification.addReceiver(notificationAgent);
 
             JSONObject notificationContent = new JSONObject();
@@ -112,13 +330,128 @@ public class NavigationAssistantAgent extends Agent {
                 notificationContent.put("message", "Directions to " + response.getString("to") + " provided successfully.");
             }
 
-            notification.setContent(notificationContent.toString());
+            notification.addUserDefinedParameter(NotificationAgent.NO_ACK, "true");
+            MessageCodecs.write(notification, notificationContent);
             send(notification);
         }
     }
 
+    // Live conditions from occupancy sensors and facilities staff, as
+    // INFORMs with the CONDITIONS_PROTOCOL and no reply:
+    // {"updates": [{"location": ..., "occupancy": 0.8}, {"from": ..., "to": ..., "closed": true}, ...]}
+    // A location covers every connection into it, like a CLOSURE request. An
+    // update closes ("closed": true) or reopens the connections at a slowdown
+    // given directly ("slowdown": 1.5) or from the occupancy between 0 and 1.
+    // Each message is applied as one batch.
+    private class ConditionsFeedBehavior extends CyclicBehaviour {
+        private final MessageTemplate mt = MessageTemplate.and(
+                MessageTemplate.MatchPerformative(ACLMessage.INFORM),
+                MessageTemplate.MatchProtocol(CONDITIONS_PROTOCOL));
+
+        @Override
+        public void action() {
+            ACLMessage msg = myAgent.receive(mt);
+            if (msg == null) {
+                block();
+                return;
+            }
+            try {
+                JSONArray updates = MessageCodecs.readObject(msg).getJSONArray("updates");
+                EdgeConditions.Update update = conditions.update(campus);
+                for (int i = 0; i < updates.length(); i++) {
+                    JSONObject entry = updates.getJSONObject(i);
+                    JSONObject error = new JSONObject();
+                    int[] edges = closureEdges(entry, error);
+                    if (edges == null) {
+                        System.err.println("Ignoring conditions update from " + msg.getSender().getLocalName()
+                                + ": " + error.optString("error"));
+                        continue;
+                    }
+                    boolean closed = entry.optBoolean("closed", false);
+                    float slowdown = entry.has("slowdown") ? (float) entry.getDouble("slowdown")
+                            : 1 + CROWD_SLOWDOWN * (float) Math.min(1, Math.max(0, entry.optDouble("occupancy", 0)));
+                    for (int edge : edges) {
+                        if (closed) {
+                            update.close(edge);
+                        } else {
+                            update.open(edge, slowdown);
+                        }
+                    }
+                }
+                applyConditions(update);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Makes the update the current conditions: drops the cached routes it may
+    // have made wrong and starts repairing the hub tables. Returns the number
+    // of cached routes dropped, or -1 if nothing changed.
+    private int applyConditions(EdgeConditions.Update update) {
+        EdgeConditions previous = conditions;
+        EdgeConditions next = update.apply();
+        if (next == previous) {
+            return -1;
+        }
+        int[] changed = update.changedEdges();
+        // Routes along a changed connection have a different time; elsewhere only a faster connection can matter
+        int invalidated = routeCache.invalidateEdges(changed);
+        int[] faster = Arrays.stream(changed).filter(e -> next.slowdown(e) < previous.slowdown(e)).toArray();
+        invalidated += routeCache.invalidateImprovable(faster, next);
+        conditions = next;
+        conditionUpdates++;
+        routeTables.update(changed, next);
+        return invalidated;
+    }
+
+    // The edges a closure request or feed update names, or null with an error in the response
+    private int[] closureEdges(JSONObject request, JSONObject response) {
+        List<Integer> edges = new ArrayList<>();
+        if (request.has("location")) {
+            int node = campus.find(request.getString("location"));
+            if (node < 0) {
+                response.put("error", "Unknown location: " + request.getString("location"));
+                return null;
+            }
+            for (int e = campus.firstEdge(node), end = campus.firstEdge(node + 1); e < end; e++) {
+                edges.add(e);
+            }
+        } else {
+            int a = campus.find(request.optString("from"));
+            int b = campus.find(request.optString("to"));
+            if (a < 0 || b < 0) {
+                response.put("error", "A closure needs a location, or from and to locations");
+                return null;
+            }
+            for (int e = campus.firstEdge(a), end = campus.firstEdge(a + 1); e < end; e++) {
+                if (campus.target(e) == b) {
+                    edges.add(e);
+                }
+            }
+            if (edges.isEmpty()) {
+                response.put("error", request.getString("from") + " and " + request.getString("to")
+                        + " are not directly connected");
+                return null;
+            }
+        }
+        return edges.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private String describeClosure(JSONObject request) {
+        return request.has("location") ? request.getString("location")
+                : request.optString("from") + " - " + request.optString("to");
+    }
+
     @Override
     protected void takeDown() {
+        MailboxGuard.uninstall(this);
+        if (routeCache != null) {
+            System.out.println("Route cache: " + routeCache.statistics());
+        }
+        if (serviceRegistry != null) {
+            serviceRegistry.close();
+        }
         // Deregister from the DF when the agent is taken down
         try {
             DFService.deregister(this);
@@ -127,19 +460,4 @@ public class NavigationAssistantAgent extends Agent {
         }
         System.out.println("NavigationAssistantAgent " + getAID().getName() + " terminating.");
     }
-
-    // Inner class to represent room information
-    private static class RoomInfo {
-        String building;
-        int floor;
-        String directions;
-        String estimatedTime;
-
-        RoomInfo(String building, int floor, String directions, String estimatedTime) {
-            this.building = building;
-            this.floor = floor;
-            this.directions = directions;
-            this.estimatedTime = estimatedTime;
-        }
-    }
 }
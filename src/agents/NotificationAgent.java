@@ -1,17 +1,83 @@
 package agents;
 
 import jade.core.Agent;
+import jade.core.MessageQueue;
 import jade.core.AID;
 import jade.core.behaviours.CyclicBehaviour;
+import jade.core.behaviours.TickerBehaviour;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
 import jade.domain.DFService;
 import jade.domain.FIPAAgentManagement.DFAgentDescription;
 import jade.domain.FIPAAgentManagement.ServiceDescription;
 import jade.domain.FIPAException;
+import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 public class NotificationAgent extends Agent {
+    // Senders set this user-defined parameter to "true" when they do not read the INFORM ack
+    static final String NO_ACK = "no-ack";
+    // Notifications for one recipient are held this long and sent as one message
+    private static final long BATCH_WINDOW_MS = 50;
+    private static final int MAX_BATCH_SIZE = 50;
+    // Delivered batches carry these; the recipient CONFIRMs with the same values
+    static final String OUTBOX_OFFSET = "outbox-offset";
+    static final String OUTBOX_EPOCH = "outbox-epoch";
+    private static final String OUTBOX_DIRECTORY = "notification-outbox";
+    private static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+    // Unconfirmed deliveries are sent again after this long
+    private static final long RETRY_MS = 5 * 1000;
+    // At most this much of the log is sent ahead of a recipient's last confirmation
+    private static final long MAX_IN_FLIGHT_BYTES = 256 * 1024;
+    private static final long COMPACT_EVERY_TICKS = 200;
+    // A recipient that confirms nothing for this long while notifications wait for it
+    // is forgotten, e.g. the default display when no GUI is running
+    private static final long OUTBOX_RETENTION_MS = Long.getLong("smartcampus.outbox.retentionMs", 60 * 60 * 1000);
+    // Each user keeps this many recent notifications for inbox queries; the
+    // users quiet the longest are forgotten beyond the user limit
+    private static final int INBOX_CAPACITY = Integer.getInteger("smartcampus.inbox.capacity", 50);
+    private static final int INBOX_MAX_USERS = Integer.getInteger("smartcampus.inbox.maxUsers", 50000);
+    private static final int DEFAULT_PAGE_SIZE = 20;
+    // Senders balance on the mailbox depth this agent reports to its load subscribers
+    private static final long LOAD_REPORT_PERIOD_MS = 1000;
+    // Used until a notification display has registered with the DF
+    private static final String DEFAULT_DISPLAY = "GUIAgent";
+
+    // Delivery progress for one recipient; the confirmed offset is kept by the outbox
+    private static final class Delivery {
+        final AID recipient;
+        // Entries before this offset have been sent
+        long sent;
+        long lastSentAt;
+        // Appended since the last send
+        int pending;
+
+        Delivery(AID recipient, long sent) {
+            this.recipient = recipient;
+            this.sent = sent;
+        }
+    }
+
+    // Every notification is appended here first, so it survives a restart of either end
+    private NotificationOutbox outbox;
+    private final Map<String, Delivery> deliveries = new LinkedHashMap<>();
+    private final UserInboxes inboxes = new UserInboxes(INBOX_CAPACITY, INBOX_MAX_USERS);
+    private ServiceRegistry serviceRegistry;
+    private long received;
+    private long delivered;
+
+    // New requests are refused rather than queued when the mailbox backs up
+    @Override
+    protected MessageQueue createMessageQueue() {
+        return MailboxGuard.install(this, super.createMessageQueue());
+    }
+
     @Override
     protected void setup() {
         // Register this agent with the Directory Facilitator (DF)
@@ -29,8 +95,33 @@ public class NotificationAgent extends Agent {
             e.printStackTrace();
         }
 
+        serviceRegistry = new ServiceRegistry(this);
+        serviceRegistry.track("notification-display", ServiceRegistry.Strategy.ROUND_ROBIN);
+        addBehaviour(serviceRegistry.behaviour());
+        addBehaviour(new ServiceRegistry.LoadAdvertiser(this, LOAD_REPORT_PERIOD_MS));
+
+        try {
+            outbox = new NotificationOutbox(Paths.get(OUTBOX_DIRECTORY), SEGMENT_SIZE);
+        } catch (IOException e) {
+            System.err.println("Cannot open the notification outbox, notifications will not survive a restart: " + e.getMessage());
+            try {
+                outbox = new NotificationOutbox(Files.createTempDirectory(OUTBOX_DIRECTORY), SEGMENT_SIZE);
+            } catch (IOException fallback) {
+                fallback.printStackTrace();
+                doDelete();
+                return;
+            }
+        }
+        // Anything not confirmed before the last shutdown is sent again
+        for (String name : outbox.recipients()) {
+            deliveries.put(name, new Delivery(new AID(name, AID.ISGUID), outbox.acked(name)));
+        }
+
         // Add the behavior to handle notifications
         addBehaviour(new NotificationBehavior());
+        addBehaviour(new FlushBehavior());
+        addBehaviour(new ConfirmationBehavior());
+        addBehaviour(new InboxQueryBehavior());
     }
 
     // Inner class to handle incoming requests
@@ -44,7 +135,7 @@ public class NotificationAgent extends Agent {
             if (msg != null) {
                 try {
                     // Parse the incoming message as a JSON object
-                    JSONObject notification = new JSONObject(msg.getContent());
+                    JSONObject notification = MessageCodecs.readObject(msg);
                     String type = notification.getString("type");
                     String userId = notification.getString("userId");
                     String message = notification.getString("message");
@@ -52,11 +143,13 @@ public class NotificationAgent extends Agent {
                     // Handle the notification
                     sendNotification(userId, type, message);
 
-                    // Send a reply back to the sender
-                    ACLMessage reply = msg.createReply();
-                    reply.setPerformative(ACLMessage.INFORM);
-                    reply.setContent("Notification sent successfully");
-                    send(reply);
+                    // Send a reply back to the sender, unless it asked not to get one
+                    if (!"true".equals(msg.getUserDefinedParameter(NO_ACK))) {
+                        ACLMessage reply = msg.createReply();
+                        reply.setPerformative(ACLMessage.INFORM);
+                        reply.setContent("Notification sent successfully");
+                        send(reply);
+                    }
 
                 } catch (Exception e) {
                     e.printStackTrace();
@@ -71,31 +164,208 @@ public class NotificationAgent extends Agent {
             // Print the notification to the console
             //System.out.println("Notification for user " + userId + ": " + message);
 
-            // Forward the notification to the GUIAgent
-            ACLMessage guiMessage = new ACLMessage(ACLMessage.INFORM);
-            AID guiAgent = new AID("GUIAgent", AID.ISLOCALNAME); // Assumes GUIAgent's local name
-            guiMessage.addReceiver(guiAgent);
+            inboxes.add(userId, type, message, System.currentTimeMillis());
+
+            // Queue the notification for a display agent
+            AID registered = serviceRegistry.pick("notification-display");
+            AID display = registered != null ? registered : new AID(DEFAULT_DISPLAY, AID.ISLOCALNAME);
+            Delivery delivery = deliveries.computeIfAbsent(display.getName(), k -> new Delivery(display, outbox.end()));
+
+            try {
+                outbox.append(display.getName(), userId, type, message);
+            } catch (IOException e) {
+                System.err.println("Cannot append to the notification outbox: " + e.getMessage());
+                return;
+            }
+            received++;
+            if (++delivery.pending >= MAX_BATCH_SIZE) {
+                deliver(delivery, System.currentTimeMillis());
+            }
+        }
+    }
+
+    // Sends what arrived during the last window, replays unconfirmed deliveries and
+    // now and then forgets unresponsive recipients and drops log segments every
+    // remaining recipient has confirmed
+    private class FlushBehavior extends TickerBehaviour {
+        FlushBehavior() {
+            super(NotificationAgent.this, BATCH_WINDOW_MS);
+        }
+
+        @Override
+        protected void onTick() {
+            long now = System.currentTimeMillis();
+            for (Delivery delivery : deliveries.values()) {
+                long acked = outbox.acked(delivery.recipient.getName());
+                if (acked < delivery.sent && now - delivery.lastSentAt > RETRY_MS) {
+                    delivery.sent = acked;
+                }
+                if (delivery.sent < outbox.end()) {
+                    deliver(delivery, now);
+                }
+            }
+            if (getTickCount() % COMPACT_EVERY_TICKS == 0) {
+                try {
+                    for (String name : outbox.expire(OUTBOX_RETENTION_MS)) {
+                        deliveries.remove(name);
+                        System.out.println("Notification outbox: gave up on " + name + " after "
+                                + OUTBOX_RETENTION_MS / 1000 + " s without a confirmation");
+                    }
+                    int removed = outbox.compact();
+                    if (removed > 0) {
+                        System.out.println("Notification outbox: removed " + removed + " delivered segments");
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
 
-            JSONObject guiNotification = new JSONObject();
-            guiNotification.put("userId", userId);
-            guiNotification.put("type", type);
-            guiNotification.put("message", message);
+    // Sends the recipient's entries from its sent offset in batches, staying within
+    // the in-flight limit. A single notification keeps the original
+    // {userId, type, message} form; more than one is sent as {"notifications": [...]}.
+    // Each notification carries its log offset so the recipient can skip replays.
+    private void deliver(Delivery delivery, long now) {
+        String name = delivery.recipient.getName();
+        outbox.force();
+        delivery.pending = 0;
+        while (delivery.sent < outbox.end() && delivery.sent - outbox.acked(name) < MAX_IN_FLIGHT_BYTES) {
+            NotificationOutbox.Batch batch = outbox.read(name, delivery.sent, MAX_BATCH_SIZE);
+            if (batch.entries.isEmpty()) {
+                // Only other recipients' entries were in the way
+                if (delivery.sent == outbox.acked(name)) {
+                    acknowledge(name, batch.next);
+                }
+                delivery.sent = batch.next;
+                continue;
+            }
 
-            guiMessage.setContent(guiNotification.toString());
+            JSONArray notifications = new JSONArray();
+            for (NotificationOutbox.Entry entry : batch.entries) {
+                JSONObject notification = new JSONObject();
+                notification.put("userId", entry.userId);
+                notification.put("type", entry.type);
+                notification.put("message", entry.message);
+                notification.put("offset", entry.offset);
+                notifications.put(notification);
+            }
+            ACLMessage guiMessage = new ACLMessage(ACLMessage.INFORM);
+            guiMessage.addReceiver(delivery.recipient);
+            guiMessage.addUserDefinedParameter(OUTBOX_OFFSET, String.valueOf(batch.next));
+            guiMessage.addUserDefinedParameter(OUTBOX_EPOCH, outbox.epoch());
+            if (notifications.length() == 1) {
+                MessageCodecs.write(guiMessage, notifications.getJSONObject(0));
+            } else {
+                JSONObject content = new JSONObject();
+                content.put("notifications", notifications);
+                MessageCodecs.write(guiMessage, content);
+            }
             send(guiMessage);
+            delivered++;
+            delivery.sent = batch.next;
+            delivery.lastSentAt = now;
+        }
+    }
+
+    private void acknowledge(String recipient, long offset) {
+        try {
+            outbox.acknowledge(recipient, offset);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Recipients CONFIRM each batch; the AMS reports batches it could not deliver,
+    // which are simply sent again once the retry interval has passed
+    private class ConfirmationBehavior extends CyclicBehaviour {
+        @Override
+        public void action() {
+            MessageTemplate mt = MessageTemplate.or(
+                    MessageTemplate.MatchPerformative(ACLMessage.CONFIRM),
+                    MessageTemplate.and(
+                            MessageTemplate.and(
+                                    MessageTemplate.MatchPerformative(ACLMessage.FAILURE),
+                                    MessageTemplate.MatchSender(getAMS())),
+                            MessageTemplate.not(MessageTemplate.MatchProtocol(ServiceRegistry.LOAD_PROTOCOL))));
+            ACLMessage msg = myAgent.receive(mt);
+
+            if (msg != null) {
+                String offset = msg.getUserDefinedParameter(OUTBOX_OFFSET);
+                if (msg.getPerformative() == ACLMessage.CONFIRM && offset != null
+                        && outbox.epoch().equals(msg.getUserDefinedParameter(OUTBOX_EPOCH))) {
+                    try {
+                        acknowledge(msg.getSender().getName(), Long.parseLong(offset));
+                    } catch (NumberFormatException e) {
+                        System.err.println("Ignoring confirmation with invalid offset: " + offset);
+                    }
+                }
+            } else {
+                block();
+            }
         }
     }
 
+    // Answers QUERY_REF {"type": "INBOX", "userId", "limit", "cursor", "notificationType",
+    // "since", "markRead"} with one page of the user's notifications, newest first:
+    // {"userId", "notifications": [{seq, timestamp, type, message, read}], "nextCursor",
+    // "unread", "total"}. Pass nextCursor back as cursor for the following page.
+    private class InboxQueryBehavior extends CyclicBehaviour {
+        @Override
+        public void action() {
+            MessageTemplate mt = MessageTemplate.MatchPerformative(ACLMessage.QUERY_REF);
+            ACLMessage msg = myAgent.receive(mt);
 
+            if (msg != null) {
+                ACLMessage reply = msg.createReply();
+                try {
+                    JSONObject query = MessageCodecs.readObject(msg);
+                    if (!"INBOX".equals(query.optString("type"))) {
+                        reply.setPerformative(ACLMessage.NOT_UNDERSTOOD);
+                        reply.setContent("Unknown query type: " + query.optString("type"));
+                    } else {
+                        JSONObject page = inboxes.query(
+                                query.getString("userId"),
+                                Math.max(1, Math.min(INBOX_CAPACITY, query.optInt("limit", DEFAULT_PAGE_SIZE))),
+                                query.optLong("cursor", Long.MAX_VALUE),
+                                query.has("notificationType") ? query.getString("notificationType") : null,
+                                query.optLong("since", 0),
+                                query.optBoolean("markRead", false));
+                        reply.setPerformative(ACLMessage.INFORM);
+                        MessageCodecs.writeReply(msg, reply, page);
+                    }
+                } catch (Exception e) {
+                    reply.setPerformative(ACLMessage.FAILURE);
+                    reply.setContent("Invalid inbox query: " + e.getMessage());
+                }
+                send(reply);
+            } else {
+                block();
+            }
+        }
+    }
 
     @Override
     protected void takeDown() {
+        MailboxGuard.uninstall(this);
+        if (serviceRegistry != null) {
+            serviceRegistry.close();
+        }
         // Deregister from the DF when the agent is taken down
         try {
             DFService.deregister(this);
         } catch (FIPAException e) {
             e.printStackTrace();
         }
+        if (outbox != null) {
+            try {
+                outbox.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        System.out.println("NotificationAgent delivered " + received + " notifications in " + delivered + " messages");
+        System.out.println("NotificationAgent inboxes: " + inboxes.entries() + " notifications for " + inboxes.users() + " users");
         System.out.println("NotificationAgent " + getAID().getName() + " terminating.");
     }
 }
@@ -0,0 +1,393 @@
+package agents;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+
+// Append-only log of notifications waiting for delivery, kept in fixed-size
+// memory-mapped segment files. Segment n holds offsets [n * size, (n + 1) * size),
+// so an offset names its segment and position directly. Each entry is a length
+// word and a checksum followed by recipient, userId, type and message as
+// length-prefixed UTF-8. A zero length marks the end of the data, and an entry
+// whose checksum does not match is treated as the end, so a torn append is
+// simply not there after a restart. Every recipient has a durable
+// acknowledged offset; entries past it are replayed until acknowledged, and
+// segments entirely below every recipient's offset are deleted. A recipient
+// that leaves its entries unacknowledged for too long is forgotten by
+// expire(), so a display that went away cannot hold the log back forever.
+// Recipients and their offsets are kept in offsets.properties, so opening the
+// log never reads its entries.
+final class NotificationOutbox {
+    static final class Entry {
+        final long offset;
+        final long next;
+        final String recipient;
+        final String userId;
+        final String type;
+        final String message;
+
+        Entry(long offset, long next, String recipient, String userId, String type, String message) {
+            this.offset = offset;
+            this.next = next;
+            this.recipient = recipient;
+            this.userId = userId;
+            this.type = type;
+            this.message = message;
+        }
+    }
+
+    static final class Batch {
+        final List<Entry> entries;
+        // Where the next read for this recipient should start
+        final long next;
+
+        Batch(List<Entry> entries, long next) {
+            this.entries = entries;
+            this.next = next;
+        }
+    }
+
+    private static final int HEADER = 8;
+    private static final int MAX_MESSAGE_CHARS = 16 * 1024;
+    private static final String OFFSETS_FILE = "offsets.properties";
+    private static final String EPOCH_KEY = "epoch";
+
+    // Delivery state of one recipient
+    private static final class Cursor {
+        // Everything before this offset has been acknowledged
+        long acked;
+        // End of the recipient's latest entry
+        long ownEnd;
+        // When the recipient started waiting on entries it has not acknowledged, or 0
+        long waitingSince;
+
+        Cursor(long acked, long ownEnd, long waitingSince) {
+            this.acked = acked;
+            this.ownEnd = ownEnd;
+            this.waitingSince = waitingSince;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<>();
+    private MappedByteBuffer current;
+    private long currentSegment;
+    private long end;
+    private boolean dirty;
+    private final Map<String, Cursor> cursors = new HashMap<>();
+    // Identifies this log, so a reader can tell a fresh log's offsets from old ones
+    private final String epoch;
+
+    NotificationOutbox(Path directory, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+
+        Properties offsets = new Properties();
+        Path offsetsFile = directory.resolve(OFFSETS_FILE);
+        if (Files.exists(offsetsFile)) {
+            try (Reader reader = Files.newBufferedReader(offsetsFile, StandardCharsets.UTF_8)) {
+                offsets.load(reader);
+            }
+        }
+        String storedEpoch = offsets.getProperty(EPOCH_KEY);
+        epoch = storedEpoch != null ? storedEpoch : UUID.randomUUID().toString();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "segment-*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long n = Long.parseLong(name.substring("segment-".length(), name.length() - ".log".length()));
+                segments.put(n, map(file));
+            }
+        }
+        if (segments.isEmpty()) {
+            openSegment(0);
+        } else {
+            currentSegment = segments.lastKey();
+            current = segments.get(currentSegment);
+            int valid = scanEnd(current);
+            // Clear whatever a torn append left behind, so later entries cannot run into it
+            for (int i = valid; i < segmentSize; i++) {
+                current.put(i, (byte) 0);
+            }
+            current.position(valid);
+        }
+        end = currentSegment * segmentSize + current.position();
+
+        // "acked,waitingSince" per recipient; older files hold the offset alone. Where
+        // the recipient's own entries end is not stored, so it has to acknowledge up
+        // to the end of the log before it stops waiting.
+        long now = System.currentTimeMillis();
+        for (String name : offsets.stringPropertyNames()) {
+            if (name.equals(EPOCH_KEY)) {
+                continue;
+            }
+            String[] fields = offsets.getProperty(name).split(",");
+            long acked = Math.min(Long.parseLong(fields[0]), end);
+            long waitingSince = fields.length > 1 ? Long.parseLong(fields[1]) : 0;
+            if (acked < end && waitingSince == 0) {
+                waitingSince = now;
+            }
+            cursors.put(name, new Cursor(acked, end, acked < end ? waitingSince : 0));
+        }
+        saveOffsets();
+    }
+
+    String epoch() {
+        return epoch;
+    }
+
+    // Appends one notification and returns its offset. Only writes into the
+    // mapped segment; nothing is allocated for ASCII content.
+    long append(String recipient, String userId, String type, String message) throws IOException {
+        if (message.length() > MAX_MESSAGE_CHARS) {
+            message = message.substring(0, MAX_MESSAGE_CHARS);
+        }
+        // UTF-8 needs at most 3 bytes per char, plus four string lengths and the header
+        int worstCase = HEADER + 4 * 4 + 3 * (recipient.length() + userId.length() + type.length() + message.length());
+        if (current.remaining() < worstCase + 4) {
+            openSegment(currentSegment + 1);
+        }
+        int start = current.position();
+        current.position(start + HEADER);
+        putString(recipient);
+        putString(userId);
+        putString(type);
+        putString(message);
+        int length = current.position() - start - HEADER;
+        current.putInt(start + 4, checksum(current, start + HEADER, length));
+        current.putInt(start, length);
+        dirty = true;
+        long offset = currentSegment * segmentSize + start;
+        end = currentSegment * segmentSize + current.position();
+        Cursor cursor = cursors.get(recipient);
+        if (cursor == null) {
+            cursors.put(recipient, new Cursor(offset, end, System.currentTimeMillis()));
+            // A new recipient is recorded at once, since nothing else would find it after a restart
+            saveOffsets();
+        } else {
+            cursor.ownEnd = end;
+            if (cursor.waitingSince == 0) {
+                cursor.waitingSince = System.currentTimeMillis();
+            }
+        }
+        return offset;
+    }
+
+    private void putString(String s) {
+        int lengthAt = current.position();
+        current.position(lengthAt + 4);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                current.put((byte) c);
+            } else if (c < 0x800) {
+                current.put((byte) (0xC0 | (c >> 6)));
+                current.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                current.put((byte) (0xF0 | (cp >> 18)));
+                current.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                current.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                current.put((byte) (0x80 | (cp & 0x3F)));
+            } else {
+                current.put((byte) (0xE0 | (c >> 12)));
+                current.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                current.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        current.putInt(lengthAt, current.position() - lengthAt - 4);
+    }
+
+    // Flushes appended entries to disk; called once per delivery round, not per append
+    void force() {
+        if (dirty) {
+            current.force();
+            dirty = false;
+        }
+    }
+
+    long end() {
+        return end;
+    }
+
+    Set<String> recipients() {
+        return cursors.keySet();
+    }
+
+    long acked(String recipient) {
+        Cursor cursor = cursors.get(recipient);
+        return cursor == null ? end : cursor.acked;
+    }
+
+    // Up to max entries for this recipient, starting at offset from
+    Batch read(String recipient, long from, int max) {
+        return readFrom(from, max, recipient);
+    }
+
+    private Batch readFrom(long from, int max, String recipient) {
+        List<Entry> entries = new ArrayList<>();
+        long offset = Math.max(from, segments.firstKey() * segmentSize);
+        while (offset < end && entries.size() < max) {
+            long n = offset / segmentSize;
+            MappedByteBuffer segment = segments.get(n);
+            int position = (int) (offset % segmentSize);
+            int length = segment == null || position + HEADER > segmentSize ? 0 : segment.getInt(position);
+            if (length == 0) {
+                // The rest of this segment is unused
+                offset = (n + 1) * segmentSize;
+                continue;
+            }
+            int at = position + HEADER;
+            String entryRecipient = getString(segment, at);
+            at += 4 + segment.getInt(at);
+            long next = offset + HEADER + length;
+            if (recipient == null || recipient.equals(entryRecipient)) {
+                String userId = getString(segment, at);
+                at += 4 + segment.getInt(at);
+                String type = getString(segment, at);
+                at += 4 + segment.getInt(at);
+                String message = getString(segment, at);
+                entries.add(new Entry(offset, next, entryRecipient, userId, type, message));
+            }
+            offset = next;
+        }
+        return new Batch(entries, Math.min(offset, end));
+    }
+
+    private static String getString(MappedByteBuffer segment, int at) {
+        int length = segment.getInt(at);
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = segment.get(at + 4 + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Everything before offset has been delivered to this recipient. Late
+    // acknowledgements from a recipient that expire() has forgotten are ignored.
+    void acknowledge(String recipient, long offset) throws IOException {
+        Cursor cursor = cursors.get(recipient);
+        if (cursor != null && offset > cursor.acked) {
+            cursor.acked = Math.min(offset, end);
+            // Progress restarts the clock; nothing left of its own stops it
+            cursor.waitingSince = cursor.acked >= cursor.ownEnd ? 0 : System.currentTimeMillis();
+            saveOffsets();
+        }
+    }
+
+    // Forgets recipients that have had entries waiting for longer than retentionMs
+    // without acknowledging any of them, so they no longer hold back compaction.
+    // Returns their names; a later append for one starts it afresh from there.
+    List<String> expire(long retentionMs) throws IOException {
+        long now = System.currentTimeMillis();
+        List<String> expired = new ArrayList<>();
+        for (Map.Entry<String, Cursor> entry : cursors.entrySet()) {
+            long waitingSince = entry.getValue().waitingSince;
+            if (waitingSince != 0 && now - waitingSince > retentionMs) {
+                expired.add(entry.getKey());
+            }
+        }
+        if (!expired.isEmpty()) {
+            cursors.keySet().removeAll(expired);
+            saveOffsets();
+        }
+        return expired;
+    }
+
+    // Deletes segments that every recipient has acknowledged; returns how many went
+    int compact() throws IOException {
+        long floor = end;
+        for (Cursor cursor : cursors.values()) {
+            floor = Math.min(floor, cursor.acked);
+        }
+        int deleted = 0;
+        while (segments.firstKey() < currentSegment && (segments.firstKey() + 1) * segmentSize <= floor) {
+            long n = segments.pollFirstEntry().getKey();
+            Files.deleteIfExists(segmentPath(n));
+            deleted++;
+        }
+        return deleted;
+    }
+
+    void close() throws IOException {
+        force();
+        saveOffsets();
+        segments.clear();
+    }
+
+    private void openSegment(long n) throws IOException {
+        if (current != null) {
+            current.force();
+        }
+        current = map(segmentPath(n));
+        segments.put(n, current);
+        currentSegment = n;
+    }
+
+    private MappedByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    private Path segmentPath(long n) {
+        return directory.resolve(String.format("segment-%016d.log", n));
+    }
+
+    // First position after the last complete entry
+    private int scanEnd(MappedByteBuffer segment) {
+        int position = 0;
+        while (position + HEADER <= segmentSize) {
+            int length = segment.getInt(position);
+            if (length <= 0 || position + HEADER + length > segmentSize
+                    || segment.getInt(position + 4) != checksum(segment, position + HEADER, length)) {
+                break;
+            }
+            position += HEADER + length;
+        }
+        return position;
+    }
+
+    // FNV-1a over the entry body, read back from the mapped segment
+    private static int checksum(MappedByteBuffer segment, int from, int length) {
+        int hash = 0x811C9DC5;
+        for (int i = from; i < from + length; i++) {
+            hash = (hash ^ (segment.get(i) & 0xFF)) * 16777619;
+        }
+        return hash;
+    }
+
+    private void saveOffsets() throws IOException {
+        Properties offsets = new Properties();
+        offsets.setProperty(EPOCH_KEY, epoch);
+        for (Map.Entry<String, Cursor> entry : cursors.entrySet()) {
+            Cursor cursor = entry.getValue();
+            offsets.setProperty(entry.getKey(), cursor.acked + "," + cursor.waitingSince);
+        }
+        Path temp = directory.resolve(OFFSETS_FILE + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            offsets.store(writer, "Acknowledged offset and waiting-since time per recipient");
+        }
+        Files.move(temp, directory.resolve(OFFSETS_FILE),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,133 @@
+package agents;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+// A DAILY or WEEKLY repetition from startDate, ending at "until" or after "count"
+// occurrences. Weekly rules may list daysOfWeek; by default they repeat on the
+// weekday of startDate. "interval" skips days or weeks (2 = every other week).
+// No occurrence may fall more than a year after startDate.
+final class RecurrenceRule {
+    enum Frequency { DAILY, WEEKLY }
+
+    static final int MAX_SPAN_DAYS = 366;
+
+    final LocalDate startDate;
+    final Frequency frequency;
+    final int interval;
+    final Set<DayOfWeek> daysOfWeek;
+    final LocalDate until; // null when bounded by count
+    final int count;
+
+    private RecurrenceRule(LocalDate startDate, Frequency frequency, int interval,
+                           Set<DayOfWeek> daysOfWeek, LocalDate until, int count) {
+        this.startDate = startDate;
+        this.frequency = frequency;
+        this.interval = interval;
+        this.daysOfWeek = daysOfWeek;
+        this.until = until;
+        this.count = count;
+    }
+
+    static RecurrenceRule fromJson(JSONObject request) {
+        try {
+            LocalDate start = LocalDate.parse(request.getString("startDate"));
+            Frequency frequency = Frequency.valueOf(request.optString("frequency", "WEEKLY").toUpperCase(Locale.ROOT));
+            int interval = request.optInt("interval", 1);
+            if (interval < 1) {
+                throw new IllegalArgumentException("Recurrence interval must be at least 1");
+            }
+
+            Set<DayOfWeek> days = EnumSet.noneOf(DayOfWeek.class);
+            JSONArray requestedDays = request.optJSONArray("daysOfWeek");
+            if (requestedDays != null) {
+                for (int i = 0; i < requestedDays.length(); i++) {
+                    days.add(DayOfWeek.valueOf(requestedDays.getString(i).toUpperCase(Locale.ROOT)));
+                }
+            }
+            if (days.isEmpty()) {
+                days.add(start.getDayOfWeek());
+            }
+
+            LocalDate until = request.has("until") ? LocalDate.parse(request.getString("until")) : null;
+            int count = request.optInt("count", 0);
+            if ((until == null) == (count <= 0)) {
+                throw new IllegalArgumentException("Give either \"until\" or a positive \"count\"");
+            }
+            if (until != null && until.isBefore(start)) {
+                throw new IllegalArgumentException("Recurrence ends before it starts");
+            }
+            if (until != null && ChronoUnit.DAYS.between(start, until) > MAX_SPAN_DAYS) {
+                throw new IllegalArgumentException("Recurrence may not run more than " + MAX_SPAN_DAYS + " days");
+            }
+            return new RecurrenceRule(start, frequency, interval, days, until, count);
+        } catch (IllegalArgumentException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid recurrence: " + e.getMessage(), e);
+        }
+    }
+
+    // Occurrence dates in order. Steps from one occurrence to the next, so the
+    // work is bounded by the number of dates, not the days in between. Fails
+    // rather than truncating when the rule produces more than maxOccurrences
+    // dates, or when "count" occurrences would run past MAX_SPAN_DAYS.
+    List<LocalDate> expand(int maxOccurrences) {
+        List<LocalDate> dates = new ArrayList<>();
+        if (frequency == Frequency.DAILY) {
+            for (long offset = 0; !done(dates, offset, maxOccurrences); offset += interval) {
+                dates.add(startDate.plusDays(offset));
+            }
+            return dates;
+        }
+        long firstWeek = -startDate.getDayOfWeek().ordinal();
+        for (long week = firstWeek; ; week += 7L * interval) {
+            for (DayOfWeek day : daysOfWeek) {
+                long offset = week + day.ordinal();
+                if (offset < 0) {
+                    continue; // before startDate in its first week
+                }
+                if (done(dates, offset, maxOccurrences)) {
+                    return dates;
+                }
+                dates.add(startDate.plusDays(offset));
+            }
+        }
+    }
+
+    // Whether the occurrence offset days after startDate is past the end of the rule
+    private boolean done(List<LocalDate> dates, long offset, int maxOccurrences) {
+        if (count > 0 ? dates.size() == count : offset > ChronoUnit.DAYS.between(startDate, until)) {
+            return true;
+        }
+        if (offset > MAX_SPAN_DAYS) {
+            throw new IllegalArgumentException("Recurrence may not run more than " + MAX_SPAN_DAYS + " days");
+        }
+        if (dates.size() == maxOccurrences) {
+            throw new IllegalArgumentException("Recurrence has more than " + maxOccurrences + " occurrences");
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        if (frequency == Frequency.DAILY) {
+            sb.append(interval == 1 ? "daily" : "every " + interval + " days");
+        } else {
+            sb.append(interval == 1 ? "weekly" : "every " + interval + " weeks").append(" on ").append(daysOfWeek);
+        }
+        sb.append(" from ").append(startDate);
+        return until != null ? sb.append(" until ").append(until).toString()
+                : sb.append(", ").append(count).append(" times").toString();
+    }
+}
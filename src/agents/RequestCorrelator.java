@@ -0,0 +1,60 @@
+package agents;
+
+import jade.core.Agent;
+import jade.lang.acl.ACLMessage;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Matches replies to the requests that caused them. Each request gets a fresh
+// conversation-id and reply-with; createReply() copies both back, so the owning
+// agent's single dispatcher behaviour hands every incoming message to complete()
+// and only treats what is left over as unsolicited. Many requests can be in
+// flight at once, and none of them blocks the agent thread.
+final class RequestCorrelator {
+    private final Agent agent;
+    private final String prefix;
+    private final AtomicLong nextId = new AtomicLong();
+    private final Map<String, CompletableFuture<ACLMessage>> pending = new ConcurrentHashMap<>();
+
+    RequestCorrelator(Agent agent) {
+        this.agent = agent;
+        this.prefix = agent.getLocalName() + "-req-";
+    }
+
+    // Sends the request; the future fails with a TimeoutException if no reply arrives in time
+    CompletableFuture<ACLMessage> request(ACLMessage msg, long timeoutMs) {
+        String id = prefix + nextId.incrementAndGet();
+        msg.setConversationId(id);
+        msg.setReplyWith(id);
+        CompletableFuture<ACLMessage> reply = new CompletableFuture<>();
+        pending.put(id, reply);
+        reply.orTimeout(timeoutMs, TimeUnit.MILLISECONDS).whenComplete((r, e) -> pending.remove(id));
+        agent.send(msg);
+        return reply;
+    }
+
+    // True if the message answers one of our requests. Replies that arrive after
+    // their request timed out are consumed here too, so they are not mistaken
+    // for unsolicited messages.
+    boolean complete(ACLMessage msg) {
+        String id = msg.getInReplyTo() != null ? msg.getInReplyTo() : msg.getConversationId();
+        if (id == null || !id.startsWith(prefix)) {
+            return false;
+        }
+        CompletableFuture<ACLMessage> reply = pending.remove(id);
+        if (reply != null) {
+            reply.complete(msg);
+        } else {
+            System.out.println("Dropping late reply to " + id + " from " + msg.getSender().getLocalName());
+        }
+        return true;
+    }
+
+    int inFlight() {
+        return pending.size();
+    }
+}
@@ -0,0 +1,227 @@
+package agents;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+// In-memory mirror of the rooms and bookings tables used to answer availability
+// queries without touching SQLite. Each room keeps one minute-resolution bitmap
+// per date (1440 bits = 23 longs) plus the booked intervals that produced it.
+// Lookups and updates may come from several worker threads at once.
+final class RoomAvailabilityIndex {
+    private static final int WORDS = (TimeSlot.MINUTES_PER_DAY + 63) / 64;
+
+    // Occupancy of one room on one date
+    private static final class DayOccupancy {
+        final long[] bits = new long[WORDS];
+        int[] starts = new int[4];
+        int[] ends = new int[4];
+        int size;
+
+        synchronized void add(int start, int end) {
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+            }
+            starts[size] = start;
+            ends[size] = end;
+            size++;
+            setRange(bits, start, end);
+        }
+
+        // Mirrors the DELETE in CancelBookingBehavior: every interval with exactly these bounds goes
+        synchronized boolean remove(int start, int end) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (starts[i] != start || ends[i] != end) {
+                    starts[kept] = starts[i];
+                    ends[kept] = ends[i];
+                    kept++;
+                }
+            }
+            if (kept == size) {
+                return false;
+            }
+            size = kept;
+            Arrays.fill(bits, 0L);
+            for (int i = 0; i < size; i++) {
+                setRange(bits, starts[i], ends[i]);
+            }
+            return true;
+        }
+
+        synchronized boolean isFree(int start, int end) {
+            return !anyInRange(bits, start, end);
+        }
+
+        synchronized boolean isEmpty() {
+            return size == 0;
+        }
+    }
+
+    private final Predicate<String> ownsRoom;
+    // This shard's rooms, with the catalog's building, floor and capacity indexes
+    private final RoomCatalog.Snapshot rooms;
+    private final Map<String, Map<String, DayOccupancy>> occupancy = new ConcurrentHashMap<>();
+
+    private RoomAvailabilityIndex(Predicate<String> ownsRoom, RoomCatalog.Snapshot rooms) {
+        this.ownsRoom = ownsRoom;
+        this.rooms = rooms;
+    }
+
+    // Only rooms accepted by ownsRoom (this shard's rooms) and their bookings are loaded
+    static RoomAvailabilityIndex load(Connection connection, Collection<RoomCatalog.Room> catalog,
+                                      Predicate<String> ownsRoom) throws SQLException {
+        List<RoomCatalog.Room> owned = new ArrayList<>();
+        for (RoomCatalog.Room room : catalog) {
+            if (ownsRoom.test(room.number)) {
+                owned.add(room);
+            }
+        }
+        RoomAvailabilityIndex index = new RoomAvailabilityIndex(ownsRoom, RoomCatalog.Snapshot.of(owned));
+        try (Statement stmt = connection.createStatement()) {
+            String bookingsQuery = "SELECT room_number, date, start_min, end_min FROM bookings " +
+                    "WHERE start_min IS NOT NULL AND end_min IS NOT NULL";
+            try (ResultSet rs = stmt.executeQuery(bookingsQuery)) {
+                while (rs.next()) {
+                    if (!ownsRoom.test(rs.getString("room_number"))) {
+                        continue;
+                    }
+                    index.markBooked(rs.getString("room_number"), rs.getString("date"),
+                            new TimeSlot(rs.getInt("start_min"), rs.getInt("end_min")));
+                }
+            }
+        }
+        return index;
+    }
+
+    // Adds inside compute() so a concurrent release cannot drop the day in between
+    void markBooked(String roomNumber, String date, TimeSlot slot) {
+        occupancy.computeIfAbsent(roomNumber, k -> new ConcurrentHashMap<>())
+                .compute(date, (k, day) -> {
+                    DayOccupancy target = day != null ? day : new DayOccupancy();
+                    target.add(slot.startMin, slot.endMin);
+                    return target;
+                });
+    }
+
+    // A day whose last booking goes is dropped, so cancelled dates do not accumulate
+    void release(String roomNumber, String date, TimeSlot slot) {
+        Map<String, DayOccupancy> days = occupancy.get(roomNumber);
+        if (days == null) {
+            return;
+        }
+        days.computeIfPresent(date, (k, day) -> {
+            day.remove(slot.startMin, slot.endMin);
+            return day.isEmpty() ? null : day;
+        });
+    }
+
+    boolean isFree(String roomNumber, String date, TimeSlot slot) {
+        Map<String, DayOccupancy> days = occupancy.get(roomNumber);
+        DayOccupancy day = days == null ? null : days.get(date);
+        return day == null || day.isFree(slot.startMin, slot.endMin);
+    }
+
+    RoomCatalog.Room room(String roomNumber) {
+        return rooms.room(roomNumber);
+    }
+
+    // The rooms this index covers
+    RoomCatalog.Snapshot rooms() {
+        return rooms;
+    }
+
+    // Tests several slots of one room/date with a single day lookup; free[i] answers slots[i]
+    void checkSlots(String roomNumber, String date, TimeSlot[] slots, boolean[] free) {
+        Map<String, DayOccupancy> days = occupancy.get(roomNumber);
+        DayOccupancy day = days == null ? null : days.get(date);
+        for (int i = 0; i < slots.length; i++) {
+            free[i] = day == null || day.isFree(slots[i].startMin, slots[i].endMin);
+        }
+    }
+
+    // A room is available only if no booked minute falls inside the requested slot
+    List<RoomCatalog.Room> findAvailable(String date, TimeSlot slot, int minCapacity) {
+        List<RoomCatalog.Room> available = new ArrayList<>();
+        for (RoomCatalog.Room room : rooms.select(null, null, minCapacity)) {
+            if (isFree(room.number, date, slot)) {
+                available.add(room);
+            }
+        }
+        return available;
+    }
+
+    // Rebuilds the index from SQLite and reports every room/date whose bitmap differs
+    List<String> findInconsistencies(Connection connection) throws SQLException {
+        RoomAvailabilityIndex fresh = load(connection, RoomCatalog.read(connection), ownsRoom);
+        List<String> problems = new ArrayList<>();
+
+        for (RoomCatalog.Room room : fresh.rooms.rooms()) {
+            RoomCatalog.Room mine = rooms.room(room.number);
+            if (mine == null) {
+                problems.add("Room " + room.number + " missing from index");
+            } else if (mine.capacity != room.capacity) {
+                problems.add("Room " + room.number + " capacity " + mine.capacity + " != " + room.capacity);
+            }
+        }
+        for (RoomCatalog.Room room : rooms.rooms()) {
+            if (fresh.rooms.room(room.number) == null) {
+                problems.add("Room " + room.number + " no longer in database");
+            }
+        }
+
+        compareDays(this, fresh, false, problems);
+        compareDays(fresh, this, true, problems);
+        return problems;
+    }
+
+    private static void compareDays(RoomAvailabilityIndex a, RoomAvailabilityIndex b, boolean missingOnly, List<String> problems) {
+        for (Map.Entry<String, Map<String, DayOccupancy>> roomEntry : a.occupancy.entrySet()) {
+            Map<String, DayOccupancy> otherDays = b.occupancy.get(roomEntry.getKey());
+            for (Map.Entry<String, DayOccupancy> dayEntry : roomEntry.getValue().entrySet()) {
+                DayOccupancy other = otherDays == null ? null : otherDays.get(dayEntry.getKey());
+                if (missingOnly && other != null) {
+                    continue; // already compared in the first pass
+                }
+                long[] otherBits = other == null ? new long[WORDS] : other.bits;
+                if (!Arrays.equals(dayEntry.getValue().bits, otherBits)) {
+                    problems.add("Room " + roomEntry.getKey() + " on " + dayEntry.getKey() + " differs from database");
+                }
+            }
+        }
+    }
+
+    private static void setRange(long[] bits, int from, int to) {
+        for (int i = from; i < to; i++) {
+            bits[i >>> 6] |= 1L << i;
+        }
+    }
+
+    private static boolean anyInRange(long[] bits, int from, int to) {
+        if (from >= to) {
+            return false;
+        }
+        int firstWord = from >>> 6;
+        int lastWord = (to - 1) >>> 6;
+        long firstMask = -1L << from;
+        long lastMask = -1L >>> (63 - ((to - 1) & 63));
+        if (firstWord == lastWord) {
+            return (bits[firstWord] & firstMask & lastMask) != 0;
+        }
+        if ((bits[firstWord] & firstMask) != 0 || (bits[lastWord] & lastMask) != 0) {
+            return true;
+        }
+        for (int w = firstWord + 1; w < lastWord; w++) {
+            if (bits[w] != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,184 @@
+package agents;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+// The rooms of the campus with their building, floor and capacity, shared by
+// every agent in this JVM: booking agents load it once from the rooms table
+// and navigation reads it directly, with no message in between. Readers take
+// the current Snapshot, which never changes; an update builds a new snapshot
+// with its indexes and swaps it in atomically, so lookups take no locks and
+// a reader always sees one consistent version.
+final class RoomCatalog {
+    // The rooms a new database is seeded with
+    static final List<Room> SEED_ROOMS = Collections.unmodifiableList(Arrays.asList(
+            new Room("101", "Building A", 1, 4),
+            new Room("102", "Building B", 2, 10)));
+
+    private static final RoomCatalog SHARED = new RoomCatalog();
+
+    static final class Room {
+        final String number;
+        final String building;
+        final int floor;
+        final int capacity;
+
+        Room(String number, String building, int floor, int capacity) {
+            this.number = number;
+            this.building = building;
+            this.floor = floor;
+            this.capacity = capacity;
+        }
+    }
+
+    // One immutable version of the catalog; every list is in room number order
+    // except withCapacity(), which is smallest room first
+    static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(0, Collections.emptyList());
+
+        final long version;
+        private final Map<String, Room> byNumber;
+        private final Map<String, List<Room>> byBuilding;
+        private final Map<String, Map<Integer, List<Room>>> byFloor;
+        private final Room[] byCapacity;
+
+        private Snapshot(long version, Collection<Room> rooms) {
+            this.version = version;
+            List<Room> sorted = new ArrayList<>(rooms);
+            sorted.sort(Comparator.comparing(room -> room.number));
+            Map<String, Room> numbers = new LinkedHashMap<>();
+            Map<String, List<Room>> buildings = new HashMap<>();
+            Map<String, Map<Integer, List<Room>>> floors = new HashMap<>();
+            for (Room room : sorted) {
+                numbers.put(room.number, room);
+                buildings.computeIfAbsent(room.building, b -> new ArrayList<>()).add(room);
+                floors.computeIfAbsent(room.building, b -> new HashMap<>())
+                        .computeIfAbsent(room.floor, f -> new ArrayList<>()).add(room);
+            }
+            buildings.replaceAll((building, list) -> Collections.unmodifiableList(list));
+            floors.values().forEach(perFloor -> perFloor.replaceAll((floor, list) -> Collections.unmodifiableList(list)));
+            byNumber = Collections.unmodifiableMap(numbers);
+            byBuilding = buildings;
+            byFloor = floors;
+            byCapacity = numbers.values().toArray(new Room[0]);
+            // Stable, so equal capacities stay in room number order
+            Arrays.sort(byCapacity, Comparator.comparingInt(room -> room.capacity));
+        }
+
+        // A snapshot of just these rooms, outside the shared catalog
+        static Snapshot of(Collection<Room> rooms) {
+            return new Snapshot(0, rooms);
+        }
+
+        int size() {
+            return byNumber.size();
+        }
+
+        // The room, or null
+        Room room(String number) {
+            return byNumber.get(number);
+        }
+
+        Collection<Room> rooms() {
+            return byNumber.values();
+        }
+
+        List<Room> inBuilding(String building) {
+            return byBuilding.getOrDefault(building, Collections.emptyList());
+        }
+
+        List<Room> onFloor(String building, int floor) {
+            return byFloor.getOrDefault(building, Collections.emptyMap()).getOrDefault(floor, Collections.emptyList());
+        }
+
+        // Rooms holding at least this many people
+        List<Room> withCapacity(int minCapacity) {
+            int low = 0;
+            int high = byCapacity.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (byCapacity[middle].capacity < minCapacity) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return Collections.unmodifiableList(Arrays.asList(byCapacity).subList(low, byCapacity.length));
+        }
+
+        // Rooms matching every given filter (null building or floor matches any),
+        // starting from the narrowest index; in room number order
+        List<Room> select(String building, Integer floor, int minCapacity) {
+            Collection<Room> candidates = building == null ? byNumber.values()
+                    : floor == null ? inBuilding(building) : onFloor(building, floor);
+            if (building == null && minCapacity > 0) {
+                List<Room> large = withCapacity(minCapacity);
+                if (large.size() < candidates.size()) {
+                    List<Room> ordered = new ArrayList<>(large);
+                    ordered.sort(Comparator.comparing(room -> room.number));
+                    candidates = ordered;
+                }
+            }
+            List<Room> matching = new ArrayList<>();
+            for (Room room : candidates) {
+                if (room.capacity >= minCapacity && (floor == null || room.floor == floor)) {
+                    matching.add(room);
+                }
+            }
+            return matching;
+        }
+    }
+
+    private final AtomicReference<Snapshot> current = new AtomicReference<>(Snapshot.EMPTY);
+
+    static RoomCatalog shared() {
+        return SHARED;
+    }
+
+    // The latest snapshot; version 0 and empty until something is published
+    Snapshot current() {
+        return current.get();
+    }
+
+    // Replaces the catalog with these rooms
+    Snapshot publish(Collection<Room> rooms) {
+        while (true) {
+            Snapshot previous = current.get();
+            Snapshot next = new Snapshot(previous.version + 1, rooms);
+            if (current.compareAndSet(previous, next)) {
+                System.out.println("Room catalog version " + next.version + ": " + next.size() + " rooms");
+                return next;
+            }
+        }
+    }
+
+    // The current snapshot, loading it from the rooms table if nothing has been published yet
+    synchronized Snapshot loadOnce(Connection connection) throws SQLException {
+        Snapshot snapshot = current.get();
+        return snapshot.version > 0 ? snapshot : publish(read(connection));
+    }
+
+    static List<Room> read(Connection connection) throws SQLException {
+        List<Room> rooms = new ArrayList<>();
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT room_number, capacity, location, floor FROM rooms ORDER BY room_number")) {
+            while (rs.next()) {
+                rooms.add(new Room(rs.getString("room_number"), rs.getString("location"),
+                        rs.getInt("floor"), rs.getInt("capacity")));
+            }
+        }
+        return rooms;
+    }
+}
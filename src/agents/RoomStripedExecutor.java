@@ -0,0 +1,57 @@
+package agents;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Fixed set of single-threaded workers. Tasks with the same key always land on
+// the same worker, so work for one room runs in arrival order while different
+// rooms proceed in parallel.
+final class RoomStripedExecutor {
+    private final ExecutorService[] stripes;
+    private final AtomicInteger nextUnkeyed = new AtomicInteger();
+
+    RoomStripedExecutor(String name, int threads) {
+        stripes = new ExecutorService[Math.max(1, threads)];
+        for (int i = 0; i < stripes.length; i++) {
+            String threadName = name + "-worker-" + i;
+            stripes[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, threadName);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    // A null key means the task has no ordering constraint and goes round-robin
+    void execute(String key, Runnable task) {
+        int stripe = key == null
+                ? Math.floorMod(nextUnkeyed.getAndIncrement(), stripes.length)
+                : Math.floorMod(key.hashCode(), stripes.length);
+        stripes[stripe].execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    int size() {
+        return stripes.length;
+    }
+
+    void shutdown(long timeoutMs) {
+        for (ExecutorService stripe : stripes) {
+            stripe.shutdown();
+        }
+        try {
+            for (ExecutorService stripe : stripes) {
+                stripe.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package agents;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Recently found routes keyed by (from, to, access profile), least recently
+// used first out once the cache is full. Each connection (both directions of
+// an edge) lists the entries whose route goes along it, so closing a
+// connection drops exactly those routes without looking at the rest. Entries
+// are only marked dead when evicted or dropped, and cleared out of the lists
+// as the lists grow. A connection that gets faster (reopened, or less
+// crowded) can make other routes suboptimal; those are found with the
+// straight-line bounds. Used from the agent thread only.
+final class RouteCache {
+    private static final class Key {
+        final int from;
+        final int to;
+        final AccessProfile profile;
+
+        Key(int from, int to, AccessProfile profile) {
+            this.from = from;
+            this.to = to;
+            this.profile = profile;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return from == other.from && to == other.to && profile == other.profile;
+        }
+
+        @Override
+        public int hashCode() {
+            return (from * 31 + to) * 31 + profile.ordinal();
+        }
+    }
+
+    private static final class Cached {
+        final Key key;
+        // Null once the entry is dead, so the connection lists only hold on to the shell
+        RouteFinder.Route route;
+
+        Cached(Key key, RouteFinder.Route route) {
+            this.key = key;
+            this.route = route;
+        }
+    }
+
+    private final CampusGraph graph;
+    private final Map<Key, Cached> entries;
+    // Entries by the lower-numbered edge of each connection they traverse, dead ones included
+    private final ArrayList<?>[] byConnection;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    RouteCache(CampusGraph graph, int capacity) {
+        this.graph = graph;
+        this.byConnection = new ArrayList<?>[graph.edgeCount()];
+        this.entries = new LinkedHashMap<Key, Cached>(Math.min(capacity, 1024) * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Cached> eldest) {
+                if (size() > capacity) {
+                    eldest.getValue().route = null;
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    // The cached route, or null; a hit also marks the entry as recently used
+    RouteFinder.Route get(int from, int to, AccessProfile profile) {
+        Cached entry = entries.get(new Key(from, to, profile));
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.route;
+    }
+
+    void put(int from, int to, AccessProfile profile, RouteFinder.Route route) {
+        Key key = new Key(from, to, profile);
+        Cached entry = new Cached(key, route);
+        Cached replaced = entries.put(key, entry);
+        if (replaced != null) {
+            replaced.route = null;
+        }
+        for (int edge : route.edges) {
+            ArrayList<Cached> list = list(connection(edge));
+            // Clear out dead entries whenever a list has doubled
+            if (list.size() >= 8 && Integer.bitCount(list.size()) == 1) {
+                list.removeIf(cached -> cached.route == null);
+            }
+            list.add(entry);
+        }
+    }
+
+    // Drops the routes that go along any of the edges, in either direction; returns how many
+    int invalidateEdges(int[] edges) {
+        int dropped = 0;
+        for (int edge : edges) {
+            @SuppressWarnings("unchecked")
+            ArrayList<Cached> list = (ArrayList<Cached>) byConnection[connection(edge)];
+            if (list == null) {
+                continue;
+            }
+            for (Cached entry : list) {
+                if (entry.route != null) {
+                    entry.route = null;
+                    entries.remove(entry.key);
+                    dropped++;
+                }
+            }
+            list.clear();
+        }
+        invalidations += dropped;
+        return dropped;
+    }
+
+    // Drops the routes a now faster edge might beat: those where the straight-line
+    // bound to the edge, the edge itself and the bound from it add up to less
+    // than the cached time. The test may keep a route that can no longer be
+    // beaten but never one that can. Returns how many were dropped.
+    int invalidateImprovable(int[] fasterEdges, EdgeConditions conditions) {
+        if (fasterEdges.length == 0 || entries.isEmpty()) {
+            return 0;
+        }
+        int dropped = 0;
+        for (Iterator<Cached> it = entries.values().iterator(); it.hasNext(); ) {
+            Cached entry = it.next();
+            for (int edge : fasterEdges) {
+                float seconds = EdgeConditions.seconds(graph, edge, entry.key.profile, conditions);
+                if (seconds == Float.POSITIVE_INFINITY) {
+                    continue;
+                }
+                float bound = graph.lowerBoundSeconds(entry.key.from, graph.source(edge)) + seconds
+                        + graph.lowerBoundSeconds(graph.target(edge), entry.key.to);
+                if (bound < entry.route.seconds) {
+                    entry.route = null;
+                    it.remove();
+                    dropped++;
+                    break;
+                }
+            }
+        }
+        invalidations += dropped;
+        return dropped;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long lookups() {
+        return hits + misses;
+    }
+
+    String statistics() {
+        long lookups = hits + misses;
+        return String.format("%d routes cached, %d lookups, %.1f%% hits, %d evicted, %d invalidated",
+                entries.size(), lookups, lookups == 0 ? 0.0 : 100.0 * hits / lookups, evictions, invalidations);
+    }
+
+    @SuppressWarnings("unchecked")
+    private ArrayList<Cached> list(int connection) {
+        ArrayList<Cached> list = (ArrayList<Cached>) byConnection[connection];
+        if (list == null) {
+            list = new ArrayList<>(4);
+            byConnection[connection] = list;
+        }
+        return list;
+    }
+
+    // The same id for both directions of a connection
+    private int connection(int edge) {
+        return Math.min(edge, graph.reverse(edge));
+    }
+}
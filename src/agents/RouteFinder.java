@@ -0,0 +1,511 @@
+package agents;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// A* over a CampusGraph, minimising walking time. The heuristic is the graph's
+// floor-aware lower bound, which never overestimates; a node found again at a
+// lower cost is reopened, so routes stay optimal even where the bound is not
+// perfectly consistent. All search state lives in
+// arrays sized to the graph and reused between searches; a generation stamp
+// marks which entries belong to the current search, so nothing is cleared or
+// allocated per query apart from the result. Rooms and buildings with a single
+// way in are dead ends: a search only enters them if its start or goal is there.
+// Edge times come from the live conditions: slowed down by crowding, and
+// skipped when closed or when the access profile forbids them.
+// Not thread-safe; use one RouteFinder per thread.
+final class RouteFinder {
+    // A found route: nodes from start to goal and the edges between them
+    static final class Route {
+        final int[] nodes;
+        final int[] edges;
+        final float seconds;
+        final float metres;
+
+        Route(int[] nodes, int[] edges, float seconds, float metres) {
+            this.nodes = nodes;
+            this.edges = edges;
+            this.seconds = seconds;
+            this.metres = metres;
+        }
+    }
+
+    // Every fastest route from one root, as the edge each node is reached by
+    static final class Tree {
+        final int root;
+        final float[] seconds;
+        final int[] parentEdge;
+
+        Tree(int root, float[] seconds, int[] parentEdge) {
+            this.root = root;
+            this.seconds = seconds;
+            this.parentEdge = parentEdge;
+        }
+
+        // The route from the root to the goal, or null if it cannot be reached
+        Route routeTo(CampusGraph graph, int goal) {
+            if (seconds[goal] == Float.POSITIVE_INFINITY) {
+                return null;
+            }
+            int length = 0;
+            for (int node = goal; node != root; node = graph.source(parentEdge[node])) {
+                length++;
+            }
+            int[] nodes = new int[length + 1];
+            int[] edges = new int[length];
+            float metres = 0;
+            int node = goal;
+            for (int i = length; i > 0; i--) {
+                nodes[i] = node;
+                edges[i - 1] = parentEdge[node];
+                metres += graph.metres(parentEdge[node]);
+                node = graph.source(parentEdge[node]);
+            }
+            nodes[0] = root;
+            return new Route(nodes, edges, seconds[goal], metres);
+        }
+
+        // The route from the origin to the root; connections cost the same both ways
+        Route routeFrom(CampusGraph graph, int origin) {
+            Route out = routeTo(graph, origin);
+            if (out == null) {
+                return null;
+            }
+            int length = out.edges.length;
+            int[] nodes = new int[length + 1];
+            int[] edges = new int[length];
+            for (int i = 0; i <= length; i++) {
+                nodes[i] = out.nodes[length - i];
+            }
+            for (int i = 0; i < length; i++) {
+                edges[i] = graph.reverse(out.edges[length - 1 - i]);
+            }
+            return new Route(nodes, edges, out.seconds, out.metres);
+        }
+    }
+
+    // Turns sharper than this are announced
+    private static final double TURN_RADIANS = Math.toRadians(30);
+
+    private final CampusGraph graph;
+    private final float[] cost;
+    private final int[] parent;
+    private final int[] parentEdge;
+    private final int[] seen;
+    private final int[] closed;
+    private int generation;
+    // Binary min-heap of (estimate, node); stale entries are skipped when popped
+    private float[] heapKeys = new float[256];
+    private int[] heapNodes = new int[256];
+    private int heapSize;
+    private int expanded;
+
+    RouteFinder(CampusGraph graph) {
+        this.graph = graph;
+        int n = graph.nodeCount();
+        cost = new float[n];
+        parent = new int[n];
+        parentEdge = new int[n];
+        seen = new int[n];
+        closed = new int[n];
+    }
+
+    // Nodes taken off the open list by the last search
+    int expanded() {
+        return expanded;
+    }
+
+    // The fastest route, or null if the goal cannot be reached
+    Route find(int start, int goal) {
+        return find(start, goal, AccessProfile.STANDARD, null);
+    }
+
+    // The fastest route the profile allows over edges open under the
+    // conditions (null for all open), or null if there is none
+    Route find(int start, int goal, AccessProfile profile, EdgeConditions conditions) {
+        if (++generation == 0) {
+            // The stamps wrapped around; start them afresh
+            Arrays.fill(seen, 0);
+            Arrays.fill(closed, 0);
+            generation = 1;
+        }
+        heapSize = 0;
+        expanded = 0;
+        seen[start] = generation;
+        cost[start] = 0;
+        parent[start] = -1;
+        parentEdge[start] = -1;
+        push(graph.lowerBoundSeconds(start, goal), start);
+        int startBuilding = graph.building(start);
+        int goalBuilding = graph.building(goal);
+
+        while (heapSize > 0) {
+            int node = pop();
+            if (closed[node] == generation) {
+                continue;
+            }
+            closed[node] = generation;
+            expanded++;
+            if (node == goal) {
+                return route(start, goal);
+            }
+            float base = cost[node];
+            for (int e = graph.firstEdge(node), end = graph.firstEdge(node + 1); e < end; e++) {
+                int next = graph.target(e);
+                if (graph.kind(next) == CampusGraph.ROOM && next != goal) {
+                    continue;
+                }
+                int building = graph.building(next);
+                if (building != graph.building(node) && building != startBuilding && building != goalBuilding
+                        && graph.isDeadEnd(building)) {
+                    continue;
+                }
+                float candidate = base + EdgeConditions.seconds(graph, e, profile, conditions);
+                if (candidate == Float.POSITIVE_INFINITY) {
+                    continue;
+                }
+                if (seen[next] != generation || candidate < cost[next]) {
+                    seen[next] = generation;
+                    closed[next] = 0;
+                    cost[next] = candidate;
+                    parent[next] = node;
+                    parentEdge[next] = e;
+                    push(candidate + graph.lowerBoundSeconds(next, goal), next);
+                }
+            }
+        }
+        return null;
+    }
+
+    // Seconds from the start to every node (infinite where unreachable), by Dijkstra over the whole graph
+    float[] secondsFrom(int start) {
+        return treeFrom(start, AccessProfile.STANDARD, null).seconds;
+    }
+
+    // Fastest routes from the start to every node, by Dijkstra over the whole graph
+    Tree treeFrom(int start, AccessProfile profile, EdgeConditions conditions) {
+        float[] seconds = new float[graph.nodeCount()];
+        Arrays.fill(seconds, Float.POSITIVE_INFINITY);
+        int[] reachedBy = new int[graph.nodeCount()];
+        Arrays.fill(reachedBy, -1);
+        boolean[] done = new boolean[graph.nodeCount()];
+        heapSize = 0;
+        seconds[start] = 0;
+        push(0, start);
+        while (heapSize > 0) {
+            int node = pop();
+            if (done[node]) {
+                continue;
+            }
+            done[node] = true;
+            for (int e = graph.firstEdge(node), end = graph.firstEdge(node + 1); e < end; e++) {
+                int next = graph.target(e);
+                float candidate = seconds[node] + EdgeConditions.seconds(graph, e, profile, conditions);
+                if (candidate < seconds[next]) {
+                    seconds[next] = candidate;
+                    reachedBy[next] = e;
+                    push(candidate, next);
+                }
+            }
+        }
+        return new Tree(start, seconds, reachedBy);
+    }
+
+    // Brings a tree built under one set of conditions up to date with the next,
+    // given every edge whose conditions differ, instead of rebuilding it. Nodes
+    // hanging below an edge that got slower lose their times and take the best
+    // offer from neighbours outside that subtree; an edge that got faster offers
+    // a better time to its target; Dijkstra from just those nodes settles
+    // everything that changed. The old tree is left untouched for its readers.
+    Tree repair(Tree old, AccessProfile profile, EdgeConditions before, EdgeConditions after, int[] changed) {
+        float[] seconds = old.seconds.clone();
+        int[] reachedBy = old.parentEdge.clone();
+        if (++generation == 0) {
+            Arrays.fill(seen, 0);
+            Arrays.fill(closed, 0);
+            generation = 1;
+        }
+        heapSize = 0;
+
+        int[] roots = new int[changed.length];
+        int rootCount = 0;
+        for (int e : changed) {
+            if (reachedBy[graph.target(e)] == e && EdgeConditions.seconds(graph, e, profile, after)
+                    > EdgeConditions.seconds(graph, e, profile, before)) {
+                roots[rootCount++] = graph.target(e);
+            }
+        }
+        if (rootCount > 0) {
+            int[] affected = detachSubtrees(reachedBy, roots, rootCount);
+            for (int node : affected) {
+                seconds[node] = Float.POSITIVE_INFINITY;
+                reachedBy[node] = -1;
+            }
+            for (int node : affected) {
+                for (int e = graph.firstEdge(node), end = graph.firstEdge(node + 1); e < end; e++) {
+                    int neighbour = graph.target(e);
+                    if (seen[neighbour] == generation) {
+                        continue;
+                    }
+                    int in = graph.reverse(e);
+                    float candidate = seconds[neighbour] + EdgeConditions.seconds(graph, in, profile, after);
+                    if (candidate < seconds[node]) {
+                        seconds[node] = candidate;
+                        reachedBy[node] = in;
+                    }
+                }
+                if (seconds[node] != Float.POSITIVE_INFINITY) {
+                    push(seconds[node], node);
+                }
+            }
+        }
+        for (int e : changed) {
+            int from = graph.source(e);
+            int to = graph.target(e);
+            float candidate = seconds[from] + EdgeConditions.seconds(graph, e, profile, after);
+            if (candidate < seconds[to]) {
+                seconds[to] = candidate;
+                reachedBy[to] = e;
+                push(candidate, to);
+            }
+        }
+
+        while (heapSize > 0) {
+            float key = heapKeys[0];
+            int node = pop();
+            if (key > seconds[node]) {
+                continue;
+            }
+            for (int e = graph.firstEdge(node), end = graph.firstEdge(node + 1); e < end; e++) {
+                int next = graph.target(e);
+                float candidate = key + EdgeConditions.seconds(graph, e, profile, after);
+                if (candidate < seconds[next]) {
+                    seconds[next] = candidate;
+                    reachedBy[next] = e;
+                    push(candidate, next);
+                }
+            }
+        }
+        return new Tree(old.root, seconds, reachedBy);
+    }
+
+    // Every node at or below the roots in the tree, each marked seen in the current generation
+    private int[] detachSubtrees(int[] reachedBy, int[] roots, int rootCount) {
+        // Children of each node, in compressed sparse row form
+        int n = graph.nodeCount();
+        int[] childStart = new int[n + 1];
+        for (int node = 0; node < n; node++) {
+            if (reachedBy[node] >= 0) {
+                childStart[graph.source(reachedBy[node]) + 1]++;
+            }
+        }
+        for (int node = 0; node < n; node++) {
+            childStart[node + 1] += childStart[node];
+        }
+        int[] children = new int[childStart[n]];
+        int[] next = Arrays.copyOf(childStart, n);
+        for (int node = 0; node < n; node++) {
+            if (reachedBy[node] >= 0) {
+                children[next[graph.source(reachedBy[node])]++] = node;
+            }
+        }
+
+        int[] found = new int[16];
+        int count = 0;
+        for (int r = 0; r < rootCount; r++) {
+            if (seen[roots[r]] == generation) {
+                continue;
+            }
+            seen[roots[r]] = generation;
+            int first = count;
+            if (count == found.length) {
+                found = Arrays.copyOf(found, count * 2);
+            }
+            found[count++] = roots[r];
+            // found doubles as the traversal queue
+            for (int i = first; i < count; i++) {
+                int node = found[i];
+                for (int c = childStart[node]; c < childStart[node + 1]; c++) {
+                    int child = children[c];
+                    if (seen[child] != generation) {
+                        seen[child] = generation;
+                        if (count == found.length) {
+                            found = Arrays.copyOf(found, count * 2);
+                        }
+                        found[count++] = child;
+                    }
+                }
+            }
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    private Route route(int start, int goal) {
+        int length = 0;
+        for (int node = goal; node != start; node = parent[node]) {
+            length++;
+        }
+        int[] nodes = new int[length + 1];
+        int[] edges = new int[length];
+        float metres = 0;
+        int node = goal;
+        for (int i = length; i > 0; i--) {
+            nodes[i] = node;
+            edges[i - 1] = parentEdge[node];
+            metres += graph.metres(parentEdge[node]);
+            node = parent[node];
+        }
+        nodes[0] = start;
+        return new Route(nodes, edges, cost[goal], metres);
+    }
+
+    private void push(float key, int node) {
+        if (heapSize == heapKeys.length) {
+            heapKeys = Arrays.copyOf(heapKeys, heapSize * 2);
+            heapNodes = Arrays.copyOf(heapNodes, heapSize * 2);
+        }
+        int i = heapSize++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heapKeys[parent] <= key) {
+                break;
+            }
+            heapKeys[i] = heapKeys[parent];
+            heapNodes[i] = heapNodes[parent];
+            i = parent;
+        }
+        heapKeys[i] = key;
+        heapNodes[i] = node;
+    }
+
+    private int pop() {
+        int top = heapNodes[0];
+        float key = heapKeys[--heapSize];
+        int node = heapNodes[heapSize];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && heapKeys[child + 1] < heapKeys[child]) {
+                child++;
+            }
+            if (heapKeys[child] >= key) {
+                break;
+            }
+            heapKeys[i] = heapKeys[child];
+            heapNodes[i] = heapNodes[child];
+            i = child;
+        }
+        heapKeys[i] = key;
+        heapNodes[i] = node;
+        return top;
+    }
+
+    // Turn-by-turn instructions for a route: walks are merged until a turn,
+    // stairs and elevators are summarised by the floor they end on, and
+    // building changes and the side the goal room is on are called out
+    static List<String> describe(CampusGraph graph, Route route) {
+        List<String> steps = new ArrayList<>();
+        float walked = 0;
+        int i = 0;
+        while (i < route.edges.length) {
+            int from = route.nodes[i];
+            int to = route.nodes[i + 1];
+            byte kind = graph.edgeKind(route.edges[i]);
+
+            if (kind == CampusGraph.STAIR_FLIGHT || kind == CampusGraph.ELEVATOR_RIDE) {
+                walked = flushWalk(steps, walked);
+                int j = i;
+                while (j + 1 < route.edges.length && graph.edgeKind(route.edges[j + 1]) == kind) {
+                    j++;
+                }
+                int floor = graph.floor(route.nodes[j + 1]);
+                if (kind == CampusGraph.STAIR_FLIGHT) {
+                    steps.add("Take the stairs " + (floor > graph.floor(from) ? "up" : "down") + " to floor " + floor);
+                } else {
+                    steps.add("Take the elevator to floor " + floor);
+                }
+                i = j + 1;
+                continue;
+            }
+
+            boolean last = i == route.edges.length - 1;
+            boolean walkCounted = false;
+            if (graph.building(from) != graph.building(to)) {
+                if (graph.building(to) < 0) {
+                    walked = flushWalk(steps, walked);
+                    steps.add("Exit " + graph.buildingName(from));
+                } else {
+                    // Walk up to the door, then go in
+                    walked = flushWalk(steps, walked + graph.metres(route.edges[i]));
+                    walkCounted = true;
+                    steps.add("Enter " + graph.buildingName(to));
+                }
+            }
+
+            if (last && graph.kind(to) == CampusGraph.ROOM && i > 0) {
+                walked = flushWalk(steps, walked);
+                int side = turn(graph, route.nodes[i - 1], from, to);
+                steps.add("Room " + graph.name(to) + " is " + (side > 0 ? "on your left" : side < 0 ? "on your right" : "ahead"));
+                break;
+            }
+
+            // The few steps onto a stair or elevator landing are part of taking them
+            if (!walkCounted && !isLanding(graph, from) && !isLanding(graph, to)) {
+                walked += graph.metres(route.edges[i]);
+            }
+            int after = last ? -1 : route.nodes[i + 2];
+            boolean announceTurn = after >= 0 && !isLanding(graph, to) && !isLanding(graph, after)
+                    && !(i + 1 == route.edges.length - 1 && graph.kind(after) == CampusGraph.ROOM);
+            if (announceTurn) {
+                int side = turn(graph, from, to, after);
+                if (side != 0) {
+                    walked = flushWalk(steps, walked);
+                    steps.add(side > 0 ? "Turn left" : "Turn right");
+                }
+            }
+            i++;
+        }
+        flushWalk(steps, walked);
+        if (steps.isEmpty()) {
+            steps.add("You are already there");
+        }
+        return steps;
+    }
+
+    private static boolean isLanding(CampusGraph graph, int node) {
+        return graph.kind(node) == CampusGraph.STAIRS || graph.kind(node) == CampusGraph.ELEVATOR;
+    }
+
+    private static float flushWalk(List<String> steps, float metres) {
+        if (metres >= 1) {
+            steps.add("Walk " + Math.round(metres) + " m");
+        }
+        return 0;
+    }
+
+    // +1 for a left turn at b going from a to c, -1 for right, 0 for roughly straight on
+    private static int turn(CampusGraph graph, int a, int b, int c) {
+        double ax = graph.x(b) - graph.x(a);
+        double ay = graph.y(b) - graph.y(a);
+        double bx = graph.x(c) - graph.x(b);
+        double by = graph.y(c) - graph.y(b);
+        if ((ax == 0 && ay == 0) || (bx == 0 && by == 0)) {
+            return 0;
+        }
+        double angle = Math.atan2(ax * by - ay * bx, ax * bx + ay * by);
+        if (Math.abs(angle) < TURN_RADIANS) {
+            return 0;
+        }
+        return angle > 0 ? 1 : -1;
+    }
+
+    // "N minutes", never less than one
+    static String formatDuration(float seconds) {
+        int minutes = Math.max(1, Math.round(seconds / 60));
+        return minutes == 1 ? "1 minute" : minutes + " minutes";
+    }
+}
@@ -0,0 +1,230 @@
+package agents;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Fastest routes from the hub nodes (entrances and named outdoor places, where
+// most trips start or end) to everywhere, one shortest-path tree per hub and
+// access profile. The trees are built in parallel on a fork-join pool at
+// startup; a route with a hub at either end is then read off a tree instead of
+// searched for.
+//
+// Conditions change every few seconds, so trees are repaired rather than
+// rebuilt (RouteFinder.repair), again in parallel. Readers use a Snapshot, the
+// conditions and the trees valid for them, which is replaced as a whole once
+// every tree has been repaired; until then queries keep being answered from
+// the previous snapshot. Updates that arrive during a repair are merged into
+// the next one. Updates come from one thread; snapshots may be read from any.
+final class RouteTables {
+    private static final AccessProfile[] PROFILES = AccessProfile.values();
+
+    static final class Snapshot {
+        final EdgeConditions conditions;
+        // hub * PROFILES.length + profile
+        private final RouteFinder.Tree[] trees;
+
+        Snapshot(EdgeConditions conditions, RouteFinder.Tree[] trees) {
+            this.conditions = conditions;
+            this.trees = trees;
+        }
+    }
+
+    private final CampusGraph graph;
+    private final ForkJoinPool pool;
+    private final int[] hubs;
+    // Position of each node in hubs, or -1
+    private final int[] hubIndex;
+    private final ThreadLocal<RouteFinder> finders;
+    private volatile Snapshot snapshot;
+    // Changes not yet in a published snapshot, guarded by this
+    private final BitSet pendingEdges = new BitSet();
+    private EdgeConditions pendingConditions;
+    private boolean repairing;
+    private long served;
+    private final AtomicLong repairs = new AtomicLong();
+    private final AtomicLong repairNanos = new AtomicLong();
+
+    RouteTables(CampusGraph graph, int[] hubs, ForkJoinPool pool) {
+        this.graph = graph;
+        this.pool = pool;
+        this.hubs = hubs;
+        this.hubIndex = new int[graph.nodeCount()];
+        Arrays.fill(hubIndex, -1);
+        for (int i = 0; i < hubs.length; i++) {
+            hubIndex[hubs[i]] = i;
+        }
+        this.finders = ThreadLocal.withInitial(() -> new RouteFinder(graph));
+    }
+
+    // Entrances and named outdoor places, plus any extra nodes named
+    static int[] defaultHubs(CampusGraph graph, String extraNames) {
+        List<Integer> hubs = new ArrayList<>();
+        for (int node = 0; node < graph.nodeCount(); node++) {
+            byte kind = graph.kind(node);
+            if (kind == CampusGraph.ENTRANCE || (kind == CampusGraph.OUTDOOR && graph.name(node) != null)) {
+                hubs.add(node);
+            }
+        }
+        if (extraNames != null) {
+            for (String name : extraNames.split(",")) {
+                int node = graph.find(name.trim());
+                if (node >= 0 && !hubs.contains(node)) {
+                    hubs.add(node);
+                } else if (node < 0 && !name.trim().isEmpty()) {
+                    System.err.println("Unknown hub location: " + name.trim());
+                }
+            }
+        }
+        return hubs.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    // Builds every tree under the conditions, waiting until all are done
+    void buildAll(EdgeConditions conditions) {
+        RouteFinder.Tree[] trees = new RouteFinder.Tree[hubs.length * PROFILES.length];
+        pool.invoke(new ForSlots(0, trees.length, slot ->
+                trees[slot] = finders.get().treeFrom(hubs[slot / PROFILES.length], PROFILES[slot % PROFILES.length], conditions)));
+        snapshot = new Snapshot(conditions, trees);
+    }
+
+    // The conditions and trees queries should use now
+    Snapshot snapshot() {
+        return snapshot;
+    }
+
+    // The fastest route when either end is a hub, under the snapshot's conditions, else null
+    RouteFinder.Route route(int from, int to, AccessProfile profile, Snapshot snapshot) {
+        RouteFinder.Tree tree = tree(snapshot, from, profile);
+        if (tree != null) {
+            served++;
+            return tree.routeTo(graph, to);
+        }
+        tree = tree(snapshot, to, profile);
+        if (tree != null) {
+            served++;
+            return tree.routeFrom(graph, from);
+        }
+        return null;
+    }
+
+    // New conditions differing from the previous ones on the given edges;
+    // the trees are repaired in the background and published together
+    synchronized void update(int[] changedEdges, EdgeConditions updated) {
+        for (int edge : changedEdges) {
+            pendingEdges.set(edge);
+        }
+        pendingConditions = updated;
+        if (!repairing) {
+            repairing = true;
+            pool.execute(this::repairPending);
+        }
+    }
+
+    private void repairPending() {
+        while (true) {
+            int[] changed;
+            EdgeConditions target;
+            synchronized (this) {
+                if (pendingEdges.isEmpty()) {
+                    repairing = false;
+                    return;
+                }
+                changed = pendingEdges.stream().toArray();
+                target = pendingConditions;
+                pendingEdges.clear();
+            }
+            long started = System.nanoTime();
+            Snapshot base = snapshot;
+            RouteFinder.Tree[] trees = new RouteFinder.Tree[base.trees.length];
+            try {
+                ForkJoinTask.invokeAll(new ForSlots(0, trees.length, slot -> trees[slot] = finders.get().repair(
+                        base.trees[slot], PROFILES[slot % PROFILES.length], base.conditions, target, changed)));
+                snapshot = new Snapshot(target, trees);
+            } catch (RuntimeException e) {
+                // A later repair would start from base.conditions without these edges,
+                // so the trees are rebuilt from scratch for the target instead
+                e.printStackTrace();
+                if (!rebuild(target, changed)) {
+                    return;
+                }
+            }
+            repairs.incrementAndGet();
+            repairNanos.addAndGet(System.nanoTime() - started);
+        }
+    }
+
+    // Replaces every tree with a fresh one under the conditions. If that fails too,
+    // the edges go back into the pending set, so the next update repairs them along
+    // with its own, and repairing stops until then; the snapshot keeps its old
+    // conditions, so queries fall back to searching meanwhile.
+    private boolean rebuild(EdgeConditions target, int[] changed) {
+        RouteFinder.Tree[] trees = new RouteFinder.Tree[hubs.length * PROFILES.length];
+        try {
+            ForkJoinTask.invokeAll(new ForSlots(0, trees.length, slot -> trees[slot] = finders.get().treeFrom(
+                    hubs[slot / PROFILES.length], PROFILES[slot % PROFILES.length], target)));
+            snapshot = new Snapshot(target, trees);
+            return true;
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            synchronized (this) {
+                for (int edge : changed) {
+                    pendingEdges.set(edge);
+                }
+                repairing = false;
+            }
+            return false;
+        }
+    }
+
+    int hubCount() {
+        return hubs.length;
+    }
+
+    // Routes read off a tree so far
+    long served() {
+        return served;
+    }
+
+    String repairStatistics() {
+        long count = repairs.get();
+        return count + " tree repairs" + (count == 0 ? ""
+                : String.format(", %.2f ms average", repairNanos.get() / 1e6 / count));
+    }
+
+    private RouteFinder.Tree tree(Snapshot snapshot, int node, AccessProfile profile) {
+        int hub = hubIndex[node];
+        return hub < 0 ? null : snapshot.trees[hub * PROFILES.length + profile.ordinal()];
+    }
+
+    private interface SlotTask {
+        void run(int slot);
+    }
+
+    // Runs a task for a range of slots, splitting until one slot per task
+    private static final class ForSlots extends RecursiveAction {
+        private final int from;
+        private final int to;
+        private final SlotTask task;
+
+        ForSlots(int from, int to, SlotTask task) {
+            this.from = from;
+            this.to = to;
+            this.task = task;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ForSlots(from, middle, task), new ForSlots(middle, to, task));
+            } else if (to > from) {
+                task.run(from);
+            }
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package agents;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.core.behaviours.TickerBehaviour;
+import jade.core.behaviours.WakerBehaviour;
+import jade.domain.DFService;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.Property;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
+import jade.domain.FIPAException;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Local cache of the agents providing each service type, kept current by DF
+// subscriptions rather than searches. track() subscribes once; the DF answers
+// with the providers registered so far and then notifies every registration,
+// change and deregistration, which the owning agent passes to handle()
+// (behaviour() does that for agents without a catch-all receive). pick() only
+// reads the cache, so choosing a provider never waits for the DF and a
+// provider that starts late is picked up as soon as it registers.
+// For least-loaded selection the registry also subscribes to each provider's
+// mailbox depth with the LOAD_PROTOCOL, which providers serve with
+// LoadAdvertiser. Load travels as plain INFORMs between the two agents and
+// never through the DF. Selection adds the messages this agent sent to each
+// provider since its last report. The cache is written by the agent thread
+// only and read lock-free from any thread.
+final class ServiceRegistry {
+    enum Strategy { ROUND_ROBIN, LEAST_LOADED }
+
+    // Protocol of the SUBSCRIBE, INFORM and CANCEL messages carrying a provider's mailbox depth
+    static final String LOAD_PROTOCOL = "service-load";
+    // A refused load subscription is asked for again after this long
+    private static final long LOAD_RETRY_MS = 5 * 1000;
+
+    private static final class Provider {
+        final AID aid;
+        final int load;
+        final AtomicInteger sentSinceReport = new AtomicInteger();
+
+        Provider(AID aid, int load) {
+            this.aid = aid;
+            this.load = load;
+        }
+    }
+
+    private static final class Service {
+        final String type;
+        final Strategy strategy;
+        // Replaced as a whole on every change, never modified in place
+        volatile Provider[] providers = new Provider[0];
+        final AtomicInteger next = new AtomicInteger();
+        ACLMessage subscription;
+        String loadConversation;
+
+        Service(String type, Strategy strategy) {
+            this.type = type;
+            this.strategy = strategy;
+        }
+    }
+
+    private final Agent agent;
+    private final String conversationPrefix;
+    private final Map<String, Service> services = new ConcurrentHashMap<>();
+    private final Map<String, Service> byConversation = new ConcurrentHashMap<>();
+
+    ServiceRegistry(Agent agent) {
+        this.agent = agent;
+        this.conversationPrefix = "service-registry-" + agent.getLocalName() + "-";
+    }
+
+    // Starts following the providers of a service type
+    void track(String type, Strategy strategy) {
+        if (services.containsKey(type)) {
+            return;
+        }
+        Service service = new Service(type, strategy);
+        DFAgentDescription template = new DFAgentDescription();
+        ServiceDescription sd = new ServiceDescription();
+        sd.setType(type);
+        template.addServices(sd);
+
+        service.subscription = DFService.createSubscriptionMessage(agent, agent.getDefaultDF(), template, null);
+        String conversationId = conversationPrefix + type;
+        service.subscription.setConversationId(conversationId);
+        service.loadConversation = conversationId + "-load";
+        services.put(type, service);
+        byConversation.put(conversationId, service);
+        byConversation.put(service.loadConversation, service);
+        agent.send(service.subscription);
+    }
+
+    // A provider of the type, or null while none is registered
+    AID pick(String type) {
+        Service service = services.get(type);
+        if (service == null) {
+            return null;
+        }
+        Provider[] providers = service.providers;
+        if (providers.length == 0) {
+            return null;
+        }
+        // Rotating the start spreads round-robin picks and ties between equally loaded providers
+        int start = Math.floorMod(service.next.getAndIncrement(), providers.length);
+        Provider chosen = providers[start];
+        if (service.strategy == Strategy.LEAST_LOADED) {
+            int best = Integer.MAX_VALUE;
+            for (int i = 0; i < providers.length; i++) {
+                Provider provider = providers[(start + i) % providers.length];
+                int load = provider.load + provider.sentSinceReport.get();
+                if (load < best) {
+                    best = load;
+                    chosen = provider;
+                }
+            }
+        }
+        chosen.sentSinceReport.incrementAndGet();
+        return chosen.aid;
+    }
+
+    // True if the message was a DF notification for one of our subscriptions
+    boolean handle(ACLMessage msg) {
+        String conversationId = msg.getConversationId();
+        Service service = conversationId == null ? null : byConversation.get(conversationId);
+        if (service == null) {
+            return false;
+        }
+        if (LOAD_PROTOCOL.equals(msg.getProtocol())) {
+            handleLoad(service, msg);
+            return true;
+        }
+        if (msg.getPerformative() != ACLMessage.INFORM) {
+            System.err.println("DF subscription for " + service.type + " answered with "
+                    + ACLMessage.getPerformative(msg.getPerformative()) + ": " + msg.getContent());
+            return true;
+        }
+        try {
+            for (DFAgentDescription description : DFService.decodeNotification(msg.getContent())) {
+                update(service, description);
+            }
+        } catch (FIPAException e) {
+            System.err.println("Cannot decode DF notification for " + service.type + ": " + e.getMessage());
+        }
+        return true;
+    }
+
+    private void handleLoad(Service service, ACLMessage msg) {
+        AID sender = msg.getSender();
+        if (msg.getPerformative() == ACLMessage.INFORM) {
+            try {
+                setLoad(service, sender, Integer.parseInt(msg.getContent().trim()));
+            } catch (NumberFormatException | NullPointerException e) {
+                System.err.println("Ignoring load report from " + sender.getName() + ": " + msg.getContent());
+            }
+            return;
+        }
+        // A FAILURE from the AMS means the provider is gone; its DF deregistration removes it
+        if (sender.equals(agent.getAMS())) {
+            return;
+        }
+        // Refused, most likely because the provider is overloaded: ask again later if it is still there
+        agent.addBehaviour(new WakerBehaviour(agent, LOAD_RETRY_MS) {
+            @Override
+            protected void onWake() {
+                if (indexOf(service.providers, sender) >= 0) {
+                    subscribeLoad(service, sender);
+                }
+            }
+        });
+    }
+
+    // Replacing the provider also clears what was sent to it since its previous report
+    private void setLoad(Service service, AID aid, int load) {
+        Provider[] providers = service.providers;
+        int index = indexOf(providers, aid);
+        if (index >= 0) {
+            Provider[] updated = providers.clone();
+            updated[index] = new Provider(aid, load);
+            service.providers = updated;
+        }
+    }
+
+    private void subscribeLoad(Service service, AID provider) {
+        ACLMessage subscribe = new ACLMessage(ACLMessage.SUBSCRIBE);
+        subscribe.addReceiver(provider);
+        subscribe.setProtocol(LOAD_PROTOCOL);
+        subscribe.setConversationId(service.loadConversation);
+        agent.send(subscribe);
+    }
+
+    private static int indexOf(Provider[] providers, AID aid) {
+        for (int i = 0; i < providers.length; i++) {
+            if (providers[i].aid.equals(aid)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void update(Service service, DFAgentDescription description) {
+        AID aid = description.getName();
+        ServiceDescription offered = null;
+        Iterator<?> all = description.getAllServices();
+        while (all.hasNext()) {
+            ServiceDescription sd = (ServiceDescription) all.next();
+            if (service.type.equals(sd.getType())) {
+                offered = sd;
+            }
+        }
+
+        Provider[] providers = service.providers;
+        int index = indexOf(providers, aid);
+        if (offered == null) {
+            // Deregistered, or no longer offers this type
+            if (index >= 0) {
+                Provider[] remaining = new Provider[providers.length - 1];
+                System.arraycopy(providers, 0, remaining, 0, index);
+                System.arraycopy(providers, index + 1, remaining, index, remaining.length - index);
+                service.providers = remaining;
+                System.out.println("Lost " + service.type + " provider: " + aid.getName());
+            }
+            return;
+        }
+
+        if (index >= 0) {
+            // A changed registration; its load comes from the provider, not the DF
+            return;
+        }
+        Provider[] added = Arrays.copyOf(providers, providers.length + 1);
+        added[providers.length] = new Provider(aid, 0);
+        service.providers = added;
+        System.out.println("Found " + service.type + " provider: " + aid.getName());
+        if (service.strategy == Strategy.LEAST_LOADED) {
+            subscribeLoad(service, aid);
+        }
+    }
+
+    // Receives the DF notifications for this registry
+    CyclicBehaviour behaviour() {
+        MessageTemplate mt = new MessageTemplate((MessageTemplate.MatchExpression) msg ->
+                msg.getConversationId() != null && byConversation.containsKey(msg.getConversationId()));
+        return new CyclicBehaviour(agent) {
+            @Override
+            public void action() {
+                ACLMessage msg = myAgent.receive(mt);
+                if (msg != null) {
+                    ServiceRegistry.this.handle(msg);
+                } else {
+                    block();
+                }
+            }
+        };
+    }
+
+    // Call from takeDown()
+    void close() {
+        for (Service service : services.values()) {
+            agent.send(DFService.createCancelMessage(agent, agent.getDefaultDF(), service.subscription));
+            Provider[] providers = service.providers;
+            if (service.strategy == Strategy.LEAST_LOADED && providers.length > 0) {
+                ACLMessage cancel = new ACLMessage(ACLMessage.CANCEL);
+                for (Provider provider : providers) {
+                    cancel.addReceiver(provider.aid);
+                }
+                cancel.setProtocol(LOAD_PROTOCOL);
+                cancel.setConversationId(service.loadConversation);
+                agent.send(cancel);
+            }
+        }
+        services.clear();
+        byConversation.clear();
+    }
+
+    static int intProperty(ServiceDescription sd, String name, int defaultValue) {
+        Iterator<?> properties = sd.getAllProperties();
+        while (properties.hasNext()) {
+            Property property = (Property) properties.next();
+            if (name.equals(property.getName())) {
+                try {
+                    return Integer.parseInt(String.valueOf(property.getValue()));
+                } catch (NumberFormatException e) {
+                    return defaultValue;
+                }
+            }
+        }
+        return defaultValue;
+    }
+
+    // Serves LOAD_PROTOCOL subscriptions with the agent's mailbox depth. Once per
+    // period it takes in new SUBSCRIBEs and CANCELs and checks the depth; a new
+    // value goes to every subscriber only when it has moved by a quarter (at
+    // least 8 messages) from the last one sent, or drained to zero, so small
+    // swings send nothing. Sends are asynchronous and nothing here touches the
+    // DF, so an agent falling behind spends at most one INFORM per subscriber
+    // per period on its load.
+    static final class LoadAdvertiser extends TickerBehaviour {
+        private final MessageTemplate template;
+        // Subscriber to the conversation id it subscribed with
+        private final Map<AID, String> subscribers = new HashMap<>();
+        private int reported;
+
+        LoadAdvertiser(Agent agent, long periodMs) {
+            super(agent, periodMs);
+            this.template = MessageTemplate.and(
+                    MessageTemplate.MatchProtocol(LOAD_PROTOCOL),
+                    MessageTemplate.or(
+                            MessageTemplate.or(
+                                    MessageTemplate.MatchPerformative(ACLMessage.SUBSCRIBE),
+                                    MessageTemplate.MatchPerformative(ACLMessage.CANCEL)),
+                            MessageTemplate.and(
+                                    MessageTemplate.MatchPerformative(ACLMessage.FAILURE),
+                                    MessageTemplate.MatchSender(agent.getAMS()))));
+        }
+
+        @Override
+        protected void onTick() {
+            Map<AID, String> joined = new HashMap<>();
+            ACLMessage msg;
+            while ((msg = myAgent.receive(template)) != null) {
+                if (msg.getPerformative() == ACLMessage.SUBSCRIBE) {
+                    subscribers.put(msg.getSender(), msg.getConversationId());
+                    joined.put(msg.getSender(), msg.getConversationId());
+                } else if (msg.getPerformative() == ACLMessage.CANCEL) {
+                    subscribers.remove(msg.getSender());
+                    joined.remove(msg.getSender());
+                } else {
+                    // The AMS names the subscriber it could not reach
+                    String failure = msg.getContent();
+                    subscribers.keySet().removeIf(aid -> failure != null && failure.contains(aid.getName()));
+                }
+            }
+
+            int depth = myAgent.getCurQueueSize();
+            if (Math.abs(depth - reported) >= Math.max(8, reported / 4) || (depth == 0 && reported != 0)) {
+                reported = depth;
+                joined = subscribers;
+            }
+            for (Map.Entry<AID, String> subscriber : joined.entrySet()) {
+                ACLMessage inform = new ACLMessage(ACLMessage.INFORM);
+                inform.addReceiver(subscriber.getKey());
+                inform.setProtocol(LOAD_PROTOCOL);
+                inform.setConversationId(subscriber.getValue());
+                inform.setContent(String.valueOf(reported));
+                myAgent.send(inform);
+            }
+        }
+    }
+}
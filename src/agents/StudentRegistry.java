@@ -0,0 +1,197 @@
+package agents;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Set;
+
+// In-memory copy of the registered student IDs. An 8-digit ID fits in an int, so
+// IDs live in an open-addressing int hash set; a Bloom filter in front of it
+// answers most "not registered" lookups from a table small enough to stay in
+// cache. Lookups of 8-digit IDs do not allocate. IDs of any other shape (none are
+// accepted by registration, but the table does not forbid them) go to a plain set.
+final class StudentRegistry {
+    private static final int EMPTY = 0; // slots hold id + 1
+    private static final int BLOOM_BITS_PER_ID = 10;
+    private static final int BLOOM_HASHES = 3;
+
+    private int[] table;
+    private int size;
+    private long[] bloom;
+    private int bloomMask;
+    private int bloomCapacity;
+    private final Set<String> irregular = new HashSet<>();
+
+    private long lookups;
+    private long bloomRejects;
+
+    StudentRegistry(int expected) {
+        resize(tableSizeFor(expected));
+        rebuildBloom(Math.max(expected, 1024));
+    }
+
+    static StudentRegistry load(Connection connection) throws SQLException {
+        int count;
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM students")) {
+            rs.next();
+            count = rs.getInt(1);
+        }
+        StudentRegistry registry = new StudentRegistry(count);
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT student_id FROM students")) {
+            while (rs.next()) {
+                registry.add(rs.getString(1));
+            }
+        }
+        return registry;
+    }
+
+    // The numeric value of an 8-digit ID, or -1 for anything else
+    static int parseId(String studentId) {
+        if (studentId == null || studentId.length() != 8) {
+            return -1;
+        }
+        int id = 0;
+        for (int i = 0; i < 8; i++) {
+            char c = studentId.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            id = id * 10 + (c - '0');
+        }
+        return id;
+    }
+
+    synchronized boolean contains(String studentId) {
+        lookups++;
+        int id = parseId(studentId);
+        if (id < 0) {
+            return studentId != null && irregular.contains(studentId);
+        }
+        long hash = mix(id);
+        if (!bloomMayContain(hash)) {
+            bloomRejects++;
+            return false;
+        }
+        int mask = table.length - 1;
+        for (int slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+            int stored = table[slot];
+            if (stored == EMPTY) {
+                return false;
+            }
+            if (stored == id + 1) {
+                return true;
+            }
+        }
+    }
+
+    synchronized void add(String studentId) {
+        int id = parseId(studentId);
+        if (id < 0) {
+            irregular.add(studentId);
+            return;
+        }
+        long hash = mix(id);
+        int mask = table.length - 1;
+        int slot = (int) hash & mask;
+        while (table[slot] != EMPTY) {
+            if (table[slot] == id + 1) {
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = id + 1;
+        size++;
+        bloomAdd(hash);
+
+        if (size * 2 > table.length) {
+            resize(table.length * 2);
+        }
+        if (size > bloomCapacity) {
+            rebuildBloom(bloomCapacity * 2);
+        }
+    }
+
+    synchronized int size() {
+        return size + irregular.size();
+    }
+
+    // Bytes held by the hash table and the Bloom filter
+    synchronized long footprintBytes() {
+        return (long) table.length * Integer.BYTES + (long) bloom.length * Long.BYTES;
+    }
+
+    synchronized String statistics() {
+        return "students=" + size()
+                + " footprint=" + footprintBytes() / 1024 + "KB"
+                + " lookups=" + lookups
+                + " bloomRejects=" + bloomRejects;
+    }
+
+    private void resize(int capacity) {
+        int[] old = table;
+        table = new int[capacity];
+        if (old == null) {
+            return;
+        }
+        int mask = capacity - 1;
+        for (int stored : old) {
+            if (stored != EMPTY) {
+                int slot = (int) mix(stored - 1) & mask;
+                while (table[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = stored;
+            }
+        }
+    }
+
+    private void rebuildBloom(int capacity) {
+        bloomCapacity = capacity;
+        int bits = Integer.highestOneBit(Math.max(64, capacity * BLOOM_BITS_PER_ID - 1)) << 1;
+        bloom = new long[bits >>> 6];
+        bloomMask = bits - 1;
+        for (int stored : table) {
+            if (stored != EMPTY) {
+                bloomAdd(mix(stored - 1));
+            }
+        }
+    }
+
+    // Double hashing: the i-th probe is h1 + i * h2
+    private void bloomAdd(long hash) {
+        int h1 = (int) (hash >>> 32);
+        int h2 = (int) hash | 1;
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            int bit = (h1 + i * h2) & bloomMask;
+            bloom[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    private boolean bloomMayContain(long hash) {
+        int h1 = (int) (hash >>> 32);
+        int h2 = (int) hash | 1;
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            int bit = (h1 + i * h2) & bloomMask;
+            if ((bloom[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int tableSizeFor(int expected) {
+        return Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+    }
+
+    // SplitMix64 finaliser; sequential IDs would otherwise cluster in the table
+    private static long mix(int id) {
+        long z = id * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
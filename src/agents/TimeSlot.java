@@ -0,0 +1,51 @@
+package agents;
+
+// A booking time slot in "HH:MM-HH:MM" form, kept as minutes since midnight
+final class TimeSlot {
+    static final int MINUTES_PER_DAY = 24 * 60;
+
+    final int startMin;
+    final int endMin;
+
+    TimeSlot(int startMin, int endMin) {
+        this.startMin = startMin;
+        this.endMin = endMin;
+    }
+
+    static TimeSlot parse(String timeSlot) {
+        try {
+            String[] parts = timeSlot.split("-");
+            int start = parseMinutes(parts[0]);
+            int end = parseMinutes(parts[1]);
+            if (start < 0 || end > MINUTES_PER_DAY || start >= end) {
+                throw new IllegalArgumentException("Invalid time slot: " + timeSlot);
+            }
+            return new TimeSlot(start, end);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid time slot format: " + timeSlot, e);
+        }
+    }
+
+    private static int parseMinutes(String time) {
+        String[] hm = time.trim().split(":");
+        int hour = Integer.parseInt(hm[0]);
+        int minute = Integer.parseInt(hm[1]);
+        if (hour < 0 || hour > 24 || minute < 0 || minute > 59) {
+            throw new IllegalArgumentException("Invalid time: " + time);
+        }
+        return hour * 60 + minute;
+    }
+
+    int duration() {
+        return endMin - startMin;
+    }
+
+    boolean overlaps(int otherStart, int otherEnd) {
+        return startMin < otherEnd && otherStart < endMin;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%02d:%02d-%02d:%02d", startMin / 60, startMin % 60, endMin / 60, endMin % 60);
+    }
+}
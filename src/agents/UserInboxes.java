@@ -0,0 +1,181 @@
+package agents;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// The most recent notifications of each user. Every user has a ring of at most
+// capacity entries numbered by a per-user sequence; once it is full the oldest
+// entry is overwritten. A per-type ring of sequence numbers lets a query
+// filtered by type skip the other types, and since sequence order is also time
+// order, a "since" bound is a binary search. Rings start small and grow up to
+// capacity, so users with a handful of notifications cost a few hundred bytes.
+// The users that have been quiet longest are dropped once maxUsers is reached.
+// Not thread-safe: NotificationAgent only uses it from its own thread.
+final class UserInboxes {
+    private static final int INITIAL_SIZE = 4;
+
+    // Sequence numbers of one type's entries, in arrival order
+    private static final class TypeIndex {
+        long[] seqs = new long[INITIAL_SIZE];
+        long count;
+    }
+
+    private static final class Inbox {
+        long[] times = new long[INITIAL_SIZE];
+        String[] types = new String[INITIAL_SIZE];
+        String[] messages = new String[INITIAL_SIZE];
+        // Sequence number the next entry will get
+        long nextSeq;
+        // Entries below this sequence number have been read
+        long readUpTo;
+        final Map<String, TypeIndex> byType = new HashMap<>(4);
+
+        // Until a ring reaches capacity it has never wrapped, so seq is its own slot
+        int slot(long seq) {
+            return (int) (seq % times.length);
+        }
+    }
+
+    private final int capacity;
+    private final LinkedHashMap<String, Inbox> inboxes;
+    // Notification types repeat endlessly; keep one copy of each
+    private final Map<String, String> typeNames = new HashMap<>();
+
+    UserInboxes(int capacity, int maxUsers) {
+        this.capacity = Math.max(1, capacity);
+        this.inboxes = new LinkedHashMap<String, Inbox>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Inbox> eldest) {
+                return size() > maxUsers;
+            }
+        };
+    }
+
+    void add(String userId, String type, String message, long timestamp) {
+        Inbox inbox = inboxes.computeIfAbsent(userId, k -> new Inbox());
+        type = typeNames.computeIfAbsent(type, k -> k);
+        if (inbox.nextSeq == inbox.times.length && inbox.times.length < capacity) {
+            int size = Math.min(capacity, inbox.times.length * 2);
+            inbox.times = Arrays.copyOf(inbox.times, size);
+            inbox.types = Arrays.copyOf(inbox.types, size);
+            inbox.messages = Arrays.copyOf(inbox.messages, size);
+        }
+        long seq = inbox.nextSeq++;
+        int slot = inbox.slot(seq);
+        inbox.times[slot] = timestamp;
+        inbox.types[slot] = type;
+        inbox.messages[slot] = message;
+
+        TypeIndex index = inbox.byType.computeIfAbsent(type, k -> new TypeIndex());
+        if (index.count == index.seqs.length && index.seqs.length < capacity) {
+            index.seqs = Arrays.copyOf(index.seqs, Math.min(capacity, index.seqs.length * 2));
+        }
+        index.seqs[(int) (index.count++ % index.seqs.length)] = seq;
+    }
+
+    // Up to limit of the user's entries older than the cursor "before", newest
+    // first, optionally only of one type and no older than since. The page has
+    // "nextCursor" when older matching entries remain. With markRead, everything
+    // up to the newest returned entry counts as read afterwards.
+    JSONObject query(String userId, int limit, long before, String type, long since, boolean markRead) {
+        JSONObject page = new JSONObject();
+        page.put("userId", userId);
+        JSONArray notifications = new JSONArray();
+        Inbox inbox = inboxes.get(userId);
+        if (inbox == null) {
+            page.put("notifications", notifications);
+            page.put("unread", 0);
+            page.put("total", 0);
+            return page;
+        }
+
+        long oldest = oldest(inbox);
+        long first = firstSince(inbox, since);
+        long newest = Math.min(before, inbox.nextSeq) - 1;
+        long lastReturned = -1;
+        boolean more;
+        if (type == null) {
+            long seq = newest;
+            for (; seq >= first && notifications.length() < limit; seq--) {
+                notifications.put(entry(inbox, seq));
+                lastReturned = seq;
+            }
+            more = seq >= first;
+        } else {
+            TypeIndex index = inbox.byType.get(type);
+            long i = index == null ? -1 : index.count - 1;
+            long firstIndexed = index == null ? 0 : Math.max(0, index.count - index.seqs.length);
+            while (i >= firstIndexed && index.seqs[(int) (i % index.seqs.length)] > newest) {
+                i--;
+            }
+            for (; i >= firstIndexed && notifications.length() < limit; i--) {
+                long seq = index.seqs[(int) (i % index.seqs.length)];
+                if (seq < first) {
+                    break;
+                }
+                notifications.put(entry(inbox, seq));
+                lastReturned = seq;
+            }
+            more = i >= firstIndexed && index.seqs[(int) (i % index.seqs.length)] >= first;
+        }
+
+        if (markRead && notifications.length() > 0) {
+            long newestReturned = notifications.getJSONObject(0).getLong("seq");
+            inbox.readUpTo = Math.max(inbox.readUpTo, newestReturned + 1);
+        }
+        page.put("notifications", notifications);
+        if (more) {
+            page.put("nextCursor", lastReturned);
+        }
+        page.put("unread", inbox.nextSeq - Math.max(inbox.readUpTo, oldest));
+        page.put("total", inbox.nextSeq - oldest);
+        return page;
+    }
+
+    private long oldest(Inbox inbox) {
+        return Math.max(0, inbox.nextSeq - capacity);
+    }
+
+    private JSONObject entry(Inbox inbox, long seq) {
+        int slot = inbox.slot(seq);
+        JSONObject entry = new JSONObject();
+        entry.put("seq", seq);
+        entry.put("timestamp", inbox.times[slot]);
+        entry.put("type", inbox.types[slot]);
+        entry.put("message", inbox.messages[slot]);
+        entry.put("read", seq < inbox.readUpTo);
+        return entry;
+    }
+
+    // First live sequence number with a timestamp at or after since
+    private long firstSince(Inbox inbox, long since) {
+        long low = oldest(inbox);
+        long high = inbox.nextSeq;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (inbox.times[inbox.slot(mid)] < since) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    int users() {
+        return inboxes.size();
+    }
+
+    long entries() {
+        long total = 0;
+        for (Inbox inbox : inboxes.values()) {
+            total += inbox.nextSeq - oldest(inbox);
+        }
+        return total;
+    }
+}
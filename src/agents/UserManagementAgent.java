@@ -2,6 +2,7 @@ package agents;
 
 import java.sql.*;
 import jade.core.Agent;
+import jade.core.MessageQueue;
 import jade.core.AID;
 import jade.core.behaviours.*;
 import jade.domain.FIPAAgentManagement.*;
@@ -9,21 +10,57 @@ import jade.domain.FIPAException;
 import jade.domain.DFService;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 public class UserManagementAgent extends Agent {
-    private Connection connection;
-    private AID notificationAgent;
+    private static final int IMPORT_CHUNK_SIZE = 1000;
+    private static final int MAX_REPORTED_ERRORS = 1000;
+    // IDs per existence query; well below SQLite's bound-parameter limit
+    private static final int EXISTS_QUERY_CHUNK = 100;
+    // Roster files are only read from this directory; the "importDir=" argument overrides it
+    private static final String IMPORT_DIR = System.getProperty("smartcampus.import.dir", "roster-imports");
+
+    private CampusDatabase database;
+    // Every registered student ID; existence checks no longer go to SQLite
+    private StudentRegistry registry;
+    // Notification providers, followed through a DF subscription
+    private ServiceRegistry serviceRegistry;
+    private Path importDir;
+
+    // New requests are refused rather than queued when the mailbox backs up
+    @Override
+    protected MessageQueue createMessageQueue() {
+        return MailboxGuard.install(this, super.createMessageQueue());
+    }
 
     protected void setup() {
+        importDir = Paths.get(stringArgument("importDir", IMPORT_DIR)).toAbsolutePath().normalize();
         try {
-            // Connect to SQLite database
-            connection = DriverManager.getConnection("jdbc:sqlite:smartcampus.db");
-            System.out.println("Connected to SQLite database.");
+            // Connect to the shared SQLite connection pool
+            database = CampusDatabase.acquire();
 
             // Initialize database schema and populate sample data
             initializeDatabase();
 
+            try (CampusDatabase.PooledConnection db = database.reader()) {
+                registry = StudentRegistry.load(db.connection());
+            }
+            System.out.println("Student registry loaded: " + registry.statistics());
+
             // Register with Directory Facilitator
             DFAgentDescription dfd = new DFAgentDescription();
             dfd.setName(getAID());
@@ -38,23 +75,9 @@ public class UserManagementAgent extends Agent {
                 fe.printStackTrace();
             }
 
-            // Find the NotificationAgent
-            try {
-                DFAgentDescription template = new DFAgentDescription();
-                ServiceDescription notifSD = new ServiceDescription();
-                notifSD.setType("notification");
-                template.addServices(notifSD);
-
-                DFAgentDescription[] result = DFService.search(this, template);
-                if (result.length > 0) {
-                    notificationAgent = result[0].getName();
-                    System.out.println("Found NotificationAgent: " + notificationAgent.getName());
-                } else {
-                    System.out.println("NotificationAgent not found");
-                }
-            } catch (FIPAException e) {
-                e.printStackTrace();
-            }
+            serviceRegistry = new ServiceRegistry(this);
+            serviceRegistry.track("notification", ServiceRegistry.Strategy.LEAST_LOADED);
+            addBehaviour(serviceRegistry.behaviour());
 
             // Add behaviors
             addBehaviour(new StudentRegistrationBehavior());
@@ -66,18 +89,49 @@ public class UserManagementAgent extends Agent {
     }
 
     protected void takeDown() {
-        try {
-            if (connection != null) {
-                connection.close();
-                System.out.println("Database connection closed.");
+        MailboxGuard.uninstall(this);
+        if (serviceRegistry != null) {
+            serviceRegistry.close();
+        }
+        if (registry != null) {
+            System.out.println("Student registry: " + registry.statistics());
+        }
+        if (database != null) {
+            System.out.println("Database pool: " + database.statistics());
+            CampusDatabase.release();
+        }
+    }
+
+    // Reads "name=value" from the agent's start-up arguments
+    private String stringArgument(String name, String defaultValue) {
+        Object[] args = getArguments();
+        if (args != null) {
+            for (Object arg : args) {
+                String text = String.valueOf(arg);
+                if (text.startsWith(name + "=")) {
+                    return text.substring(name.length() + 1).trim();
+                }
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
+        return defaultValue;
+    }
+
+    // Resolves a requested roster path against the import directory; null if it leaves
+    // the directory, whether through "..", an absolute path or a symbolic link
+    private Path resolveRosterPath(String path) throws IOException {
+        Path file = importDir.resolve(path).normalize();
+        if (!file.startsWith(importDir)) {
+            return null;
+        }
+        if (Files.exists(file) && !file.toRealPath().startsWith(importDir.toRealPath())) {
+            return null;
+        }
+        return file;
     }
 
     private void initializeDatabase() {
-        try (Statement stmt = connection.createStatement()) {
+        try (CampusDatabase.PooledConnection db = database.writer();
+             Statement stmt = db.connection().createStatement()) {
             String createTableSQL = "CREATE TABLE IF NOT EXISTS students (" +
                     "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
                     "student_id TEXT UNIQUE NOT NULL, " +
@@ -93,7 +147,7 @@ public class UserManagementAgent extends Agent {
                 rs.next();
                 if (rs.getInt(1) == 0) {
                     System.out.println("Populating students table with sample data...");
-                    populateSampleData();
+                    populateSampleData(db.connection());
                 } else {
                     System.out.println("Students table already populated.");
                 }
@@ -103,7 +157,7 @@ public class UserManagementAgent extends Agent {
         }
     }
 
-    private void populateSampleData() {
+    private void populateSampleData(Connection connection) {
         String insertSQL = "INSERT INTO students (student_id, name, email) VALUES (?, ?, ?)";
         try (PreparedStatement pstmt = connection.prepareStatement(insertSQL)) {
             pstmt.setString(1, "12345678");
@@ -140,7 +194,16 @@ public class UserManagementAgent extends Agent {
 
             if (msg != null) {
                 try {
-                    JSONObject request = new JSONObject(msg.getContent());
+                    Object content = MessageCodecs.read(msg);
+                    if (content instanceof JSONArray) {
+                        registerBatch(msg, (JSONArray) content);
+                        return;
+                    }
+                    JSONObject request = (JSONObject) content;
+                    if ("BULK_IMPORT".equals(request.optString("type"))) {
+                        addBehaviour(new RosterImportBehavior(msg, request));
+                        return;
+                    }
                     String studentId = request.getString("studentId");
                     String name = request.getString("name");
                     String email = request.getString("email");
@@ -173,6 +236,373 @@ public class UserManagementAgent extends Agent {
     }
 
 
+    // A JSON array of {"studentId", "name", "email"} registered in one transaction.
+    // The reply is one INFORM holding a status entry per input item, in input order.
+    private void registerBatch(ACLMessage msg, JSONArray items) {
+        JSONArray results = new JSONArray();
+        List<String[]> rows = new ArrayList<>();
+        List<JSONObject> rowResults = new ArrayList<>();
+        Set<String> inBatch = new HashSet<>();
+
+        for (int i = 0; i < items.length(); i++) {
+            JSONObject result = new JSONObject();
+            result.put("index", i);
+            results.put(result);
+
+            JSONObject item = items.optJSONObject(i);
+            if (item == null || !item.has("studentId") || !item.has("name") || !item.has("email")) {
+                reject(result, "Each item needs studentId, name and email.");
+                continue;
+            }
+            String studentId = item.optString("studentId");
+            String name = item.optString("name");
+            String email = item.optString("email");
+            result.put("studentId", studentId);
+            if (!isValidStudentId(studentId)) {
+                reject(result, "Invalid student ID format. Must be an 8-digit number.");
+            } else if (!inBatch.add(studentId)) {
+                reject(result, "Duplicate student ID in batch.");
+            } else if (!isValidEmail(email)) {
+                reject(result, "Invalid email address. Only @ucalgary.ca domain is allowed.");
+            } else {
+                rows.add(new String[] { studentId, name, email });
+                rowResults.add(result);
+            }
+        }
+
+        try {
+            Set<String> existing = existingStudentIds(rows);
+            List<String[]> fresh = new ArrayList<>(rows.size());
+            List<JSONObject> freshResults = new ArrayList<>(rows.size());
+            for (int i = 0; i < rows.size(); i++) {
+                if (existing.contains(rows.get(i)[0])) {
+                    reject(rowResults.get(i), "Student ID already exists.");
+                } else {
+                    fresh.add(rows.get(i));
+                    freshResults.add(rowResults.get(i));
+                }
+            }
+
+            SQLException failure = fresh.isEmpty() ? null : insertStudents(fresh);
+            for (int i = 0; i < fresh.size(); i++) {
+                if (failure != null) {
+                    reject(freshResults.get(i), "Registration could not be saved. Please try again.");
+                } else {
+                    freshResults.get(i).put("status", "registered");
+                    sendNotification(fresh.get(i)[0], "Registration", "Registration successful");
+                }
+            }
+            System.out.println("Batch registration: " + (failure == null ? fresh.size() : 0)
+                    + " of " + items.length() + " students registered");
+        } catch (SQLException e) {
+            e.printStackTrace();
+            for (JSONObject result : rowResults) {
+                reject(result, "Registration could not be saved. Please try again.");
+            }
+        }
+
+        ACLMessage reply = msg.createReply();
+        reply.setPerformative(ACLMessage.INFORM);
+        MessageCodecs.writeReply(msg, reply, results);
+        send(reply);
+    }
+
+    private static void reject(JSONObject result, String reason) {
+        result.put("status", "rejected");
+        result.put("reason", reason);
+    }
+
+    // Which of these IDs are already in the students table, asked with IN (...) in
+    // fixed-size chunks; short chunks are padded with NULL so one statement is reused
+    private Set<String> existingStudentIds(List<String[]> rows) throws SQLException {
+        Set<String> existing = new HashSet<>();
+        if (rows.isEmpty()) {
+            return existing;
+        }
+        StringBuilder query = new StringBuilder("SELECT student_id FROM students WHERE student_id IN (?");
+        for (int i = 1; i < EXISTS_QUERY_CHUNK; i++) {
+            query.append(", ?");
+        }
+        query.append(")");
+        try (CampusDatabase.PooledConnection db = database.reader()) {
+            PreparedStatement stmt = db.prepare(query.toString());
+            for (int from = 0; from < rows.size(); from += EXISTS_QUERY_CHUNK) {
+                for (int i = 0; i < EXISTS_QUERY_CHUNK; i++) {
+                    int row = from + i;
+                    stmt.setString(i + 1, row < rows.size() ? rows.get(row)[0] : null);
+                }
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        existing.add(rs.getString(1));
+                    }
+                }
+            }
+        }
+        return existing;
+    }
+
+    // Inserts {studentId, name, email} rows with executeBatch in one transaction.
+    // Returns the error that rolled it back, or null once committed.
+    private SQLException insertStudents(List<String[]> rows) {
+        String insertSQL = "INSERT INTO students (student_id, name, email) VALUES (?, ?, ?)";
+        try (CampusDatabase.PooledConnection db = database.writer()) {
+            Connection connection = db.connection();
+            PreparedStatement stmt = db.prepare(insertSQL);
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                for (String[] row : rows) {
+                    stmt.setString(1, row[0]);
+                    stmt.setString(2, row[1]);
+                    stmt.setString(3, row[2]);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                stmt.clearBatch();
+                connection.rollback();
+                return e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return e;
+        }
+        for (String[] row : rows) {
+            registry.add(row[0]);
+        }
+        return null;
+    }
+
+    // Streams a roster file ({"type": "BULK_IMPORT", "path": ..., "format": "csv"|"jsonl"})
+    // from the import directory one chunk per action(), so other requests are served between chunks. Each chunk
+    // is inserted with executeBatch in its own transaction. Rows are checked with the
+    // same rules as single registrations; rejected rows go into the final report and
+    // no per-student notifications are sent. The report gives a line number and reason
+    // for each rejected row, never the row's contents.
+    private class RosterImportBehavior extends Behaviour {
+        private final ACLMessage request;
+        private final JSONObject query;
+        private BufferedReader reader;
+        private boolean csv;
+        private int chunkSize;
+        private int lineNumber;
+        // IDs accepted earlier in this file, so a repeated row is reported rather than failing a chunk
+        private final Set<String> seen = new HashSet<>();
+
+        private int imported;
+        private int errorCount;
+        private final JSONArray errors = new JSONArray();
+        private long startedAt;
+        private boolean finished;
+
+        RosterImportBehavior(ACLMessage request, JSONObject query) {
+            super(UserManagementAgent.this);
+            this.request = request;
+            this.query = query;
+        }
+
+        @Override
+        public void onStart() {
+            startedAt = System.currentTimeMillis();
+            try {
+                String path = query.getString("path");
+                String format = query.optString("format", path.toLowerCase().endsWith(".csv") ? "csv" : "jsonl");
+                csv = "csv".equalsIgnoreCase(format);
+                chunkSize = Math.max(1, query.optInt("chunkSize", IMPORT_CHUNK_SIZE));
+                Path file = resolveRosterPath(path);
+                if (file == null) {
+                    System.err.println("Refused roster import outside " + importDir + ": " + path);
+                    fail("Roster path must name a file inside the import directory.");
+                    return;
+                }
+                reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+                System.out.println("Importing students from " + file);
+            } catch (IOException | InvalidPathException e) {
+                System.err.println("Cannot open roster: " + e);
+                fail("Cannot open roster file.");
+            } catch (JSONException e) {
+                fail("Cannot open roster: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void action() {
+            if (finished) {
+                return;
+            }
+            try {
+                List<String[]> rows = new ArrayList<>(chunkSize);
+                List<Integer> lines = new ArrayList<>(chunkSize);
+                String line = null;
+                while (rows.size() < chunkSize && (line = reader.readLine()) != null) {
+                    lineNumber++;
+                    if (line.trim().isEmpty()) {
+                        continue;
+                    }
+                    String[] row = parseRow(line);
+                    if (row == null) {
+                        error(lineNumber, "Malformed row.");
+                        continue;
+                    }
+                    // An optional CSV header names the columns
+                    if (csv && lineNumber == 1 && !isValidStudentId(row[0])
+                            && row[0].replace("_", "").equalsIgnoreCase("studentId")) {
+                        continue;
+                    }
+                    String problem = validate(row[0], row[1], row[2]);
+                    if (problem != null) {
+                        error(lineNumber, problem);
+                        continue;
+                    }
+                    seen.add(row[0]);
+                    rows.add(row);
+                    lines.add(lineNumber);
+                }
+
+                if (!rows.isEmpty()) {
+                    insertChunk(rows, lines);
+                }
+                if (line == null) {
+                    finish();
+                }
+            } catch (IOException e) {
+                fail("Roster import stopped at line " + lineNumber + ": " + e.getMessage());
+            }
+        }
+
+        // studentId, name, email; null if the row does not have those three fields
+        private String[] parseRow(String line) {
+            if (csv) {
+                List<String> fields = splitCsv(line);
+                if (fields.size() < 3) {
+                    return null;
+                }
+                return new String[] { fields.get(0).trim(), fields.get(1).trim(), fields.get(2).trim() };
+            }
+            try {
+                JSONObject row = new JSONObject(line);
+                return new String[] { row.getString("studentId"), row.getString("name"), row.getString("email") };
+            } catch (JSONException e) {
+                return null;
+            }
+        }
+
+        private String validate(String studentId, String name, String email) {
+            if (!isValidStudentId(studentId)) {
+                return "Invalid student ID format. Must be an 8-digit number.";
+            }
+            if (seen.contains(studentId)) {
+                return "Duplicate student ID in file.";
+            }
+            if (isStudentIdExists(studentId)) {
+                return "Student ID already exists.";
+            }
+            if (name.isEmpty()) {
+                return "Name is required.";
+            }
+            if (!isValidEmail(email)) {
+                return "Invalid email address. Only @ucalgary.ca domain is allowed.";
+            }
+            return null;
+        }
+
+        private void insertChunk(List<String[]> rows, List<Integer> lines) {
+            SQLException failure = insertStudents(rows);
+            if (failure == null) {
+                imported += rows.size();
+                return;
+            }
+            for (int i = 0; i < rows.size(); i++) {
+                error(lines.get(i), "Not imported, chunk failed: " + failure.getMessage());
+            }
+        }
+
+        private void error(int line, String reason) {
+            errorCount++;
+            if (errors.length() < MAX_REPORTED_ERRORS) {
+                JSONObject error = new JSONObject();
+                error.put("line", line);
+                error.put("error", reason);
+                errors.put(error);
+            }
+        }
+
+        private void finish() {
+            close();
+            long elapsed = System.currentTimeMillis() - startedAt;
+            System.out.println("Roster import finished: " + imported + " imported, " + errorCount
+                    + " rejected in " + elapsed + " ms");
+            JSONObject report = new JSONObject();
+            report.put("imported", imported);
+            report.put("rejected", errorCount);
+            report.put("elapsedMs", elapsed);
+            report.put("errors", errors);
+            report.put("errorsTruncated", errorCount > errors.length());
+            ACLMessage reply = request.createReply();
+            reply.setPerformative(ACLMessage.INFORM);
+            MessageCodecs.writeReply(request, reply, report);
+            send(reply);
+            finished = true;
+        }
+
+        private void fail(String reason) {
+            close();
+            ACLMessage reply = request.createReply();
+            reply.setPerformative(ACLMessage.FAILURE);
+            reply.setContent(reason);
+            send(reply);
+            finished = true;
+        }
+
+        private void close() {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                reader = null;
+            }
+        }
+
+        @Override
+        public boolean done() {
+            return finished;
+        }
+    }
+
+    // Splits one CSV line, honouring double-quoted fields and "" escapes
+    private static List<String> splitCsv(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
     // New behavior to handle student registration status queries
     private class StudentQueryBehavior extends CyclicBehaviour {
         @Override
@@ -182,7 +612,7 @@ public class UserManagementAgent extends Agent {
 
             if (msg != null) {
                 try {
-                    JSONObject request = new JSONObject(msg.getContent());
+                    JSONObject request = MessageCodecs.readObject(msg);
                     String studentId = request.getString("studentId");
 
                     ACLMessage reply = msg.createReply();
@@ -210,8 +640,12 @@ public class UserManagementAgent extends Agent {
     }
 
     private boolean isStudentIdExists(String studentId) {
+        if (registry != null) {
+            return registry.contains(studentId);
+        }
         String query = "SELECT COUNT(*) FROM students WHERE student_id = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
+        try (CampusDatabase.PooledConnection db = database.reader()) {
+            PreparedStatement stmt = db.prepare(query);
             stmt.setString(1, studentId);
             try (ResultSet rs = stmt.executeQuery()) {
                 rs.next();
@@ -225,11 +659,13 @@ public class UserManagementAgent extends Agent {
 
     private void registerStudent(String studentId, String name, String email) {
         String insertSQL = "INSERT INTO students (student_id, name, email) VALUES (?, ?, ?)";
-        try (PreparedStatement stmt = connection.prepareStatement(insertSQL)) {
+        try (CampusDatabase.PooledConnection db = database.writer()) {
+            PreparedStatement stmt = db.prepare(insertSQL);
             stmt.setString(1, studentId);
             stmt.setString(2, name);
             stmt.setString(3, email);
             stmt.executeUpdate();
+            registry.add(studentId);
 
             // Send notification
             sendNotification(studentId, "Registration", "Registration successful");
@@ -242,6 +678,7 @@ public class UserManagementAgent extends Agent {
 
     // Method to send notification
     private void sendNotification(String userId, String type, String message) {
+        AID notificationAgent = serviceRegistry.pick("notification");
         if (notificationAgent != null) {
             ACLMessage notifMsg = new ACLMessage(ACLMessage.REQUEST);
             notifMsg.addReceiver(notificationAgent);
@@ -249,7 +686,8 @@ public class UserManagementAgent extends Agent {
             notification.put("userId", userId);
             notification.put("type", type);
             notification.put("message", message);
-            notifMsg.setContent(notification.toString());
+            notifMsg.addUserDefinedParameter(NotificationAgent.NO_ACK, "true");
+            MessageCodecs.write(notifMsg, notification);
             send(notifMsg);
         } else {
             System.out.println("NotificationAgent not available");
@@ -0,0 +1,119 @@
+package agents;
+
+import org.json.JSONObject;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.List;
+
+// Checks for RecurrenceRule.expand. The project has no test framework, so this
+// runs as a plain program and exits non-zero on the first failure:
+//   javac -cp lib/json.jar -d out src/agents/RecurrenceRule.java test/agents/RecurrenceRuleTest.java
+//   java -cp out:lib/json.jar agents.RecurrenceRuleTest
+public class RecurrenceRuleTest {
+    private static final int MAX_OCCURRENCES = 200;
+
+    public static void main(String[] args) {
+        hugeIntervalStopsAtHorizon();
+        farUntilIsRejected();
+        untilWithinYearIsAccepted();
+        matchesDayByDayExpansion();
+        System.out.println("RecurrenceRuleTest passed");
+    }
+
+    // Used to step through about 10^9 days before the second date
+    private static void hugeIntervalStopsAtHorizon() {
+        RecurrenceRule daily = rule("{\"startDate\":\"2030-01-07\",\"frequency\":\"DAILY\",\"interval\":1000000000,\"count\":2}");
+        expectRejected(daily, "huge daily interval");
+        RecurrenceRule weekly = rule("{\"startDate\":\"2030-01-07\",\"frequency\":\"WEEKLY\",\"interval\":1000000000,\"count\":2}");
+        expectRejected(weekly, "huge weekly interval");
+        RecurrenceRule single = rule("{\"startDate\":\"2030-01-07\",\"frequency\":\"DAILY\",\"interval\":1000000000,\"count\":1}");
+        check(single.expand(MAX_OCCURRENCES).equals(List.of(LocalDate.parse("2030-01-07"))), "single occurrence of huge interval");
+    }
+
+    private static void farUntilIsRejected() {
+        try {
+            rule("{\"startDate\":\"2030-01-07\",\"frequency\":\"WEEKLY\",\"interval\":52,\"until\":\"2130-01-07\"}");
+            fail("far until accepted");
+        } catch (IllegalArgumentException expected) {
+            // rejected when parsed
+        }
+        try {
+            rule("{\"startDate\":\"2030-01-07\",\"until\":\"2031-01-09\"}");
+            fail("until past a year accepted");
+        } catch (IllegalArgumentException expected) {
+            // rejected when parsed
+        }
+    }
+
+    private static void untilWithinYearIsAccepted() {
+        RecurrenceRule sparse = rule("{\"startDate\":\"2030-01-07\",\"frequency\":\"WEEKLY\",\"interval\":20,\"until\":\"2031-01-07\"}");
+        List<LocalDate> dates = sparse.expand(MAX_OCCURRENCES);
+        check(dates.equals(List.of(LocalDate.parse("2030-01-07"), LocalDate.parse("2030-05-27"),
+                LocalDate.parse("2030-10-14"))), "sparse weekly rule: " + dates);
+    }
+
+    // The jumping expansion must give the same dates as testing every day
+    private static void matchesDayByDayExpansion() {
+        String[] rules = {
+                "{\"startDate\":\"2030-01-09\",\"frequency\":\"DAILY\",\"interval\":3,\"count\":20}",
+                "{\"startDate\":\"2030-01-09\",\"frequency\":\"DAILY\",\"interval\":5,\"until\":\"2030-06-30\"}",
+                "{\"startDate\":\"2030-01-09\",\"count\":12}",
+                "{\"startDate\":\"2030-01-09\",\"interval\":2,\"daysOfWeek\":[\"MONDAY\",\"WEDNESDAY\",\"SUNDAY\"],\"count\":30}",
+                "{\"startDate\":\"2030-01-12\",\"interval\":3,\"daysOfWeek\":[\"FRIDAY\",\"SATURDAY\"],\"until\":\"2030-12-31\"}",
+        };
+        for (String json : rules) {
+            RecurrenceRule rule = rule(json);
+            List<LocalDate> expected = dayByDay(rule);
+            List<LocalDate> actual = rule.expand(MAX_OCCURRENCES);
+            check(actual.equals(expected), json + ": " + actual + " != " + expected);
+        }
+    }
+
+    private static List<LocalDate> dayByDay(RecurrenceRule rule) {
+        List<LocalDate> dates = new ArrayList<>();
+        LocalDate firstWeek = rule.startDate.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+        for (LocalDate d = rule.startDate; rule.until == null || !d.isAfter(rule.until); d = d.plusDays(1)) {
+            if (rule.count > 0 && dates.size() == rule.count) {
+                break;
+            }
+            boolean matches = rule.frequency == RecurrenceRule.Frequency.DAILY
+                    ? ChronoUnit.DAYS.between(rule.startDate, d) % rule.interval == 0
+                    : rule.daysOfWeek.contains(d.getDayOfWeek())
+                            && ChronoUnit.WEEKS.between(firstWeek, d) % rule.interval == 0;
+            if (matches) {
+                dates.add(d);
+            }
+        }
+        return dates;
+    }
+
+    private static RecurrenceRule rule(String json) {
+        return RecurrenceRule.fromJson(new JSONObject(json));
+    }
+
+    private static void expectRejected(RecurrenceRule rule, String what) {
+        long started = System.nanoTime();
+        try {
+            rule.expand(MAX_OCCURRENCES);
+            fail(what + " accepted");
+        } catch (IllegalArgumentException expected) {
+            // past the horizon
+        }
+        check(System.nanoTime() - started < 100_000_000L, what + " took too long to reject");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            fail(message);
+        }
+    }
+
+    private static void fail(String message) {
+        System.err.println("FAILED: " + message);
+        System.exit(1);
+    }
+}